@@ -0,0 +1,114 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BuiltinBenchmark
+{
+    private static final String SCRIPT =
+            "function trimUpper(columnName, row) {"
+                    + "  var value = row.get(columnName);"
+                    + "  value = value == null ? null : value.trim();"
+                    + "  return value ? value.toUpperCase() : null;"
+                    + "}"
+                    + "function digitsOnly(columnName, row) {"
+                    + "  return row.get(columnName).replace(/\\D/g, '');"
+                    + "}"
+                    + "function prefixedNumber(columnName, row) {"
+                    + "  return row.get('number').substring(0, 2) + '-' + row.get('name').trim().toUpperCase();"
+                    + "}";
+
+    private Map<String, ValueDefinition> transform;
+
+    private Map<String, Object> nameValues;
+
+    private ScriptEngine scriptEngine;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                new ByteArrayInputStream((
+                        "{"
+                                + "\"columnMappings\": {\"0\": \"name\", \"1\": \"number\"},"
+                                + "\"transform\": {"
+                                + "  \"builtinTrimUpper\": [{\"builtin\": \"trimToNull\", \"column\": \"name\"}, {\"builtin\": \"upper\"}],"
+                                + "  \"builtinDigitsOnly\": {\"builtin\": \"regexReplace\", \"column\": \"number\", \"pattern\": \"\\\\D\", \"replacement\": \"\"},"
+                                + "  \"jsTrimUpper\": {\"function\": \"trimUpper\"},"
+                                + "  \"jsDigitsOnly\": {\"function\": \"digitsOnly\"},"
+                                + "  \"exprPrefixedNumber\": {\"expr\": \"concat(substr(number, 0, 2), '-', upper(trim(name)))\"},"
+                                + "  \"jsPrefixedNumber\": {\"function\": \"prefixedNumber\"}"
+                                + "}"
+                                + "}").getBytes(StandardCharsets.UTF_8)),
+                null);
+
+        transform = config.getTransform();
+
+        nameValues = config.toNameValues(new String[] { "  Acme Widgets Ltd  ", "SC-123/456" });
+
+        scriptEngine = new ScriptEngineManager().getEngineByName("JavaScript");
+
+        if (scriptEngine != null)
+        {
+            scriptEngine.eval(SCRIPT);
+        }
+    }
+
+    @Benchmark
+    public Object builtinTrimUpper() throws Exception
+    {
+        return transform.get("builtinTrimUpper").eval("name", nameValues, scriptEngine);
+    }
+
+    @Benchmark
+    public Object javascriptTrimUpper() throws Exception
+    {
+        return transform.get("jsTrimUpper").eval("name", nameValues, scriptEngine);
+    }
+
+    @Benchmark
+    public Object builtinDigitsOnly() throws Exception
+    {
+        return transform.get("builtinDigitsOnly").eval("number", nameValues, scriptEngine);
+    }
+
+    @Benchmark
+    public Object javascriptDigitsOnly() throws Exception
+    {
+        return transform.get("jsDigitsOnly").eval("number", nameValues, scriptEngine);
+    }
+
+    @Benchmark
+    public Object expressionPrefixedNumber() throws Exception
+    {
+        return transform.get("exprPrefixedNumber").eval("id", nameValues, scriptEngine);
+    }
+
+    @Benchmark
+    public Object javascriptPrefixedNumber() throws Exception
+    {
+        return transform.get("jsPrefixedNumber").eval("id", nameValues, scriptEngine);
+    }
+}
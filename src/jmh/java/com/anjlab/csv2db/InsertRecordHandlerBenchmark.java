@@ -0,0 +1,127 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class InsertRecordHandlerBenchmark
+{
+    private static final int BATCH_SIZE = 100;
+
+    private static final String CONNECTION_URL = "jdbc:derby:memory:csv2dbBenchmark;create=true";
+
+    @Param({ "false", "true" })
+    public boolean typedBinding;
+
+    private Configuration config;
+
+    private String[][] lines;
+
+    private Connection connection;
+
+    private InsertRecordHandler handler;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        config = Configuration.fromJson(
+                new ByteArrayInputStream((
+                        "{"
+                                + "\"operationMode\": \"INSERT\","
+                                + "\"driverClass\": \"org.apache.derby.jdbc.EmbeddedDriver\","
+                                + "\"connectionUrl\": \"" + CONNECTION_URL + "\","
+                                + "\"targetTable\": \"benchmark_companies\","
+                                + "\"primaryKeys\": [\"id\"],"
+                                + "\"columnMappings\": {\"0\": \"id\", \"1\": \"name\", \"2\": \"amount\", \"3\": \"created_at\"},"
+                                + (typedBinding ? "\"typedBinding\": {\"dateFormat\": \"yyyy-MM-dd\"}," : "")
+                                + "\"batchSize\": " + BATCH_SIZE
+                                + "}").getBytes(StandardCharsets.UTF_8)),
+                null);
+
+        Class.forName(config.getDriverClass());
+
+        connection = DriverManager.getConnection(CONNECTION_URL);
+
+        try (Statement statement = connection.createStatement())
+        {
+            statement.execute("DROP TABLE benchmark_companies");
+        }
+        catch (SQLException e)
+        {
+            // Table does not exist
+        }
+
+        try (Statement statement = connection.createStatement())
+        {
+            statement.execute("CREATE TABLE benchmark_companies"
+                    + " (id INT, name VARCHAR(100), amount DECIMAL(12, 2), created_at DATE)");
+        }
+
+        ExecutionPlan plan = ExecutionPlan.compile(config);
+
+        if (typedBinding)
+        {
+            plan = plan.withColumnBinders(ColumnBinder.load(config, connection));
+        }
+
+        lines = new String[BATCH_SIZE][];
+
+        for (int i = 0; i < BATCH_SIZE; i++)
+        {
+            lines[i] = new String[] { String.valueOf(i), "Company " + i + " Ltd", i + ".50", "2017-06-01" };
+        }
+
+        handler = new InsertRecordHandler(plan, connection, null, null, 0, 1);
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteRows() throws SQLException
+    {
+        try (Statement statement = connection.createStatement())
+        {
+            statement.execute("DELETE FROM benchmark_companies");
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        // Closes the connection
+        handler.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void insertBatch() throws Exception
+    {
+        for (String[] line : lines)
+        {
+            handler.handleRecord(config.toNameValues(line));
+        }
+    }
+}
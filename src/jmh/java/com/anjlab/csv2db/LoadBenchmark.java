@@ -0,0 +1,495 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.PosixParser;
+import org.apache.commons.io.FileUtils;
+
+import com.anjlab.csv2db.Configuration.OperationMode;
+import com.anjlab.csv2db.LoadGenerator.Compression;
+import com.anjlab.csv2db.LoadGenerator.KeyDistribution;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+// Imports inputs of LoadGenerator to embedded Derby, every mode is imported once to warm up and then
+// "runs" times, the run with the median throughput is reported
+public class LoadBenchmark
+{
+    private static final String CONNECTION_URL = "jdbc:derby:memory:csv2dbLoad;create=true";
+
+    private static final String DRIVER_CLASS = "org.apache.derby.jdbc.EmbeddedDriver";
+
+    private static final String TARGET_TABLE = "load_companies";
+
+    private static final String[] BATCH_TIMERS = { "inserts", "updates", "selects" };
+
+    public static class Result
+    {
+        private String mode;
+        private long rows;
+        private double rowsPerSecond;
+        private double p50BatchMillis;
+        private double p99BatchMillis;
+        private long gcMillis;
+        private long peakHeapBytes;
+
+        @Override
+        public String toString()
+        {
+            return String.format("%-10s %10.0f rows/s, batch p50 %8.2f ms, p99 %8.2f ms, GC %6d ms, peak heap %6d MB",
+                    mode, rowsPerSecond, p50BatchMillis, p99BatchMillis, gcMillis, peakHeapBytes / (1024 * 1024));
+        }
+    }
+
+    public static class Report
+    {
+        private String parameters;
+        private List<Result> results = new ArrayList<>();
+
+        private Result getResult(String mode)
+        {
+            for (Result result : results)
+            {
+                if (result.mode.equals(mode))
+                {
+                    return result;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final LoadGenerator generator;
+
+    private final int numberOfThreads;
+
+    private final int batchSize;
+
+    public LoadBenchmark(LoadGenerator generator, int numberOfThreads, int batchSize)
+    {
+        this.generator = generator;
+        this.numberOfThreads = numberOfThreads;
+        this.batchSize = batchSize;
+    }
+
+    public String getParameters()
+    {
+        return generator + " threads=" + numberOfThreads + " batchSize=" + batchSize;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        Options options =
+                new Options()
+                        .addOption("r", "rows", true, "Number of lines in the input (default is 100000)")
+                        .addOption("w", "width", true, "Number of columns including the key (default is 10)")
+                        .addOption("k", "keys", true, "Key distribution (UNIQUE, SKEWED, REPEATED), default is UNIQUE")
+                        .addOption("q", "quoted", false, "Quote text values")
+                        .addOption("z", "compression", true, "Compression of the input (NONE, ZIP), default is NONE")
+                        .addOption("m", "modes", true, "Comma-separated operation modes (default is INSERT,MERGE,INSERTONLY)")
+                        .addOption("t", "numberOfThreads", true, "Number of threads (default is 4)")
+                        .addOption("b", "batchSize", true, "Batch size (default is 100)")
+                        .addOption("n", "runs", true, "Number of measured runs of every mode (default is 3)")
+                        .addOption("o", "output", true, "File to write the results to")
+                        .addOption("B", "baseline", true, "Baseline file to compare the results with")
+                        .addOption("x", "maxRegression", true, "Max allowed drop of throughput in percent (default is 10)")
+                        .addOption("u", "updateBaseline", false, "Write the results to the baseline file instead of comparing")
+                        .addOption("h", "help", false, "Prints this help");
+
+        CommandLine cmd = new PosixParser().parse(options, args);
+
+        if (cmd.hasOption("help"))
+        {
+            new HelpFormatter().printHelp("LoadBenchmark", options);
+            return;
+        }
+
+        LoadGenerator generator = new LoadGenerator();
+        generator.setRows(Integer.parseInt(cmd.getOptionValue("rows", "100000")));
+        generator.setWidth(Integer.parseInt(cmd.getOptionValue("width", "10")));
+        generator.setKeyDistribution(KeyDistribution.valueOf(cmd.getOptionValue("keys", "UNIQUE")));
+        generator.setQuoted(cmd.hasOption("quoted"));
+        generator.setCompression(Compression.valueOf(cmd.getOptionValue("compression", "NONE")));
+
+        LoadBenchmark benchmark = new LoadBenchmark(
+                generator,
+                Integer.parseInt(cmd.getOptionValue("numberOfThreads", "4")),
+                Integer.parseInt(cmd.getOptionValue("batchSize", "100")));
+
+        List<OperationMode> modes = new ArrayList<>();
+        for (String mode : cmd.getOptionValue("modes", "INSERT,MERGE,INSERTONLY").split(","))
+        {
+            modes.add(OperationMode.valueOf(mode.trim()));
+        }
+
+        Report report = benchmark.run(modes, Integer.parseInt(cmd.getOptionValue("runs", "3")));
+
+        if (cmd.hasOption("output"))
+        {
+            writeReport(report, new File(cmd.getOptionValue("output")));
+        }
+
+        if (!cmd.hasOption("baseline"))
+        {
+            return;
+        }
+
+        File baselineFile = new File(cmd.getOptionValue("baseline"));
+
+        if (cmd.hasOption("updateBaseline") || !baselineFile.exists())
+        {
+            writeReport(report, baselineFile);
+            System.out.println((cmd.hasOption("updateBaseline") ? "" : "No baseline to compare with, ")
+                    + "baseline written to " + baselineFile);
+            return;
+        }
+
+        double maxRegression = Double.parseDouble(cmd.getOptionValue("maxRegression", "10"));
+
+        if (!compare(report, readReport(baselineFile), maxRegression))
+        {
+            System.exit(1);
+        }
+    }
+
+    public Report run(List<OperationMode> modes, int runs) throws Exception
+    {
+        Report report = new Report();
+        report.parameters = getParameters();
+
+        System.out.println("Load benchmark: " + report.parameters);
+
+        File dir = Files.createTempDirectory("csv2db-load").toFile();
+
+        try
+        {
+            File input = generator.generate(dir);
+
+            for (OperationMode mode : modes)
+            {
+                // Warm up
+                runImport(mode, input);
+
+                List<Result> results = new ArrayList<>();
+
+                for (int i = 0; i < runs; i++)
+                {
+                    results.add(runImport(mode, input));
+                }
+
+                Collections.sort(results, new Comparator<Result>()
+                {
+                    @Override
+                    public int compare(Result a, Result b)
+                    {
+                        return Double.compare(a.rowsPerSecond, b.rowsPerSecond);
+                    }
+                });
+
+                Result median = results.get(results.size() / 2);
+
+                System.out.println(median);
+
+                report.results.add(median);
+            }
+        }
+        finally
+        {
+            FileUtils.deleteQuietly(dir);
+        }
+
+        return report;
+    }
+
+    private Result runImport(OperationMode mode, File input) throws Exception
+    {
+        Configuration config = createConfiguration(mode);
+
+        prepareTargetTable(mode);
+
+        for (int threadId = 0; threadId < numberOfThreads; threadId++)
+        {
+            for (String timer : BATCH_TIMERS)
+            {
+                Import.METRIC_REGISTRY.remove("thread-" + threadId + "." + timer);
+            }
+        }
+
+        System.gc();
+
+        long gcMillis = getCollectionTime();
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            pool.resetPeakUsage();
+        }
+
+        long startTime = System.nanoTime();
+
+        new Importer(config, numberOfThreads, null).performImport(input.getPath());
+
+        long elapsedNanos = System.nanoTime() - startTime;
+
+        Result result = new Result();
+        result.mode = mode.name();
+        result.rows = generator.getRows();
+        result.rowsPerSecond = generator.getRows() * 1e9 / elapsedNanos;
+        result.gcMillis = getCollectionTime() - gcMillis;
+        result.peakHeapBytes = getPeakHeapUsage();
+
+        long[] batchNanos = getBatchDurations();
+
+        if (batchNanos.length > 0)
+        {
+            result.p50BatchMillis = percentile(batchNanos, 0.5) / 1e6;
+            result.p99BatchMillis = percentile(batchNanos, 0.99) / 1e6;
+        }
+
+        return result;
+    }
+
+    private Configuration createConfiguration(OperationMode mode) throws Exception
+    {
+        StringBuilder columnMappings = new StringBuilder("\"0\": \"id\"");
+
+        for (int column = 1; column < generator.getWidth(); column++)
+        {
+            columnMappings.append(", \"").append(column).append("\": \"c").append(column).append('"');
+        }
+
+        return Configuration.fromJson(
+                new ByteArrayInputStream((
+                        "{"
+                                + "\"operationMode\": \"" + mode + "\","
+                                + "\"driverClass\": \"" + DRIVER_CLASS + "\","
+                                + "\"connectionUrl\": \"" + CONNECTION_URL + "\","
+                                + "\"targetTable\": \"" + TARGET_TABLE + "\","
+                                + "\"primaryKeys\": [\"id\"],"
+                                + "\"columnMappings\": {" + columnMappings + "},"
+                                // Repeated keys of the same batch would be looked up and inserted twice
+                                + "\"ignoreDuplicatePK\": true,"
+                                + "\"batchSize\": " + batchSize + ","
+                                + "\"csvOptions\": {\"skipLines\": 0}"
+                                + "}").getBytes(StandardCharsets.UTF_8)),
+                null);
+    }
+
+    private void prepareTargetTable(OperationMode mode) throws Exception
+    {
+        Class.forName(DRIVER_CLASS);
+
+        try (Connection connection = DriverManager.getConnection(CONNECTION_URL))
+        {
+            try (Statement statement = connection.createStatement())
+            {
+                statement.execute("DROP TABLE " + TARGET_TABLE);
+            }
+            catch (SQLException e)
+            {
+                // Table does not exist
+            }
+
+            StringBuilder columns = new StringBuilder("id BIGINT");
+
+            for (int column = 1; column < generator.getWidth(); column++)
+            {
+                columns.append(", c").append(column).append(" VARCHAR(64)");
+            }
+
+            try (Statement statement = connection.createStatement())
+            {
+                // Not unique, since INSERT mode inserts keys repeated in different batches
+                statement.execute("CREATE TABLE " + TARGET_TABLE + " (" + columns + ")");
+                statement.execute("CREATE INDEX " + TARGET_TABLE + "_id ON " + TARGET_TABLE + " (id)");
+            }
+
+            if (mode == OperationMode.INSERT)
+            {
+                return;
+            }
+
+            connection.setAutoCommit(false);
+
+            try (PreparedStatement statement = connection.prepareStatement(
+                    "INSERT INTO " + TARGET_TABLE + " (id, c1) VALUES (?, 'existing')"))
+            {
+                for (long key = 0; key < generator.getDistinctKeys(); key += 2)
+                {
+                    statement.setLong(1, key);
+                    statement.addBatch();
+
+                    if (key % 2000 == 0)
+                    {
+                        statement.executeBatch();
+                    }
+                }
+
+                statement.executeBatch();
+            }
+
+            connection.commit();
+        }
+    }
+
+    private long[] getBatchDurations()
+    {
+        List<long[]> values = new ArrayList<>();
+
+        int count = 0;
+
+        for (int threadId = 0; threadId < numberOfThreads; threadId++)
+        {
+            for (String timer : BATCH_TIMERS)
+            {
+                long[] durations = Import.METRIC_REGISTRY.timer("thread-" + threadId + "." + timer)
+                        .getSnapshot().getValues();
+
+                values.add(durations);
+                count += durations.length;
+            }
+        }
+
+        long[] result = new long[count];
+
+        int offset = 0;
+
+        for (long[] durations : values)
+        {
+            System.arraycopy(durations, 0, result, offset, durations.length);
+            offset += durations.length;
+        }
+
+        Arrays.sort(result);
+
+        return result;
+    }
+
+    private static double percentile(long[] sortedValues, double quantile)
+    {
+        int index = (int) Math.ceil(quantile * sortedValues.length) - 1;
+
+        return sortedValues[Math.max(0, Math.min(index, sortedValues.length - 1))];
+    }
+
+    private static long getCollectionTime()
+    {
+        long total = 0;
+
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+        {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+
+        return total;
+    }
+
+    private static long getPeakHeapUsage()
+    {
+        long total = 0;
+
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            if (pool.getType() == MemoryType.HEAP)
+            {
+                total += pool.getPeakUsage().getUsed();
+            }
+        }
+
+        return total;
+    }
+
+    public static boolean compare(Report report, Report baseline, double maxRegression)
+    {
+        if (!report.parameters.equals(baseline.parameters))
+        {
+            System.err.println("Baseline was recorded with different parameters, update it with -PupdateBaseline: "
+                    + baseline.parameters);
+            return false;
+        }
+
+        boolean passed = true;
+
+        for (Result result : report.results)
+        {
+            Result expected = baseline.getResult(result.mode);
+
+            if (expected == null)
+            {
+                System.out.println(result.mode + " is not in the baseline");
+                continue;
+            }
+
+            double change = (result.rowsPerSecond - expected.rowsPerSecond) * 100 / expected.rowsPerSecond;
+
+            String message = String.format("%-10s %+.1f%% against baseline of %.0f rows/s",
+                    result.mode, change, expected.rowsPerSecond);
+
+            if (change < -maxRegression)
+            {
+                System.err.println(message + ", max allowed drop is " + maxRegression + "%");
+                passed = false;
+            }
+            else
+            {
+                System.out.println(message);
+            }
+        }
+
+        return passed;
+    }
+
+    private static Gson gson()
+    {
+        return new GsonBuilder().setPrettyPrinting().create();
+    }
+
+    public static Report readReport(File file) throws IOException
+    {
+        try (Reader reader = new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))
+        {
+            return gson().fromJson(reader, Report.class);
+        }
+    }
+
+    public static void writeReport(Report report, File file) throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+
+        if (parent != null)
+        {
+            parent.mkdirs();
+        }
+
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8))
+        {
+            gson().toJson(report, writer);
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.anjlab.csv2db;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+// The first column is the id key, values of the same key differ between lines,
+// so that repeated keys are updated in MERGE mode
+public class LoadGenerator
+{
+    public enum KeyDistribution
+    {
+        UNIQUE,
+        // Most lines have one of the few smallest keys
+        SKEWED,
+        REPEATED
+    }
+
+    public enum Compression
+    {
+        NONE, ZIP
+    }
+
+    // Number of lines per key with SKEWED and REPEATED distributions
+    private static final int LINES_PER_KEY = 10;
+
+    private int rows = 100000;
+
+    private int width = 10;
+
+    private KeyDistribution keyDistribution = KeyDistribution.UNIQUE;
+
+    private boolean quoted;
+
+    private Compression compression = Compression.NONE;
+
+    private long seed = 42;
+
+    public int getRows()
+    {
+        return rows;
+    }
+
+    public void setRows(int rows)
+    {
+        this.rows = rows;
+    }
+
+    public int getWidth()
+    {
+        return width;
+    }
+
+    public void setWidth(int width)
+    {
+        this.width = width;
+    }
+
+    public KeyDistribution getKeyDistribution()
+    {
+        return keyDistribution;
+    }
+
+    public void setKeyDistribution(KeyDistribution keyDistribution)
+    {
+        this.keyDistribution = keyDistribution;
+    }
+
+    public boolean isQuoted()
+    {
+        return quoted;
+    }
+
+    public void setQuoted(boolean quoted)
+    {
+        this.quoted = quoted;
+    }
+
+    public Compression getCompression()
+    {
+        return compression;
+    }
+
+    public void setCompression(Compression compression)
+    {
+        this.compression = compression;
+    }
+
+    public void setSeed(long seed)
+    {
+        this.seed = seed;
+    }
+
+    public int getDistinctKeys()
+    {
+        return keyDistribution == KeyDistribution.UNIQUE
+                ? rows
+                : Math.max(1, rows / LINES_PER_KEY);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "rows=" + rows
+                + " width=" + width
+                + " keys=" + keyDistribution
+                + " quoted=" + quoted
+                + " compression=" + compression;
+    }
+
+    public File generate(File dir) throws IOException
+    {
+        if (width < 2)
+        {
+            throw new IllegalArgumentException("Width should be at least 2, but was " + width);
+        }
+
+        File file = new File(dir, "load." + (compression == Compression.ZIP ? "zip" : "csv"));
+
+        try (OutputStream output = new FileOutputStream(file))
+        {
+            if (compression == Compression.ZIP)
+            {
+                ZipOutputStream zip = new ZipOutputStream(output);
+                zip.putNextEntry(new ZipEntry("load.csv"));
+                writeLines(zip);
+                zip.closeEntry();
+                zip.finish();
+            }
+            else
+            {
+                writeLines(output);
+            }
+        }
+
+        return file;
+    }
+
+    private void writeLines(OutputStream output) throws IOException
+    {
+        // Not closed, the caller owns the stream
+        Writer writer = new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8));
+
+        Random random = new Random(seed);
+
+        int distinctKeys = getDistinctKeys();
+
+        StringBuilder line = new StringBuilder();
+
+        for (int i = 0; i < rows; i++)
+        {
+            line.setLength(0);
+
+            line.append(nextKey(i, distinctKeys, random));
+
+            for (int column = 1; column < width; column++)
+            {
+                line.append(',');
+
+                if (quoted)
+                {
+                    line.append("\"value ").append(column).append(", line ").append(i).append('"');
+                }
+                else
+                {
+                    line.append("value ").append(column).append(" line ").append(i);
+                }
+            }
+
+            line.append('\n');
+
+            writer.write(line.toString());
+        }
+
+        writer.flush();
+    }
+
+    private long nextKey(int lineNumber, int distinctKeys, Random random)
+    {
+        switch (keyDistribution)
+        {
+        case SKEWED:
+            // Cube of a uniform value puts half of the lines to the first eighth of keys
+            double value = random.nextDouble();
+            return (long) (distinctKeys * value * value * value);
+
+        case REPEATED:
+            return lineNumber % distinctKeys;
+
+        default:
+            return lineNumber;
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// With the router enabled consumers re-route records of other partitions, like they do with ignoreDuplicatePK
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MediatorBenchmark
+{
+    private static final int LINES = 10000;
+
+    @Param({ "1", "2", "4", "8" })
+    public int numberOfThreads;
+
+    @Param({ "false", "true" })
+    public boolean router;
+
+    private Configuration config;
+
+    private List<String[]> lines;
+
+    private ExecutorService executorService;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        config = Configuration.fromJson(
+                new ByteArrayInputStream((
+                        "{"
+                                + "\"columnMappings\": {\"0\": \"id\", \"1\": \"name\"},"
+                                + "\"primaryKeys\": [\"id\"],"
+                                + "\"batchSize\": 1000,"
+                                + "\"ignoreDuplicatePK\": " + router
+                                + "}").getBytes(StandardCharsets.UTF_8)),
+                null);
+
+        lines = new ArrayList<>(LINES);
+
+        for (int i = 0; i < LINES; i++)
+        {
+            lines.add(new String[] { String.valueOf(i), "Company " + i });
+        }
+
+        executorService = Executors.newFixedThreadPool(numberOfThreads);
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        executorService.shutdownNow();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public int dispatchAndTake() throws Exception
+    {
+        final Mediator mediator = new SharedBlockingQueueMediator(config, numberOfThreads);
+
+        List<Future<Integer>> consumers = new ArrayList<>(numberOfThreads);
+
+        for (int i = 0; i < numberOfThreads; i++)
+        {
+            consumers.add(executorService.submit(createConsumer(mediator, i)));
+        }
+
+        for (String[] line : lines)
+        {
+            mediator.dispatch(line);
+        }
+
+        mediator.producerDone();
+
+        int count = 0;
+
+        for (Future<Integer> consumer : consumers)
+        {
+            count += consumer.get();
+        }
+
+        if (count != LINES)
+        {
+            throw new IllegalStateException("Consumed " + count + " of " + LINES + " lines");
+        }
+
+        return count;
+    }
+
+    private Callable<Integer> createConsumer(final Mediator mediator, final int threadId)
+    {
+        return new Callable<Integer>()
+        {
+            @Override
+            @SuppressWarnings("unchecked")
+            public Integer call() throws Exception
+            {
+                int count = 0;
+
+                while (true)
+                {
+                    Object record = mediator.take(threadId);
+
+                    if (record instanceof String[])
+                    {
+                        String[] columns = (String[]) record;
+
+                        if (columns.length == 0)
+                        {
+                            return count;
+                        }
+
+                        Map<String, Object> nameValues = Collections.<String, Object> singletonMap("id", columns[0]);
+
+                        int partitionId = router
+                                ? PrimaryKey.of(config.getPrimaryKeys(), nameValues).partition(numberOfThreads)
+                                : threadId;
+
+                        if (partitionId != threadId)
+                        {
+                            mediator.dispatch(nameValues, partitionId);
+                        }
+                        else
+                        {
+                            count++;
+                        }
+                    }
+                    else if (record instanceof Map)
+                    {
+                        count++;
+                    }
+                }
+            }
+        };
+    }
+}
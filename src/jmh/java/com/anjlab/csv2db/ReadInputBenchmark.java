@@ -0,0 +1,109 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ReadInputBenchmark
+{
+    private static final int LINES = 10000;
+
+    @Param({ "false", "true" })
+    public boolean quoted;
+
+    @Param({ "false", "true" })
+    public boolean filtered;
+
+    private byte[] input;
+
+    private Importer importer;
+
+    private RowFilter rowFilter;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                new ByteArrayInputStream((
+                        "{"
+                                + "\"columnMappings\": {\"0\": \"id\", \"1\": \"name\", \"2\": \"city\", \"3\": \"amount\"},"
+                                + (filtered ? "\"filter\": [{\"column\": 3, \"min\": 10}]," : "")
+                                + "\"csvOptions\": {\"skipLines\": 0}"
+                                + "}").getBytes(StandardCharsets.UTF_8)),
+                null);
+
+        StringBuilder builder = new StringBuilder();
+
+        String quote = quoted ? "\"" : "";
+
+        for (int i = 0; i < LINES; i++)
+        {
+            builder.append(i).append(',')
+                    .append(quote).append("Company ").append(i).append(" Ltd").append(quote).append(',')
+                    .append(quote).append("London").append(quote).append(',')
+                    .append(i % 100).append('\n');
+        }
+
+        input = builder.toString().getBytes(StandardCharsets.UTF_8);
+
+        importer = new Importer(config, 1, null);
+
+        rowFilter = RowFilter.compile(config.getFilter());
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void readInput(final Blackhole blackhole) throws Exception
+    {
+        importer.readInput(new ByteArrayInputStream(input), new Mediator()
+        {
+            @Override
+            public void dispatch(String[] line)
+            {
+                blackhole.consume(line);
+            }
+
+            @Override
+            public void dispatch(Map<String, Object> nameValues, int forThreadId)
+            {
+            }
+
+            @Override
+            public void producerDone()
+            {
+            }
+
+            @Override
+            public Object take(int forThreadId)
+            {
+                return null;
+            }
+
+            @Override
+            public void consumerDone(int threadId)
+            {
+            }
+        }, rowFilter);
+    }
+}
@@ -0,0 +1,77 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RowBenchmark
+{
+    private Configuration config;
+
+    private String[] line;
+
+    private Map<String, Object> nameValues;
+
+    private PrimaryKey primaryKey;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        config = Configuration.fromJson(
+                new ByteArrayInputStream((
+                        "{"
+                                + "\"columnMappings\": {\"0\": \"company_number\", \"1\": \"name\", \"2\": \"country\", \"3\": \"city\","
+                                + "  \"4\": \"post_code\", \"5\": \"address_line_1\", \"6\": \"address_line_2\", \"7\": \"status\"},"
+                                + "\"primaryKeys\": [\"country\", \"company_number\"]"
+                                + "}").getBytes(StandardCharsets.UTF_8)),
+                null);
+
+        line = new String[] { "SC123456", "Acme Widgets Ltd", "GB", "Glasgow", "G1 1AA", "1 George Square", "", "Active" };
+
+        nameValues = config.toNameValues(line);
+
+        primaryKey = config.getPrimaryKey(nameValues);
+    }
+
+    @Benchmark
+    public Map<String, Object> toNameValues()
+    {
+        return config.toNameValues(line);
+    }
+
+    @Benchmark
+    public PrimaryKey getPrimaryKey()
+    {
+        return config.getPrimaryKey(nameValues);
+    }
+
+    @Benchmark
+    public int partition()
+    {
+        return config.getPrimaryKey(nameValues).partition(8);
+    }
+
+    @Benchmark
+    public boolean primaryKeyEquals()
+    {
+        return config.getPrimaryKey(nameValues).equals(primaryKey);
+    }
+}
@@ -0,0 +1,110 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.script.ScriptEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScriptEngineBenchmark
+{
+    private static final String SCRIPT =
+            "function trimUpper(columnName, row) {"
+                    + "  var value = row.get(columnName);"
+                    + "  value = value == null ? null : value.trim();"
+                    + "  return value ? value.toUpperCase() : null;"
+                    + "}"
+                    + "function prefixedNumber(columnName, row) {"
+                    + "  return row.get('number').substring(0, 2) + '-' + row.get('name').trim().toUpperCase();"
+                    + "}";
+
+    @Param({ "NASHORN", "GRAALJS" })
+    public String engine;
+
+    private File scriptFile;
+
+    private Configuration config;
+
+    private Map<String, ValueDefinition> transform;
+
+    private Map<String, Object> nameValues;
+
+    private ScriptEngine scriptEngine;
+
+    @Setup
+    public void setup() throws Exception
+    {
+        scriptFile = File.createTempFile("benchmark", ".js");
+
+        Files.write(scriptFile.toPath(), SCRIPT.getBytes(StandardCharsets.UTF_8));
+
+        config = Configuration.fromJson(
+                new ByteArrayInputStream((
+                        "{"
+                                + "\"columnMappings\": {\"0\": \"name\", \"1\": \"number\"},"
+                                + "\"transform\": {"
+                                + "  \"jsTrimUpper\": {\"function\": \"trimUpper\"},"
+                                + "  \"jsPrefixedNumber\": {\"function\": \"prefixedNumber\"}"
+                                + "},"
+                                + "\"scripting\": [\"" + scriptFile.getName() + "\"],"
+                                + "\"scriptingEngine\": \"" + engine + "\""
+                                + "}").getBytes(StandardCharsets.UTF_8)),
+                new SimpleFileResolver(scriptFile.getParentFile()));
+
+        transform = config.getTransform();
+
+        nameValues = config.toNameValues(new String[] { "  Acme Widgets Ltd  ", "SC-123/456" });
+
+        // Fails for NASHORN on Java 15+
+        scriptEngine = config.createScriptEngine();
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        scriptFile.delete();
+    }
+
+    @Benchmark
+    public Object javascriptTrimUpper() throws Exception
+    {
+        return transform.get("jsTrimUpper").eval("name", nameValues, scriptEngine);
+    }
+
+    @Benchmark
+    public Object javascriptPrefixedNumber() throws Exception
+    {
+        return transform.get("jsPrefixedNumber").eval("id", nameValues, scriptEngine);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Measurement(iterations = 20)
+    public ScriptEngine createScriptEngine()
+    {
+        return config.createScriptEngine();
+    }
+}
@@ -1,35 +1,72 @@
 package com.anjlab.csv2db;
 
+import com.anjlab.csv2db.Configuration.DuplicatePolicy;
+import com.anjlab.csv2db.ExecutionPlan.CompiledColumn;
+import com.codahale.metrics.Meter;
 import com.codahale.metrics.Timer;
 import org.apache.commons.lang3.ObjectUtils;
-import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.Pair;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public abstract class AbstractInsertUpdateRecordHandler extends AbstractRecordHandler
 {
     private Map<Integer, PreparedStatement> selectStatements;
 
+    private PreparedStatement rangeSelectStatement;
+
     private final Timer selectStatementTimer;
 
-    private StringBuilder whereClause;
+    private List<Pair<PrimaryKey, Map<String, Object>>> nameValuesBuffer;
+
+    // Same as connection unless lookups are prefetched
+    private Connection lookupConnection;
+
+    private ExecutorService lookupExecutor;
+
+    // Batches whose lookups are executing on lookupExecutor, in the order of their submission
+    private final Queue<Pair<List<Pair<PrimaryKey, Map<String, Object>>>, Future<Map<PrimaryKey, Map<String, Object>>>>> pendingBatches;
+
+    private PrimaryKeyFilter primaryKeyFilter;
+
+    private TargetTableIndex targetTableIndex;
 
-    private final List<Pair<String, Map<String, Object>>> nameValuesBuffer;
+    private final Meter skippedLookups;
+
+    private final Meter rangeLookups;
+
+    private SortedTargetTableCursor sortedCursor;
+
+    // Recently written records in LRU order, only used when lookups may not see changes of pending batches
+    // (with the index, the cursor or prefetch) or when only changed columns are updated
+    private Map<PrimaryKey, Map<String, Object>> recentlyWrittenRecords;
 
     public AbstractInsertUpdateRecordHandler(
-            Configuration config,
+            ExecutionPlan plan,
             ScriptEngine scriptEngine,
             Connection connection,
             Router router,
@@ -37,18 +74,33 @@ public abstract class AbstractInsertUpdateRecordHandler extends AbstractRecordHa
             int threadCount)
                     throws SQLException
     {
-        super(config, scriptEngine, connection, router, threadId, threadCount);
-
-        if (config.getPrimaryKeys() == null || config.getPrimaryKeys().isEmpty())
-        {
-            throw new RuntimeException("primaryKeys required for " + config.getOperationMode() + " mode");
-        }
+        super(plan, scriptEngine, connection, router, threadId, threadCount);
 
         nameValuesBuffer = new ArrayList<>(config.getBatchSize());
 
+        lookupConnection = connection;
+
+        pendingBatches = new ArrayDeque<>();
+
         selectStatements = new HashMap<>();
 
         selectStatementTimer = Import.METRIC_REGISTRY.timer("thread-" + threadId + ".selects");
+
+        skippedLookups = Import.METRIC_REGISTRY.meter("thread-" + threadId + ".skippedLookups");
+
+        rangeLookups = Import.METRIC_REGISTRY.meter("thread-" + threadId + ".rangeLookups");
+
+        if (config.isUpdateChangedColumnsOnly() && !config.isForceUpdate())
+        {
+            // Records with the same keys should be compared with pending changes, not with the lookups,
+            // otherwise their partial updates would be based on stale values
+            trackWrittenRecords();
+        }
+    }
+
+    public void setPrimaryKeyFilter(PrimaryKeyFilter primaryKeyFilter)
+    {
+        this.primaryKeyFilter = primaryKeyFilter;
     }
 
     private PreparedStatement getOrCreateSelectStatement(int batchSize) throws SQLException
@@ -63,21 +115,18 @@ public abstract class AbstractInsertUpdateRecordHandler extends AbstractRecordHa
         if (statement == null)
         {
             StringBuilder selectClause =
-                    new StringBuilder("SELECT ")
-                            .append(StringUtils.join(config.escapeSqlNames(getOrderedTableColumnNames()), ", "))
-                            .append(" FROM ")
-                            .append(config.escapeSqlName(config.getTargetTable()))
+                    new StringBuilder(plan.getSelectClause())
                             .append(" WHERE ")
-                            .append(buildWhereClause());
+                            .append(plan.getWhereClause());
 
             for (int i = 1; i < batchSize; i++)
             {
                 selectClause.append(" OR (")
-                        .append(buildWhereClause())
+                        .append(plan.getWhereClause())
                         .append(")");
             }
 
-            statement = connection.prepareStatement(selectClause.toString());
+            statement = lookupConnection.prepareStatement(selectClause.toString());
 
             if (Import.isVerboseEnabled())
             {
@@ -90,104 +139,499 @@ public abstract class AbstractInsertUpdateRecordHandler extends AbstractRecordHa
         return statement;
     }
 
-    protected StringBuilder buildWhereClause()
+    @Override
+    public void handleRecord(Map<String, Object> nameValues)
+            throws SQLException, ConfigurationException, ScriptException, InterruptedException
     {
-        if (whereClause == null)
+        if (Import.isVerboseEnabled())
         {
-            whereClause = new StringBuilder();
+            printNameValues(nameValues);
+        }
+
+        if (addBatch(nameValues))
+        {
+            return;
+        }
+
+        executeBatch(config.getPrefetch() != null ? config.getPrefetch().getDepth() : 0);
+    }
+
+    protected void executeBatch() throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    {
+        executeBatch(0);
+    }
 
-            for (String columnName : config.getPrimaryKeys())
+    // Lookups of up to maxPendingBatches batches may still be in progress after this call
+    private void executeBatch(int maxPendingBatches)
+            throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    {
+        if (!nameValuesBuffer.isEmpty())
+        {
+            if (lookupExecutor == null)
             {
-                if (whereClause.length() > 0)
+                try
+                {
+                    Map<PrimaryKey, Map<String, Object>> primaryKeysHashMap = prepareLookup(nameValuesBuffer).call();
+
+                    disableBatchExecution();
+
+                    handleRecordsBatch(nameValuesBuffer, primaryKeysHashMap);
+                }
+                finally
                 {
-                    whereClause.append(" AND ");
+                    nameValuesBuffer.clear();
+
+                    enableBatchExecution();
                 }
 
-                whereClause.append(config.escapeSqlName(columnName)).append(" = ?");
+                return;
+            }
+
+            try
+            {
+                pendingBatches.add(Pair.of(nameValuesBuffer, lookupExecutor.submit(prepareLookup(nameValuesBuffer))));
+            }
+            finally
+            {
+                nameValuesBuffer = new ArrayList<>(config.getBatchSize());
             }
         }
 
-        return whereClause;
+        while (pendingBatches.size() > maxPendingBatches)
+        {
+            Pair<List<Pair<PrimaryKey, Map<String, Object>>>, Future<Map<PrimaryKey, Map<String, Object>>>> pendingBatch =
+                    pendingBatches.poll();
+
+            Map<PrimaryKey, Map<String, Object>> primaryKeysHashMap;
+
+            try
+            {
+                primaryKeysHashMap = pendingBatch.getValue().get();
+            }
+            catch (ExecutionException e)
+            {
+                if (e.getCause() instanceof SQLException)
+                {
+                    throw (SQLException) e.getCause();
+                }
+                if (e.getCause() instanceof Error)
+                {
+                    //  i.e. OutOfMemoryError
+                    throw (Error) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException)
+                {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new RuntimeException(e.getCause());
+            }
+
+            try
+            {
+                disableBatchExecution();
+
+                handleRecordsBatch(pendingBatch.getKey(), primaryKeysHashMap);
+            }
+            finally
+            {
+                enableBatchExecution();
+            }
+        }
     }
 
     @Override
-    public void handleRecord(Map<String, Object> nameValues)
-            throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    public void setPrimaryKeySet(PrimaryKeySet primaryKeySet)
     {
-        if (Import.isVerboseEnabled())
+        super.setPrimaryKeySet(primaryKeySet);
+
+        if (primaryKeySet != null && config.getDeduplication().getPolicy() == DuplicatePolicy.LAST_WINS)
         {
-            printNameValues(nameValues);
+            trackWrittenRecords();
         }
+    }
 
-        if (addBatch(nameValues))
+    // Lookups are executed on this connection while previous batches are written,
+    // the connection is closed with this handler
+    public void setLookupConnection(Connection lookupConnection)
+    {
+        this.lookupConnection = lookupConnection;
+        this.lookupExecutor = Executors.newSingleThreadExecutor();
+
+        trackWrittenRecords();
+    }
+
+    public void setTargetTableIndex(TargetTableIndex targetTableIndex)
+    {
+        this.targetTableIndex = targetTableIndex;
+
+        if (targetTableIndex != null)
         {
-            return;
+            trackWrittenRecords();
         }
+    }
 
-        executeBatch();
+    // The cursor is closed with this handler
+    public void setSortedTargetTableCursor(SortedTargetTableCursor sortedCursor)
+    {
+        this.sortedCursor = sortedCursor;
+
+        if (sortedCursor != null)
+        {
+            trackWrittenRecords();
+        }
     }
 
-    protected void executeBatch() throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    private void trackWrittenRecords()
     {
-        if (nameValuesBuffer.isEmpty())
+        if (recentlyWrittenRecords != null)
         {
             return;
         }
 
-        try (ResultSet resultSet = selectBatch())
+        // Records of all pending batches should be kept
+        final int maxEntries = (2 + (config.getPrefetch() != null ? config.getPrefetch().getDepth() : 0))
+                * config.getBatchSize();
+
+        recentlyWrittenRecords = new LinkedHashMap<PrimaryKey, Map<String, Object>>(16, 0.75f, true)
         {
-            disableBatchExecution();
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Entry<PrimaryKey, Map<String, Object>> eldest)
+            {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    // Lookups may return records only written by pending batches, so pending inserts are flushed prior to updates
+    protected boolean isTrackingWrittenRecords()
+    {
+        return recentlyWrittenRecords != null;
+    }
 
-            handleRecordsBatch(toPrimaryKeysHashMap(resultSet));
+    // Parameters are collected when the lookup is prepared, so that it could be executed on another thread
+    private abstract class Lookup implements Callable<Map<PrimaryKey, Map<String, Object>>>
+    {
+        @Override
+        public abstract Map<PrimaryKey, Map<String, Object>> call() throws SQLException;
+    }
+
+    private Lookup completedLookup(final Map<PrimaryKey, Map<String, Object>> primaryKeysHashMap)
+    {
+        return new Lookup()
+        {
+            @Override
+            public Map<PrimaryKey, Map<String, Object>> call()
+            {
+                return primaryKeysHashMap;
+            }
+        };
+    }
+
+    private Lookup prepareLookup(List<Pair<PrimaryKey, Map<String, Object>>> records)
+            throws SQLException, ConfigurationException, ScriptException
+    {
+        if (sortedCursor != null && targetTableIndex == null)
+        {
+            try
+            {
+                return completedLookup(mergeJoinBatch(records));
+            }
+            catch (UnsortedInputException e)
+            {
+                if (!config.getMergeJoin().isFallbackToLookups())
+                {
+                    throw new IllegalStateException(e.getMessage(), e);
+                }
+
+                if (Import.isVerboseEnabled())
+                {
+                    Import.logVerbose(e.getMessage() + ", falling back to lookup queries");
+                }
+
+                closeQuietly(sortedCursor);
+
+                sortedCursor = null;
+            }
         }
-        finally
+
+        if (targetTableIndex != null)
+        {
+            Map<PrimaryKey, Map<String, Object>> primaryKeysHashMap = new HashMap<>();
+
+            for (Pair<PrimaryKey, Map<String, Object>> pair : records)
+            {
+                Map<String, Object> parsedResultSet = targetTableIndex.get(pair.getKey());
+
+                if (parsedResultSet != null)
+                {
+                    primaryKeysHashMap.put(pair.getKey(), parsedResultSet);
+                }
+            }
+
+            return completedLookup(primaryKeysHashMap);
+        }
+
+        List<Pair<PrimaryKey, Map<String, Object>>> batch = records;
+
+        if (primaryKeyFilter != null)
         {
-            nameValuesBuffer.clear();
+            batch = new ArrayList<>(records.size());
+
+            for (Pair<PrimaryKey, Map<String, Object>> pair : records)
+            {
+                if (primaryKeyFilter.mightContain(pair.getKey()))
+                {
+                    batch.add(pair);
+                }
+            }
+
+            skippedLookups.mark(records.size() - batch.size());
 
-            enableBatchExecution();
+            if (batch.isEmpty())
+            {
+                return completedLookup(new HashMap<PrimaryKey, Map<String, Object>>());
+            }
         }
+
+        final List<Object> parameters = new ArrayList<>(batch.size() * config.getPrimaryKeys().size());
+
+        final Set<PrimaryKey> keys = new HashSet<>();
+
+        for (Pair<PrimaryKey, Map<String, Object>> pair : batch)
+        {
+            PrimaryKey primaryKey = pair.getKey();
+
+            keys.add(primaryKey);
+
+            for (int i = 0; i < primaryKey.size(); i++)
+            {
+                Object columnValue = primaryKey.get(i);
+
+                if (Import.isVerboseEnabled())
+                {
+                    printNameValue(config.getPrimaryKeys().get(i), columnValue);
+                }
+
+                parameters.add(columnValue);
+            }
+        }
+
+        final int batchSize = batch.size();
+
+        return new Lookup()
+        {
+            @Override
+            public Map<PrimaryKey, Map<String, Object>> call() throws SQLException
+            {
+                if (config.getRangeLookup() != null)
+                {
+                    Map<PrimaryKey, Map<String, Object>> primaryKeysHashMap =
+                            rangeLookupBatch(parameters, keys, batchSize);
+
+                    if (primaryKeysHashMap != null)
+                    {
+                        return primaryKeysHashMap;
+                    }
+                }
+
+                try (ResultSet resultSet = selectBatch(parameters, batchSize))
+                {
+                    return toPrimaryKeysHashMap(resultSet);
+                }
+            }
+        };
     }
 
-    private void handleRecordsBatch(Map<String, Map<String, Object>> primaryKeysHashMap)
-            throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    // Returns null if keys of the batch are not numbers, or if the range has more rows than maxScanFactor allows
+    private Map<PrimaryKey, Map<String, Object>> rangeLookupBatch(List<Object> parameters, Set<PrimaryKey> keys, int batchSize)
+            throws SQLException
+    {
+        int numberOfPrimaryKeys = config.getPrimaryKeys().size();
+
+        Number min = null;
+        Number max = null;
+        boolean integral = true;
+
+        for (int i = 0; i < parameters.size(); i += numberOfPrimaryKeys)
+        {
+            Object value = parameters.get(i);
+
+            // Strings may be compared differently by the database,
+            // so the range may miss some of the keys
+            if (!(value instanceof Number))
+            {
+                return null;
+            }
+
+            Number number = (Number) value;
+
+            if (min == null || PrimaryKeyComparator.compareValues(number, min) < 0)
+            {
+                min = number;
+            }
+            if (max == null || PrimaryKeyComparator.compareValues(number, max) > 0)
+            {
+                max = number;
+            }
+
+            integral &= number instanceof Integer || number instanceof Long
+                    || number instanceof Short || number instanceof Byte
+                    || number instanceof BigInteger;
+        }
+
+        final int maxRows = (int) Math.ceil(batchSize * config.getRangeLookup().getMaxScanFactor());
+
+        if (integral && new BigDecimal(max.toString()).subtract(new BigDecimal(min.toString()))
+                .compareTo(BigDecimal.valueOf(maxRows)) >= 0)
+        {
+            // Range is sparse
+            return null;
+        }
+
+        final PreparedStatement statement = getOrCreateRangeSelectStatement();
+
+        statement.setMaxRows(maxRows + 1);
+        statement.setObject(1, min);
+        statement.setObject(2, max);
+
+        Map<PrimaryKey, Map<String, Object>> result = new HashMap<>();
+
+        try (ResultSet resultSet = Import.measureTime(selectStatementTimer, new Callable<ResultSet>()
+        {
+            @Override
+            public ResultSet call() throws SQLException
+            {
+                return statement.executeQuery();
+            }
+        }))
+        {
+            int numberOfRows = 0;
+
+            while (resultSet.next())
+            {
+                if (++numberOfRows > maxRows)
+                {
+                    if (Import.isVerboseEnabled())
+                    {
+                        Import.logVerbose("Range of keys [" + min + ", " + max
+                                + "] is sparse, using lookup by keys instead");
+                    }
+
+                    return null;
+                }
+
+                Map<String, Object> parsedResultSet = parseResultSet(resultSet);
+
+                PrimaryKey primaryKeys = config.getPrimaryKey(parsedResultSet);
+
+                if (keys.contains(primaryKeys))
+                {
+                    result.put(primaryKeys, parsedResultSet);
+                }
+            }
+        }
+
+        rangeLookups.mark();
+
+        return result;
+    }
+
+    private PreparedStatement getOrCreateRangeSelectStatement() throws SQLException
+    {
+        if (rangeSelectStatement == null)
+        {
+            String selectClause = plan.getSelectClause()
+                    + " WHERE " + config.escapeSqlName(config.getPrimaryKeys().get(0)) + " BETWEEN ? AND ?";
+
+            if (Import.isVerboseEnabled())
+            {
+                Import.logVerbose("Range SELECT statement used: " + selectClause);
+            }
+
+            rangeSelectStatement = lookupConnection.prepareStatement(selectClause);
+        }
+
+        return rangeSelectStatement;
+    }
+
+    private Map<PrimaryKey, Map<String, Object>> mergeJoinBatch(List<Pair<PrimaryKey, Map<String, Object>>> records)
+            throws SQLException, ConfigurationException, ScriptException, UnsortedInputException
     {
-        for (Pair<String, Map<String, Object>> pair : nameValuesBuffer)
+        Map<PrimaryKey, Map<String, Object>> primaryKeysHashMap = new HashMap<>();
+
+        for (Pair<PrimaryKey, Map<String, Object>> pair : records)
+        {
+            Map<String, Object> parsedResultSet = sortedCursor.seek(pair.getKey());
+
+            if (parsedResultSet != null)
+            {
+                primaryKeysHashMap.put(pair.getKey(), parsedResultSet);
+            }
+        }
+
+        return primaryKeysHashMap;
+    }
+
+    private void handleRecordsBatch(
+            List<Pair<PrimaryKey, Map<String, Object>>> records,
+            Map<PrimaryKey, Map<String, Object>> primaryKeysHashMap)
+                    throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    {
+        for (Pair<PrimaryKey, Map<String, Object>> pair : records)
         {
             Map<String, Object> nameValues = pair.getValue();
 
-            Map<String, Object> parsedResultSet = primaryKeysHashMap.get(pair.getKey());
+            Map<String, Object> parsedResultSet = null;
+
+            if (recentlyWrittenRecords != null)
+            {
+                parsedResultSet = recentlyWrittenRecords.get(pair.getKey());
+            }
+
+            if (parsedResultSet == null)
+            {
+                parsedResultSet = primaryKeysHashMap.get(pair.getKey());
+            }
+
+            boolean duplicate = isDuplicateOfWrittenRecord(pair.getKey());
+
+            if (parsedResultSet == null && duplicate)
+            {
+                // Previous record with the same keys may still be pending,
+                // so it's not visible to lookups, overwrite all of its columns
+                performUpdate(nameValues, null);
+
+                recordWritten(pair.getKey(), nameValues);
+
+                continue;
+            }
 
             if (parsedResultSet != null)
             {
+                // null means all columns should be updated
+                BitSet changedColumns = null;
+
                 if (!config.isForceUpdate())
                 {
-                    boolean dataChanged = false;
+                    BitSet dataChanged = findChangedColumns(nameValues, parsedResultSet);
 
-                    for (String targetTableColumnName : getOrderedTableColumnNames())
+                    if (dataChanged.isEmpty())
                     {
-                        Object oldValue = parsedResultSet.get(targetTableColumnName);
-                        Object newValue = transform(targetTableColumnName, nameValues);
-
-                        if (Import.isVerboseEnabled())
-                        {
-                            printNameValue(targetTableColumnName, newValue);
-                        }
-
-                        if (ObjectUtils.notEqual(oldValue, newValue))
-                        {
-                            dataChanged = true;
-                            break;
-                        }
+                        // No need to update the data, because there's no changes
+                        continue;
                     }
 
-                    if (!dataChanged)
+                    if (config.isUpdateChangedColumnsOnly())
                     {
-                        // No need to update the data, because there's no changes
-                        continue;
+                        changedColumns = dataChanged;
                     }
                 }
 
-                performUpdate(nameValues);
+                performUpdate(nameValues, changedColumns);
+
+                recordWritten(pair.getKey(), nameValues);
             }
             else
             {
@@ -195,51 +639,131 @@ public abstract class AbstractInsertUpdateRecordHandler extends AbstractRecordHa
                 // we may need to re-select remaining records from nameValuesBuffer.
                 // To avoid that we temporary disable batch executions
                 performInsert(nameValues);
+
+                if (primaryKeyFilter != null)
+                {
+                    primaryKeyFilter.put(pair.getKey());
+                }
+
+                recordWritten(pair.getKey(), nameValues);
             }
         }
     }
 
-    private Map<String, Map<String, Object>> toPrimaryKeysHashMap(ResultSet resultSet) throws SQLException
+    private boolean isDuplicateOfWrittenRecord(PrimaryKey keys)
     {
-        final Map<String, Map<String, Object>> result = new HashMap<>();
+        if (primaryKeySet == null
+                || config.getDeduplication().getPolicy() != DuplicatePolicy.LAST_WINS
+                || primaryKeySet.add(keys))
+        {
+            return false;
+        }
 
-        while (resultSet.next())
+        suppressedDuplicates.mark();
+
+        return true;
+    }
+
+    private void recordWritten(PrimaryKey keys, Map<String, Object> nameValues)
+            throws ConfigurationException, ScriptException
+    {
+        if (recentlyWrittenRecords == null)
+        {
+            return;
+        }
+
+        Object[] values = transformTableColumns(nameValues);
+
+        if (targetTableIndex != null)
         {
-            Map<String, Object> parsedResultSet = new HashMap<String, Object>();
+            targetTableIndex.put(keys, values);
+        }
+
+        CompiledColumn[] columns = getTableColumns();
+
+        Row writtenRecord = plan.getRowSchema().newRow();
 
-            for (String columnName : getOrderedTableColumnNames())
+        for (int i = 0; i < values.length; i++)
+        {
+            writtenRecord.set(columns[i].slot, values[i]);
+        }
+
+        recentlyWrittenRecords.put(keys, writtenRecord);
+    }
+
+    // Stops at the first changed column unless only changed columns are updated
+    private BitSet findChangedColumns(Map<String, Object> nameValues, Map<String, Object> parsedResultSet)
+            throws ConfigurationException, ScriptException
+    {
+        CompiledColumn[] columns = getTableColumns();
+
+        BitSet changedColumns = new BitSet(columns.length);
+
+        for (int i = 0; i < columns.length; i++)
+        {
+            Object oldValue = parsedResultSet.get(columns[i].name);
+            Object newValue = transform(columns[i], nameValues);
+
+            if (Import.isVerboseEnabled())
             {
-                parsedResultSet.put(columnName, resultSet.getObject(columnName));
+                printNameValue(columns[i].name, newValue);
             }
 
-            result.put(config.joinPrimaryKeys(parsedResultSet), parsedResultSet);
+            if (ObjectUtils.notEqual(oldValue, newValue))
+            {
+                changedColumns.set(i);
+
+                if (!config.isUpdateChangedColumnsOnly())
+                {
+                    break;
+                }
+            }
+        }
+
+        return changedColumns;
+    }
+
+    private Map<PrimaryKey, Map<String, Object>> toPrimaryKeysHashMap(ResultSet resultSet) throws SQLException
+    {
+        final Map<PrimaryKey, Map<String, Object>> result = new HashMap<>();
+
+        while (resultSet.next())
+        {
+            Map<String, Object> parsedResultSet = parseResultSet(resultSet);
+
+            result.put(config.getPrimaryKey(parsedResultSet), parsedResultSet);
         }
 
         return result;
     }
 
-    private ResultSet selectBatch() throws SQLException, ConfigurationException, ScriptException
+    private Map<String, Object> parseResultSet(ResultSet resultSet) throws SQLException
     {
-        PreparedStatement selectStatement = getOrCreateSelectStatement(nameValuesBuffer.size());
+        Row parsedResultSet = plan.getRowSchema().newRow();
+
+        for (String columnName : getOrderedTableColumnNames())
+        {
+            parsedResultSet.put(columnName, resultSet.getObject(columnName));
+        }
+
+        return parsedResultSet;
+    }
+
+    private ResultSet selectBatch(List<Object> parameters, int batchSize) throws SQLException
+    {
+        final PreparedStatement selectStatement = getOrCreateSelectStatement(batchSize);
 
         selectStatement.clearParameters();
 
+        CompiledColumn[] primaryKeyColumns = getPrimaryKeyColumns();
+
         int parameterIndex = 1;
 
-        for (int i = 0; i < nameValuesBuffer.size(); i++)
+        for (Object columnValue : parameters)
         {
-            Map<String, Object> nameValues = nameValuesBuffer.get(i).getValue();
-            for (String primaryKeyColumnName : config.getPrimaryKeys())
-            {
-                Object columnValue = transform(primaryKeyColumnName, nameValues);
-
-                if (Import.isVerboseEnabled())
-                {
-                    printNameValue(primaryKeyColumnName, columnValue);
-                }
-
-                selectStatement.setObject(parameterIndex++, columnValue);
-            }
+            // Parameters are values of primary keys of each record in the batch
+            primaryKeyColumns[(parameterIndex - 1) % primaryKeyColumns.length].binder
+                    .bind(selectStatement, parameterIndex++, columnValue);
         }
 
         return Import.measureTime(selectStatementTimer, new Callable<ResultSet>()
@@ -252,21 +776,18 @@ public abstract class AbstractInsertUpdateRecordHandler extends AbstractRecordHa
         });
     }
 
-    private boolean addBatch(Map<String, Object> nameValues) throws InterruptedException
+    private boolean addBatch(Map<String, Object> nameValues)
+            throws InterruptedException, ConfigurationException, ScriptException
     {
-        String keys = config.joinPrimaryKeys(nameValues);
+        // Records are matched with target table, deduplicated and routed using transformed values
+        // of primary keys, which are cached in the row and reused by the later phases
+        PrimaryKey transformedKeys = transformPrimaryKeys(nameValues);
 
         // Re-route early before strategy closed and while not all consumers were shutdown
-
-        // XXX Copy-paste:
-        // XXX Check duplicates should be performed on eval'ed/transformed values,
-        // right now it's partially true (i.e. eval'ed but not transformed values are used),
-        // and only if map function is declared in configuration
-        if (config.isIgnoreDuplicatePK())
+        if (config.isRoutedByPrimaryKeys())
         {
             // If needed re-route this to another handler based on keys hash
-
-            int partitionId = Math.abs(keys.hashCode() % threadCount);
+            int partitionId = transformedKeys.partition(threadCount);
 
             if (partitionId != threadId)
             {
@@ -275,15 +796,57 @@ public abstract class AbstractInsertUpdateRecordHandler extends AbstractRecordHa
             }
         }
 
-        nameValuesBuffer.add(Pair.of(keys, nameValues));
+        if (primaryKeySet != null
+                && config.getDeduplication().getPolicy() == DuplicatePolicy.FIRST_WINS
+                && !primaryKeySet.add(transformedKeys))
+        {
+            suppressedDuplicates.mark();
+
+            if (Import.isVerboseEnabled())
+            {
+                Import.logVerbose("Duplicate ignored for keys: " + transformedKeys);
+            }
+
+            return true;
+        }
+
+        nameValuesBuffer.add(Pair.of(transformedKeys, nameValues));
 
         return nameValuesBuffer.size() < config.getBatchSize();
     }
 
+    private Object[] transformTableColumns(Map<String, Object> nameValues)
+            throws ConfigurationException, ScriptException
+    {
+        CompiledColumn[] columns = getTableColumns();
+
+        Object[] values = new Object[columns.length];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = transform(columns[i], nameValues);
+        }
+
+        return values;
+    }
+
+    private void closeQuietly(SortedTargetTableCursor cursor)
+    {
+        try
+        {
+            cursor.close();
+        }
+        catch (IOException e)
+        {
+            //  Ignore
+        }
+    }
+
     protected abstract void performInsert(Map<String, Object> nameValues)
             throws SQLException, ConfigurationException, ScriptException, InterruptedException;
 
-    protected abstract void performUpdate(Map<String, Object> nameValues)
+    // Changed columns are indices of getOrderedTableColumnNames(), null means all columns
+    protected abstract void performUpdate(Map<String, Object> nameValues, BitSet changedColumns)
             throws SQLException, ConfigurationException, ScriptException;
 
     @Override
@@ -291,18 +854,38 @@ public abstract class AbstractInsertUpdateRecordHandler extends AbstractRecordHa
     {
         try
         {
-            if (!nameValuesBuffer.isEmpty())
+            if (!nameValuesBuffer.isEmpty() || !pendingBatches.isEmpty())
             {
                 throw new IllegalStateException("Subclasses should flush batched records prior to close");
             }
         }
         finally
         {
+            if (lookupExecutor != null)
+            {
+                lookupExecutor.shutdownNow();
+            }
+
             for (Entry<Integer, PreparedStatement> entry : selectStatements.entrySet())
             {
                 closeQuietly(entry.getValue());
             }
 
+            if (rangeSelectStatement != null)
+            {
+                closeQuietly(rangeSelectStatement);
+            }
+
+            if (sortedCursor != null)
+            {
+                closeQuietly(sortedCursor);
+            }
+
+            if (lookupConnection != connection)
+            {
+                closeQuietly(lookupConnection);
+            }
+
             super.close();
         }
     }
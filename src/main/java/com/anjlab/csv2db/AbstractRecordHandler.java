@@ -3,26 +3,22 @@ package com.anjlab.csv2db;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLDataException;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 
+import com.anjlab.csv2db.ExecutionPlan.CompiledColumn;
+import com.codahale.metrics.Meter;
+
 public abstract class AbstractRecordHandler implements RecordHandler
 {
-    private Set<String> transientColumns;
-
-    private List<String> orderedTableColumnNames;
-
-    private List<String> columnNamesWithInsertValues;
-
-    private List<String> columnNamesWithUpdateValues;
+    protected final ExecutionPlan plan;
 
     protected Configuration config;
 
@@ -38,22 +34,22 @@ public abstract class AbstractRecordHandler implements RecordHandler
 
     protected final int threadCount;
 
+    protected PrimaryKeySet primaryKeySet;
+
+    protected Meter suppressedDuplicates;
+
     public AbstractRecordHandler(
-            Configuration config,
+            ExecutionPlan plan,
             ScriptEngine scriptEngine,
             Connection connection,
             Router router,
             int threadId,
             int threadCount)
     {
-        this.config = config;
+        this.plan = plan;
+        this.config = plan.getConfiguration();
         this.scriptEngine = scriptEngine;
         this.connection = connection;
-        this.transientColumns = new HashSet<String>();
-        if (config.getTransientColumns() != null)
-        {
-            this.transientColumns.addAll(config.getTransientColumns());
-        }
         this.router = router;
         this.threadId = threadId;
         this.threadCount = threadCount;
@@ -95,121 +91,49 @@ public abstract class AbstractRecordHandler implements RecordHandler
         }
     }
 
-    protected List<String> getOrderedTableColumnNames()
+    public void setPrimaryKeySet(PrimaryKeySet primaryKeySet)
     {
-        if (orderedTableColumnNames != null)
-        {
-            return orderedTableColumnNames;
-        }
-
-        List<Integer> csvColumnIndices = new ArrayList<Integer>();
-        csvColumnIndices.addAll(config.getColumnMappings().keySet());
-        Collections.sort(csvColumnIndices);
+        this.primaryKeySet = primaryKeySet;
 
-        List<String> columnNames = new ArrayList<String>();
-
-        for (int csvColumnIndex : csvColumnIndices)
-        {
-            String columnName = config.getColumnMappings().get(csvColumnIndex);
-
-            if (!isTransientColumn(columnName))
-            {
-                columnNames.add(columnName);
-            }
-        }
-
-        if (config.getSyntheticColumns() != null)
+        if (primaryKeySet != null)
         {
-            List<String> copy = new ArrayList<>();
-            copy.addAll(config.getSyntheticColumns());
-            Collections.sort(copy);
-
-            for (String columnName : copy)
-            {
-                // There shouldn't be any transient columns between synthetic ones,
-                // but we'll check this anyway for consistency
-                if (!isTransientColumn(columnName))
-                {
-                    columnNames.add(columnName);
-                }
-            }
+            suppressedDuplicates = Import.METRIC_REGISTRY.meter("thread-" + threadId + ".suppressedDuplicates");
         }
-
-        return orderedTableColumnNames = columnNames;
     }
 
-    protected boolean isTransientColumn(String columnName)
+    protected List<String> getOrderedTableColumnNames()
     {
-        return transientColumns.contains(columnName);
+        return plan.getOrderedTableColumnNames();
     }
 
     protected List<String> getColumnNamesWithInsertValues()
     {
-        if (columnNamesWithInsertValues != null)
-        {
-            return columnNamesWithInsertValues;
-        }
-
-        if (config.getInsertValues() == null)
-        {
-            return columnNamesWithInsertValues = Collections.emptyList();
-        }
-
-        List<String> columnNames = new ArrayList<String>();
-        columnNames.addAll(config.getInsertValues().keySet());
-        Collections.sort(columnNames);
-
-        return columnNamesWithInsertValues = columnNames;
+        return plan.getColumnNamesWithInsertValues();
     }
 
     protected List<String> getColumnNamesWithUpdateValues()
     {
-        if (columnNamesWithUpdateValues != null)
-        {
-            return columnNamesWithUpdateValues;
-        }
-
-        if (config.getUpdateValues() == null)
-        {
-            return columnNamesWithUpdateValues = Collections.emptyList();
-        }
+        return plan.getColumnNamesWithUpdateValues();
+    }
 
-        List<String> columnNames = new ArrayList<String>();
-        columnNames.addAll(config.getUpdateValues().keySet());
-        Collections.sort(columnNames);
+    protected CompiledColumn[] getTableColumns()
+    {
+        return plan.getTableColumns();
+    }
 
-        return columnNamesWithUpdateValues = columnNames;
+    protected CompiledColumn[] getPrimaryKeyColumns()
+    {
+        return plan.getPrimaryKeyColumns();
     }
 
-    protected Object transform(String targetTableColumnName, Map<String, Object> nameValues) throws ConfigurationException, ScriptException
+    protected Object transform(CompiledColumn column, Map<String, Object> nameValues) throws ScriptException
     {
-        if (config.getTransform() != null)
-        {
-            ValueDefinition transformer =
-                    config.getTransform().get(targetTableColumnName);
-
-            if (transformer != null)
-            {
-                if (transformer.producesSQL())
-                {
-                    throw new ConfigurationException(
-                            "Transform definition for column '" + targetTableColumnName + "' produces SQL which is not supported. "
-                                    + "SQL expressions only supported for 'insertValues' and 'updateValues'.");
-                }
-
-                try
-                {
-                    return transformer.eval(targetTableColumnName, nameValues, scriptEngine);
-                }
-                catch (RuntimeException | ScriptException e)
-                {
-                    System.err.println("Error running transformation for column '" + targetTableColumnName + "'");
-                    throw e;
-                }
-            }
-        }
+        return plan.transform(column, nameValues, scriptEngine);
+    }
 
-        return nameValues.get(targetTableColumnName);
+    protected PrimaryKey transformPrimaryKeys(Map<String, Object> nameValues) throws ScriptException
+    {
+        return plan.transformPrimaryKeys(nameValues, scriptEngine);
     }
 
     protected Object eval(ValueDefinition definition, String targetTableColumnName, Map<String, Object> nameValues)
@@ -226,6 +150,19 @@ public abstract class AbstractRecordHandler implements RecordHandler
         }
     }
 
+    protected static void bind(PreparedStatement statement, int parameterIndex,
+            ColumnBinder binder, Object value, Map<String, Object> nameValues) throws SQLException
+    {
+        try
+        {
+            binder.bind(statement, parameterIndex, value);
+        }
+        catch (SQLDataException e)
+        {
+            throw new SQLDataException(e.getMessage() + " in record " + nameValues, e.getSQLState(), e);
+        }
+    }
+
     @Override
     public void close()
     {
@@ -0,0 +1,128 @@
+package com.anjlab.csv2db;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import com.anjlab.csv2db.ExecutionPlan.CompiledColumn;
+
+public class BatchTransformRecordHandler implements RecordHandler
+{
+    private final ExecutionPlan plan;
+
+    private final ScriptEngine scriptEngine;
+
+    private final RecordHandler delegate;
+
+    private final List<Row> buffer;
+
+    private final int batchSize;
+
+    public BatchTransformRecordHandler(ExecutionPlan plan, ScriptEngine scriptEngine, RecordHandler delegate)
+    {
+        this.plan = plan;
+        this.scriptEngine = scriptEngine;
+        this.delegate = delegate;
+        this.batchSize = Math.max(1, plan.getConfiguration().getBatchSize());
+        this.buffer = new ArrayList<>(batchSize);
+    }
+
+    @Override
+    public void handleRecord(Map<String, Object> nameValues)
+            throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    {
+        if (!(nameValues instanceof Row) || ((Row) nameValues).getSchema() != plan.getRowSchema())
+        {
+            // Values of other maps can't be cached, they will be transformed one by one
+            flush();
+            delegate.handleRecord(nameValues);
+            return;
+        }
+
+        buffer.add((Row) nameValues);
+
+        if (buffer.size() >= batchSize)
+        {
+            flush();
+        }
+    }
+
+    // Consumers flush when there are no more lines for them, because other consumers
+    // only accept re-routed rows until they finish
+    public void flush() throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    {
+        if (buffer.isEmpty())
+        {
+            return;
+        }
+
+        List<Row> rows = new ArrayList<>();
+
+        for (CompiledColumn column : plan.getBatchTransformColumns())
+        {
+            // Re-routed rows were already transformed by another consumer
+            rows.clear();
+
+            for (Row row : buffer)
+            {
+                if (!row.hasTransformed(column.slot))
+                {
+                    rows.add(row);
+                }
+            }
+
+            if (rows.isEmpty())
+            {
+                continue;
+            }
+
+            List<Object> values;
+
+            try
+            {
+                values = ((FunctionReference) column.transformer).evalBatch(scriptEngine, column.name, rows);
+            }
+            catch (RuntimeException e)
+            {
+                System.err.println("Error running transformation for column '" + column.name + "'");
+                throw e;
+            }
+
+            for (int i = 0; i < rows.size(); i++)
+            {
+                rows.get(i).setTransformed(column.slot, values.get(i));
+            }
+        }
+
+        List<Row> batch = new ArrayList<>(buffer);
+
+        buffer.clear();
+
+        for (Row row : batch)
+        {
+            delegate.handleRecord(row);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        catch (Exception e)
+        {
+            throw Import.runtimeException(e);
+        }
+        finally
+        {
+            delegate.close();
+        }
+    }
+}
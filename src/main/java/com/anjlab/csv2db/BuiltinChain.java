@@ -0,0 +1,49 @@
+package com.anjlab.csv2db;
+
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+
+public class BuiltinChain implements ValueDefinition
+{
+    private final BuiltinFunction[] functions;
+
+    public BuiltinChain(List<BuiltinFunction> functions)
+    {
+        this.functions = functions.toArray(new BuiltinFunction[functions.size()]);
+    }
+
+    @Override
+    public Object eval(String targetTableColumnName, Map<String, Object> nameValues, ScriptEngine scriptEngine)
+    {
+        Object value = functions[0].getSourceValue(targetTableColumnName, nameValues);
+
+        for (BuiltinFunction function : functions)
+        {
+            value = function.apply(value, nameValues);
+        }
+
+        return value;
+    }
+
+    @Override
+    public JsonElement toJsonElement()
+    {
+        JsonArray json = new JsonArray();
+        for (BuiltinFunction function : functions)
+        {
+            json.add(function.toJsonElement());
+        }
+        return json;
+    }
+
+    @Override
+    public boolean producesSQL()
+    {
+        return false;
+    }
+}
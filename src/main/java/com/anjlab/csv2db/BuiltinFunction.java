@@ -0,0 +1,331 @@
+package com.anjlab.csv2db;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Timestamp;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.script.ScriptEngine;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+public abstract class BuiltinFunction implements ValueDefinition
+{
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private final JsonObject definition;
+
+    private final String sourceColumnName;
+
+    protected BuiltinFunction(JsonObject definition)
+    {
+        this.definition = definition;
+        this.sourceColumnName = optionalString(definition, "column");
+    }
+
+    protected abstract Object apply(Object value, Map<String, Object> nameValues);
+
+    @Override
+    public Object eval(String targetTableColumnName, Map<String, Object> nameValues, ScriptEngine scriptEngine)
+    {
+        return apply(getSourceValue(targetTableColumnName, nameValues), nameValues);
+    }
+
+    protected Object getSourceValue(String targetTableColumnName, Map<String, Object> nameValues)
+    {
+        if (nameValues == null)
+        {
+            return null;
+        }
+
+        return nameValues.get(sourceColumnName != null ? sourceColumnName : targetTableColumnName);
+    }
+
+    @Override
+    public JsonElement toJsonElement()
+    {
+        return definition;
+    }
+
+    @Override
+    public boolean producesSQL()
+    {
+        return false;
+    }
+
+    public static BuiltinFunction parse(final JsonObject definition)
+    {
+        String name = definition.get("builtin").getAsString();
+
+        switch (name)
+        {
+        case "trim":
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    return value == null ? null : StringUtils.trim(value.toString());
+                }
+            };
+
+        case "trimToNull":
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    return value == null ? null : StringUtils.trimToNull(value.toString());
+                }
+            };
+
+        case "trimToEmpty":
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    return value == null ? "" : StringUtils.trimToEmpty(value.toString());
+                }
+            };
+
+        case "upper":
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    return value == null ? null : value.toString().toUpperCase();
+                }
+            };
+
+        case "lower":
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    return value == null ? null : value.toString().toLowerCase();
+                }
+            };
+
+        case "nullIf":
+            final String nullValue = requiredString(definition, "value");
+
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    return value == null || nullValue.equals(value.toString()) ? null : value;
+                }
+            };
+
+        case "default":
+            final String defaultValue = requiredString(definition, "value");
+
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    return value == null || value.toString().isEmpty() ? defaultValue : value;
+                }
+            };
+
+        case "regexReplace":
+            final Pattern pattern = Pattern.compile(requiredString(definition, "pattern"));
+            final String replacement = requiredString(definition, "replacement");
+
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    return value == null ? null : pattern.matcher(value.toString()).replaceAll(replacement);
+                }
+            };
+
+        case "parseDate":
+            final ThreadLocal<SimpleDateFormat> parseFormat =
+                    createDateFormat(requiredString(definition, "pattern"));
+
+            final String format = optionalString(definition, "format");
+
+            final ThreadLocal<SimpleDateFormat> outputFormat = format != null
+                    ? createDateFormat(format)
+                    : null;
+
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    if (value == null || StringUtils.isBlank(value.toString()))
+                    {
+                        return null;
+                    }
+
+                    try
+                    {
+                        Timestamp timestamp = new Timestamp(
+                                parseFormat.get().parse(value.toString().trim()).getTime());
+
+                        return outputFormat != null
+                                ? outputFormat.get().format(timestamp)
+                                : timestamp;
+                    }
+                    catch (ParseException e)
+                    {
+                        throw new IllegalArgumentException(
+                                "Cannot parse date '" + value + "' with pattern '"
+                                        + parseFormat.get().toPattern() + "'", e);
+                    }
+                }
+            };
+
+        case "md5":
+        case "sha1":
+        case "sha256":
+            final String algorithm = name.equals("md5") ? "MD5" : name.equals("sha1") ? "SHA-1" : "SHA-256";
+            final List<String> columns = optionalStrings(definition, "columns");
+
+            final ThreadLocal<MessageDigest> digest = new ThreadLocal<MessageDigest>()
+            {
+                @Override
+                protected MessageDigest initialValue()
+                {
+                    try
+                    {
+                        return MessageDigest.getInstance(algorithm);
+                    }
+                    catch (NoSuchAlgorithmException e)
+                    {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+
+            return new BuiltinFunction(definition)
+            {
+                @Override
+                protected Object apply(Object value, Map<String, Object> nameValues)
+                {
+                    MessageDigest messageDigest = digest.get();
+
+                    if (columns == null)
+                    {
+                        if (value == null)
+                        {
+                            return null;
+                        }
+
+                        messageDigest.update(value.toString().getBytes(StandardCharsets.UTF_8));
+                    }
+                    else
+                    {
+                        for (int i = 0; i < columns.size(); i++)
+                        {
+                            if (i > 0)
+                            {
+                                // Unit separator, so that ("ab", "c") and ("a", "bc") differ
+                                messageDigest.update((byte) 0x1f);
+                            }
+
+                            Object columnValue = nameValues != null ? nameValues.get(columns.get(i)) : null;
+
+                            if (columnValue != null)
+                            {
+                                messageDigest.update(columnValue.toString().getBytes(StandardCharsets.UTF_8));
+                            }
+                        }
+                    }
+
+                    return toHex(messageDigest.digest());
+                }
+            };
+
+        default:
+            throw new JsonParseException("Unsupported builtin: " + name);
+        }
+    }
+
+    private static String requiredString(JsonObject definition, String option)
+    {
+        String value = optionalString(definition, option);
+
+        if (value == null)
+        {
+            throw new JsonParseException(
+                    "Option '" + option + "' required for builtin '" + definition.get("builtin").getAsString() + "'");
+        }
+
+        return value;
+    }
+
+    private static String optionalString(JsonObject definition, String option)
+    {
+        JsonElement value = definition.get(option);
+
+        return value == null || value.isJsonNull() ? null : value.getAsString();
+    }
+
+    private static List<String> optionalStrings(JsonObject definition, String option)
+    {
+        JsonElement value = definition.get(option);
+
+        if (value == null || value.isJsonNull())
+        {
+            return null;
+        }
+
+        List<String> values = new ArrayList<>();
+
+        for (JsonElement element : value.getAsJsonArray())
+        {
+            values.add(element.getAsString());
+        }
+
+        return values;
+    }
+
+    private static ThreadLocal<SimpleDateFormat> createDateFormat(final String pattern)
+    {
+        // Fail fast on invalid patterns
+        new SimpleDateFormat(pattern);
+
+        return new ThreadLocal<SimpleDateFormat>()
+        {
+            @Override
+            protected SimpleDateFormat initialValue()
+            {
+                SimpleDateFormat format = new SimpleDateFormat(pattern);
+                format.setLenient(false);
+                return format;
+            }
+        };
+    }
+
+    private static String toHex(byte[] bytes)
+    {
+        char[] chars = new char[bytes.length * 2];
+
+        for (int i = 0; i < bytes.length; i++)
+        {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+
+        return new String(chars);
+    }
+}
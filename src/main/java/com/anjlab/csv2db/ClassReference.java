@@ -0,0 +1,183 @@
+package com.anjlab.csv2db;
+
+import java.lang.reflect.Type;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+import javax.script.ScriptEngine;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.reflect.TypeToken;
+
+// Classes are looked up by name or simple name among plugins registered with ServiceLoader,
+// and then by name on the classpath
+public class ClassReference implements ValueDefinition
+{
+    private final String className;
+
+    private final JsonObject args;
+
+    private transient volatile Object plugin;
+
+    public ClassReference(String className, JsonObject args)
+    {
+        this.className = className;
+        this.args = args;
+    }
+
+    public String getClassName()
+    {
+        return className;
+    }
+
+    public ValuePlugin getValuePlugin() throws ConfigurationException
+    {
+        return getPlugin(ValuePlugin.class);
+    }
+
+    public MapPlugin getMapPlugin() throws ConfigurationException
+    {
+        return getPlugin(MapPlugin.class);
+    }
+
+    private <T> T getPlugin(Class<T> pluginType) throws ConfigurationException
+    {
+        Object instance = plugin;
+
+        if (instance == null)
+        {
+            synchronized (this)
+            {
+                instance = plugin;
+
+                if (instance == null)
+                {
+                    instance = createPlugin(pluginType);
+
+                    plugin = instance;
+                }
+            }
+        }
+
+        if (!pluginType.isInstance(instance))
+        {
+            throw new ConfigurationException(
+                    "Class '" + className + "' should implement " + pluginType.getName());
+        }
+
+        return pluginType.cast(instance);
+    }
+
+    private <T> T createPlugin(Class<T> pluginType) throws ConfigurationException
+    {
+        ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
+
+        if (classLoader == null)
+        {
+            classLoader = ClassReference.class.getClassLoader();
+        }
+
+        T instance = null;
+
+        for (T candidate : ServiceLoader.load(pluginType, classLoader))
+        {
+            if (candidate.getClass().getName().equals(className)
+                    || candidate.getClass().getSimpleName().equals(className))
+            {
+                instance = candidate;
+                break;
+            }
+        }
+
+        if (instance == null)
+        {
+            try
+            {
+                Class<?> pluginClass = Class.forName(className, true, classLoader);
+
+                if (!pluginType.isAssignableFrom(pluginClass))
+                {
+                    throw new ConfigurationException(
+                            "Class '" + className + "' should implement " + pluginType.getName());
+                }
+
+                instance = pluginType.cast(pluginClass.newInstance());
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new ConfigurationException("Plugin class '" + className + "' not found");
+            }
+            catch (InstantiationException | IllegalAccessException e)
+            {
+                throw new ConfigurationException(
+                        "Error creating instance of '" + className + "': " + e.getMessage());
+            }
+        }
+
+        Map<String, Object> arguments = toMap(args);
+
+        if (instance instanceof ValuePlugin)
+        {
+            ((ValuePlugin) instance).init(arguments);
+        }
+        else if (instance instanceof MapPlugin)
+        {
+            ((MapPlugin) instance).init(arguments);
+        }
+
+        return instance;
+    }
+
+    private static Map<String, Object> toMap(JsonObject args)
+    {
+        if (args == null)
+        {
+            return Collections.emptyMap();
+        }
+
+        Type type = new TypeToken<LinkedHashMap<String, Object>>() {}.getType();
+
+        Map<String, Object> map = new Gson().fromJson(args, type);
+
+        return Collections.unmodifiableMap(map);
+    }
+
+    @Override
+    public Object eval(String targetTableColumnName, Map<String, Object> nameValues, ScriptEngine scriptEngine)
+    {
+        ValuePlugin valuePlugin;
+
+        try
+        {
+            valuePlugin = getValuePlugin();
+        }
+        catch (ConfigurationException e)
+        {
+            throw new RuntimeException(e.getMessage(), e);
+        }
+
+        return valuePlugin.eval(targetTableColumnName, nameValues);
+    }
+
+    @Override
+    public JsonElement toJsonElement()
+    {
+        JsonObject json = new JsonObject();
+        json.addProperty("class", className);
+        if (args != null)
+        {
+            json.add("args", args);
+        }
+        return json;
+    }
+
+    @Override
+    public boolean producesSQL()
+    {
+        return false;
+    }
+}
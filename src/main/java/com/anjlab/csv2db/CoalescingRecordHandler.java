@@ -0,0 +1,141 @@
+package com.anjlab.csv2db;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import com.anjlab.csv2db.Configuration.CoalesceEviction;
+import com.codahale.metrics.Meter;
+
+public class CoalescingRecordHandler implements RecordHandler
+{
+    private final ExecutionPlan plan;
+
+    private final Configuration config;
+
+    private final ScriptEngine scriptEngine;
+
+    private final Router router;
+
+    private final int threadId;
+
+    private final int threadCount;
+
+    private final RecordHandler delegate;
+
+    private final LinkedHashMap<PrimaryKey, Map<String, Object>> window;
+
+    private final Meter coalescedRows;
+
+    public CoalescingRecordHandler(
+            ExecutionPlan plan,
+            ScriptEngine scriptEngine,
+            Router router,
+            int threadId,
+            int threadCount,
+            RecordHandler delegate)
+    {
+        this.plan = plan;
+        this.config = plan.getConfiguration();
+        this.scriptEngine = scriptEngine;
+        this.router = router;
+        this.threadId = threadId;
+        this.threadCount = threadCount;
+        this.delegate = delegate;
+
+        // Records of recently used keys are kept longer in LRU mode
+        this.window = new LinkedHashMap<>(16, 0.75f,
+                config.getCoalesce().getEviction() == CoalesceEviction.LRU);
+
+        this.coalescedRows = Import.METRIC_REGISTRY.meter("thread-" + threadId + ".coalescedRows");
+    }
+
+    @Override
+    public void handleRecord(Map<String, Object> nameValues)
+            throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    {
+        PrimaryKey keys = plan.transformPrimaryKeys(nameValues, scriptEngine);
+
+        if (config.isRoutedByPrimaryKeys())
+        {
+            // Route before coalescing, otherwise the record may be re-routed by the underlying
+            // handler after other consumers have finished
+            int partitionId = keys.partition(threadCount);
+
+            if (partitionId != threadId)
+            {
+                router.dispatch(nameValues, partitionId);
+                return;
+            }
+        }
+
+        int windowSize = config.getCoalesce().getWindowSize();
+
+        if (windowSize > 0
+                && config.getCoalesce().getEviction() == CoalesceEviction.FLUSH_ALL
+                && window.size() >= windowSize
+                && !window.containsKey(keys))
+        {
+            // Flush before adding a new key, not after, so that repeats of the key
+            // that arrive next are coalesced with it in the new window
+            flush();
+        }
+
+        if (window.put(keys, nameValues) != null)
+        {
+            coalescedRows.mark();
+            return;
+        }
+
+        if (windowSize <= 0)
+        {
+            return;
+        }
+
+        if (config.getCoalesce().getEviction() != CoalesceEviction.FLUSH_ALL
+                && window.size() > windowSize)
+        {
+            Iterator<Map<String, Object>> eldest = window.values().iterator();
+            Map<String, Object> evicted = eldest.next();
+            eldest.remove();
+
+            delegate.handleRecord(evicted);
+        }
+    }
+
+    private void flush() throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    {
+        List<Map<String, Object>> survivors = new ArrayList<>(window.values());
+
+        window.clear();
+
+        for (Map<String, Object> nameValues : survivors)
+        {
+            delegate.handleRecord(nameValues);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            flush();
+        }
+        catch (Exception e)
+        {
+            throw Import.runtimeException(e);
+        }
+        finally
+        {
+            delegate.close();
+        }
+    }
+}
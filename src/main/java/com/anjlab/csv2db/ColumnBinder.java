@@ -0,0 +1,445 @@
+package com.anjlab.csv2db;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLDataException;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.anjlab.csv2db.Configuration.TypedBindingOptions;
+
+// CSV text is parsed to the Java type of the column on the client, so that the database
+// doesn't have to cast untyped parameters. Blank strings are bound as NULL, except for character columns.
+public abstract class ColumnBinder
+{
+    public static final ColumnBinder OBJECT = new ColumnBinder(null, Types.JAVA_OBJECT, "OBJECT")
+    {
+        @Override
+        public void bind(PreparedStatement statement, int parameterIndex, Object value) throws SQLException
+        {
+            statement.setObject(parameterIndex, value);
+        }
+
+        @Override
+        protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                throws SQLException
+        {
+            statement.setObject(parameterIndex, value);
+        }
+    };
+
+    protected final String columnName;
+
+    protected final int sqlType;
+
+    protected final String typeName;
+
+    protected ColumnBinder(String columnName, int sqlType, String typeName)
+    {
+        this.columnName = columnName;
+        this.sqlType = sqlType;
+        this.typeName = typeName;
+    }
+
+    public String getColumnName()
+    {
+        return columnName;
+    }
+
+    public int getSqlType()
+    {
+        return sqlType;
+    }
+
+    public void bind(PreparedStatement statement, int parameterIndex, Object value) throws SQLException
+    {
+        if (value == null || (value instanceof String && StringUtils.isBlank((String) value)))
+        {
+            statement.setNull(parameterIndex, sqlType);
+            return;
+        }
+
+        try
+        {
+            bindValue(statement, parameterIndex, value);
+        }
+        catch (IllegalArgumentException | ArithmeticException | ParseException e)
+        {
+            throw new SQLDataException(
+                    "Cannot convert '" + value + "' to " + typeName + " for column '" + columnName + "'",
+                    "22018", e);
+        }
+    }
+
+    protected abstract void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+            throws SQLException, ParseException;
+
+    public static Map<String, ColumnBinder> load(Configuration config, Connection connection)
+            throws SQLException, ConfigurationException
+    {
+        DatabaseMetaData metaData = connection.getMetaData();
+
+        String schema = null;
+        String table = config.getTargetTable();
+
+        int dotIndex = table.lastIndexOf('.');
+
+        if (dotIndex > 0)
+        {
+            schema = table.substring(0, dotIndex);
+            table = table.substring(dotIndex + 1);
+        }
+
+        Map<String, ColumnBinder> binders = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        // Unquoted identifiers may be stored in upper or lower case depending on the database
+        String[][] candidates = {
+                { schema, table },
+                { schema == null ? null : schema.toUpperCase(), table.toUpperCase() },
+                { schema == null ? null : schema.toLowerCase(), table.toLowerCase() } };
+
+        for (String[] candidate : candidates)
+        {
+            try (ResultSet resultSet = metaData.getColumns(null, candidate[0], candidate[1], null))
+            {
+                while (resultSet.next())
+                {
+                    String columnName = resultSet.getString("COLUMN_NAME");
+
+                    if (!binders.containsKey(columnName))
+                    {
+                        binders.put(columnName, forType(
+                                columnName,
+                                resultSet.getInt("DATA_TYPE"),
+                                resultSet.getString("TYPE_NAME"),
+                                config.getTypedBinding()));
+                    }
+                }
+            }
+
+            if (!binders.isEmpty())
+            {
+                break;
+            }
+        }
+
+        if (binders.isEmpty())
+        {
+            throw new ConfigurationException(
+                    "Columns of '" + config.getTargetTable() + "' not found in database metadata, "
+                            + "typedBinding requires an existing targetTable");
+        }
+
+        return binders;
+    }
+
+    public static ColumnBinder forType(String columnName, int sqlType, String typeName, TypedBindingOptions options)
+    {
+        switch (sqlType)
+        {
+        case Types.BIGINT:
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    statement.setLong(parameterIndex, toLong(value));
+                }
+            };
+
+        case Types.INTEGER:
+        case Types.SMALLINT:
+        case Types.TINYINT:
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    long longValue = toLong(value);
+
+                    if (longValue < Integer.MIN_VALUE || longValue > Integer.MAX_VALUE)
+                    {
+                        throw new ArithmeticException("integer overflow");
+                    }
+
+                    statement.setInt(parameterIndex, (int) longValue);
+                }
+            };
+
+        case Types.DECIMAL:
+        case Types.NUMERIC:
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    statement.setBigDecimal(parameterIndex, toBigDecimal(value));
+                }
+            };
+
+        case Types.DOUBLE:
+        case Types.FLOAT:
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    statement.setDouble(parameterIndex, toDouble(value));
+                }
+            };
+
+        case Types.REAL:
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    statement.setFloat(parameterIndex, (float) toDouble(value));
+                }
+            };
+
+        case Types.BOOLEAN:
+        case Types.BIT:
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    statement.setBoolean(parameterIndex, toBoolean(value));
+                }
+            };
+
+        case Types.DATE:
+            final ThreadLocal<SimpleDateFormat> dateFormat = createDateFormat(
+                    options != null ? options.getDateFormat() : null);
+
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException, ParseException
+                {
+                    java.sql.Date date;
+
+                    if (value instanceof java.util.Date)
+                    {
+                        date = new java.sql.Date(((java.util.Date) value).getTime());
+                    }
+                    else if (dateFormat != null)
+                    {
+                        date = new java.sql.Date(dateFormat.get().parse(value.toString().trim()).getTime());
+                    }
+                    else
+                    {
+                        date = java.sql.Date.valueOf(value.toString().trim());
+                    }
+
+                    statement.setDate(parameterIndex, date);
+                }
+            };
+
+        case Types.TIMESTAMP:
+            final ThreadLocal<SimpleDateFormat> timestampFormat = createDateFormat(
+                    options != null ? options.getTimestampFormat() : null);
+
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException, ParseException
+                {
+                    Timestamp timestamp;
+
+                    if (value instanceof Timestamp)
+                    {
+                        timestamp = (Timestamp) value;
+                    }
+                    else if (value instanceof java.util.Date)
+                    {
+                        timestamp = new Timestamp(((java.util.Date) value).getTime());
+                    }
+                    else if (timestampFormat != null)
+                    {
+                        timestamp = new Timestamp(timestampFormat.get().parse(value.toString().trim()).getTime());
+                    }
+                    else
+                    {
+                        timestamp = Timestamp.valueOf(value.toString().trim());
+                    }
+
+                    statement.setTimestamp(parameterIndex, timestamp);
+                }
+            };
+
+        case Types.TIME:
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    statement.setTime(parameterIndex, value instanceof java.util.Date
+                            ? new Time(((java.util.Date) value).getTime())
+                            : Time.valueOf(value.toString().trim()));
+                }
+            };
+
+        case Types.CHAR:
+        case Types.VARCHAR:
+        case Types.LONGVARCHAR:
+        case Types.NCHAR:
+        case Types.NVARCHAR:
+        case Types.LONGNVARCHAR:
+        case Types.CLOB:
+        case Types.NCLOB:
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                public void bind(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    // Blank strings are values of character columns
+                    if (value == null)
+                    {
+                        statement.setNull(parameterIndex, sqlType);
+                    }
+                    else
+                    {
+                        statement.setString(parameterIndex, value.toString());
+                    }
+                }
+
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    statement.setString(parameterIndex, value.toString());
+                }
+            };
+
+        default:
+            return new ColumnBinder(columnName, sqlType, typeName)
+            {
+                @Override
+                protected void bindValue(PreparedStatement statement, int parameterIndex, Object value)
+                        throws SQLException
+                {
+                    statement.setObject(parameterIndex, value);
+                }
+            };
+        }
+    }
+
+    private static ThreadLocal<SimpleDateFormat> createDateFormat(final String pattern)
+    {
+        if (pattern == null)
+        {
+            return null;
+        }
+
+        // Fail fast on invalid patterns
+        new SimpleDateFormat(pattern);
+
+        return new ThreadLocal<SimpleDateFormat>()
+        {
+            @Override
+            protected SimpleDateFormat initialValue()
+            {
+                SimpleDateFormat format = new SimpleDateFormat(pattern);
+                format.setLenient(false);
+                return format;
+            }
+        };
+    }
+
+    protected static long toLong(Object value)
+    {
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte)
+        {
+            return ((Number) value).longValue();
+        }
+
+        if (value instanceof String)
+        {
+            String text = ((String) value).trim();
+
+            try
+            {
+                return Long.parseLong(text);
+            }
+            catch (NumberFormatException e)
+            {
+                // Values like "1.0" or "1e3"
+                return new BigDecimal(text).longValueExact();
+            }
+        }
+
+        return toBigDecimal(value).longValueExact();
+    }
+
+    protected static BigDecimal toBigDecimal(Object value)
+    {
+        if (value instanceof BigDecimal)
+        {
+            return (BigDecimal) value;
+        }
+
+        return new BigDecimal(value.toString().trim());
+    }
+
+    protected static double toDouble(Object value)
+    {
+        if (value instanceof Number)
+        {
+            return ((Number) value).doubleValue();
+        }
+
+        return Double.parseDouble(value.toString().trim());
+    }
+
+    protected static boolean toBoolean(Object value)
+    {
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value;
+        }
+
+        if (value instanceof Number)
+        {
+            return ((Number) value).doubleValue() != 0;
+        }
+
+        String text = value.toString().trim();
+
+        if ("true".equalsIgnoreCase(text) || "t".equalsIgnoreCase(text) || "yes".equalsIgnoreCase(text)
+                || "y".equalsIgnoreCase(text) || "1".equals(text))
+        {
+            return true;
+        }
+
+        if ("false".equalsIgnoreCase(text) || "f".equalsIgnoreCase(text) || "no".equalsIgnoreCase(text)
+                || "n".equalsIgnoreCase(text) || "0".equals(text))
+        {
+            return false;
+        }
+
+        throw new IllegalArgumentException("Not a boolean: " + text);
+    }
+}
@@ -21,7 +21,9 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -51,6 +53,11 @@ public class Configuration
         INSERT, MERGE, INSERTONLY
     }
 
+    public enum ScriptingEngine
+    {
+        NASHORN, GRAALJS
+    }
+
     public static class CSVOptions
     {
         private char separatorChar = CSVParser.DEFAULT_SEPARATOR;
@@ -121,6 +128,461 @@ public class Configuration
         }
     }
 
+    public static class PrimaryKeyFilterOptions
+    {
+        private double falsePositiveProbability = 0.01;
+        private long expectedNumberOfNewKeys = 1000000;
+        private int fetchSize = 10000;
+
+        public double getFalsePositiveProbability()
+        {
+            return falsePositiveProbability;
+        }
+
+        public void setFalsePositiveProbability(double falsePositiveProbability)
+        {
+            this.falsePositiveProbability = falsePositiveProbability;
+        }
+
+        public long getExpectedNumberOfNewKeys()
+        {
+            return expectedNumberOfNewKeys;
+        }
+
+        public void setExpectedNumberOfNewKeys(long expectedNumberOfNewKeys)
+        {
+            this.expectedNumberOfNewKeys = expectedNumberOfNewKeys;
+        }
+
+        public int getFetchSize()
+        {
+            return fetchSize;
+        }
+
+        public void setFetchSize(int fetchSize)
+        {
+            this.fetchSize = fetchSize;
+        }
+    }
+
+    public static class PreloadOptions
+    {
+        private long maxMemoryMB = 512;
+        private int fetchSize = 10000;
+        private String tempDirectory;
+
+        public long getMaxMemoryMB()
+        {
+            return maxMemoryMB;
+        }
+
+        public void setMaxMemoryMB(long maxMemoryMB)
+        {
+            this.maxMemoryMB = maxMemoryMB;
+        }
+
+        public int getFetchSize()
+        {
+            return fetchSize;
+        }
+
+        public void setFetchSize(int fetchSize)
+        {
+            this.fetchSize = fetchSize;
+        }
+
+        public String getTempDirectory()
+        {
+            return tempDirectory;
+        }
+
+        public void setTempDirectory(String tempDirectory)
+        {
+            this.tempDirectory = tempDirectory;
+        }
+    }
+
+    public static class MergeJoinOptions
+    {
+        private int fetchSize = 10000;
+        private String orderBy;
+        private boolean fallbackToLookups;
+
+        public int getFetchSize()
+        {
+            return fetchSize;
+        }
+
+        public void setFetchSize(int fetchSize)
+        {
+            this.fetchSize = fetchSize;
+        }
+
+        public String getOrderBy()
+        {
+            return orderBy;
+        }
+
+        public void setOrderBy(String orderBy)
+        {
+            this.orderBy = orderBy;
+        }
+
+        public boolean isFallbackToLookups()
+        {
+            return fallbackToLookups;
+        }
+
+        public void setFallbackToLookups(boolean fallbackToLookups)
+        {
+            this.fallbackToLookups = fallbackToLookups;
+        }
+    }
+
+    public static class ExternalSortOptions
+    {
+        private long maxMemoryMB = 256;
+        private String tempDirectory;
+
+        public long getMaxMemoryMB()
+        {
+            return maxMemoryMB;
+        }
+
+        public void setMaxMemoryMB(long maxMemoryMB)
+        {
+            this.maxMemoryMB = maxMemoryMB;
+        }
+
+        public String getTempDirectory()
+        {
+            return tempDirectory;
+        }
+
+        public void setTempDirectory(String tempDirectory)
+        {
+            this.tempDirectory = tempDirectory;
+        }
+    }
+
+    public static class RangeLookupOptions
+    {
+        private double maxScanFactor = 2;
+
+        public double getMaxScanFactor()
+        {
+            return maxScanFactor;
+        }
+
+        public void setMaxScanFactor(double maxScanFactor)
+        {
+            this.maxScanFactor = maxScanFactor;
+        }
+    }
+
+    public static class PrefetchOptions
+    {
+        private int depth = 1;
+
+        public int getDepth()
+        {
+            return depth;
+        }
+
+        public void setDepth(int depth)
+        {
+            this.depth = depth;
+        }
+    }
+
+    public enum DuplicatePolicy
+    {
+        FIRST_WINS, LAST_WINS
+    }
+
+    public static class DeduplicationOptions
+    {
+        private DuplicatePolicy policy = DuplicatePolicy.FIRST_WINS;
+        private long maxMemoryMB = 1024;
+
+        public DuplicatePolicy getPolicy()
+        {
+            return policy;
+        }
+
+        public void setPolicy(DuplicatePolicy policy)
+        {
+            this.policy = policy;
+        }
+
+        public long getMaxMemoryMB()
+        {
+            return maxMemoryMB;
+        }
+
+        public void setMaxMemoryMB(long maxMemoryMB)
+        {
+            this.maxMemoryMB = maxMemoryMB;
+        }
+    }
+
+    public enum CoalesceEviction
+    {
+        FIFO, LRU, FLUSH_ALL
+    }
+
+    public static class CoalesceOptions
+    {
+        private int windowSize;
+        private CoalesceEviction eviction = CoalesceEviction.FIFO;
+
+        public int getWindowSize()
+        {
+            return windowSize;
+        }
+
+        public void setWindowSize(int windowSize)
+        {
+            this.windowSize = windowSize;
+        }
+
+        public CoalesceEviction getEviction()
+        {
+            return eviction;
+        }
+
+        public void setEviction(CoalesceEviction eviction)
+        {
+            this.eviction = eviction;
+        }
+    }
+
+    public static class TypedBindingOptions
+    {
+        private String dateFormat;
+        private String timestampFormat;
+
+        public String getDateFormat()
+        {
+            return dateFormat;
+        }
+
+        public void setDateFormat(String dateFormat)
+        {
+            this.dateFormat = dateFormat;
+        }
+
+        public String getTimestampFormat()
+        {
+            return timestampFormat;
+        }
+
+        public void setTimestampFormat(String timestampFormat)
+        {
+            this.timestampFormat = timestampFormat;
+        }
+    }
+
+    public static class FilterOptions
+    {
+        private int column = -1;
+        private Boolean empty;
+        private String equals;
+        private List<String> in;
+        private String regex;
+        private Double min;
+        private Double max;
+        private boolean negate;
+
+        public int getColumn()
+        {
+            return column;
+        }
+
+        public void setColumn(int column)
+        {
+            this.column = column;
+        }
+
+        public Boolean getEmpty()
+        {
+            return empty;
+        }
+
+        public void setEmpty(Boolean empty)
+        {
+            this.empty = empty;
+        }
+
+        public String getEquals()
+        {
+            return equals;
+        }
+
+        public void setEquals(String equals)
+        {
+            this.equals = equals;
+        }
+
+        public List<String> getIn()
+        {
+            return in;
+        }
+
+        public void setIn(List<String> in)
+        {
+            this.in = in;
+        }
+
+        public String getRegex()
+        {
+            return regex;
+        }
+
+        public void setRegex(String regex)
+        {
+            this.regex = regex;
+        }
+
+        public Double getMin()
+        {
+            return min;
+        }
+
+        public void setMin(Double min)
+        {
+            this.min = min;
+        }
+
+        public Double getMax()
+        {
+            return max;
+        }
+
+        public void setMax(Double max)
+        {
+            this.max = max;
+        }
+
+        public boolean isNegate()
+        {
+            return negate;
+        }
+
+        public void setNegate(boolean negate)
+        {
+            this.negate = negate;
+        }
+    }
+
+    public enum LookupMissPolicy
+    {
+        NULL, FAIL, INSERT
+    }
+
+    public static class LookupOptions
+    {
+        private String query;
+        private String csv;
+        private CSVOptions csvOptions;
+        private int keyColumn = 0;
+        private int valueColumn = 1;
+        private LookupMissPolicy onMiss = LookupMissPolicy.NULL;
+        private String insert;
+        private String fetch;
+        private int maxCachedEntries = 10000;
+
+        public String getQuery()
+        {
+            return query;
+        }
+
+        public void setQuery(String query)
+        {
+            this.query = query;
+        }
+
+        public String getCsv()
+        {
+            return csv;
+        }
+
+        public void setCsv(String csv)
+        {
+            this.csv = csv;
+        }
+
+        public CSVOptions getCsvOptions()
+        {
+            return csvOptions;
+        }
+
+        public void setCsvOptions(CSVOptions csvOptions)
+        {
+            this.csvOptions = csvOptions;
+        }
+
+        public int getKeyColumn()
+        {
+            return keyColumn;
+        }
+
+        public void setKeyColumn(int keyColumn)
+        {
+            this.keyColumn = keyColumn;
+        }
+
+        public int getValueColumn()
+        {
+            return valueColumn;
+        }
+
+        public void setValueColumn(int valueColumn)
+        {
+            this.valueColumn = valueColumn;
+        }
+
+        public LookupMissPolicy getOnMiss()
+        {
+            return onMiss;
+        }
+
+        public void setOnMiss(LookupMissPolicy onMiss)
+        {
+            this.onMiss = onMiss;
+        }
+
+        public String getInsert()
+        {
+            return insert;
+        }
+
+        public void setInsert(String insert)
+        {
+            this.insert = insert;
+        }
+
+        public String getFetch()
+        {
+            return fetch;
+        }
+
+        public void setFetch(String fetch)
+        {
+            this.fetch = fetch;
+        }
+
+        public int getMaxCachedEntries()
+        {
+            return maxCachedEntries;
+        }
+
+        public void setMaxCachedEntries(int maxCachedEntries)
+        {
+            this.maxCachedEntries = maxCachedEntries;
+        }
+    }
+
     private OperationMode operationMode;
     private String driverClass;
     private String connectionUrl;
@@ -140,15 +602,29 @@ public class Configuration
     private Map<String, ValueDefinition> transform;
     private ValueDefinition map;
     private List<String> scripting;
+    private ScriptingEngine scriptingEngine;
     private int batchSize = DEFAULT_BATCH_SIZE;
     private CSVOptions csvOptions;
     private long limit;
     private boolean forceUpdate;
+    private boolean updateChangedColumnsOnly;
     private boolean ignoreNullPK;
     private boolean ignoreDuplicatePK;
+    private PrimaryKeyFilterOptions primaryKeyFilter;
+    private PreloadOptions preloadTargetTable;
+    private MergeJoinOptions mergeJoin;
+    private ExternalSortOptions externalSort;
+    private RangeLookupOptions rangeLookup;
+    private PrefetchOptions prefetch;
+    private DeduplicationOptions deduplication;
+    private CoalesceOptions coalesce;
+    private TypedBindingOptions typedBinding;
+    private List<FilterOptions> filter;
+    private Map<String, LookupOptions> lookups;
 
     private transient FileResolver fileResolver;
     private transient ScriptEngine scriptEngine;
+    private transient volatile RowSchema rowSchema;
 
     public static Configuration fromJson(String filename) throws FileNotFoundException
     {
@@ -252,6 +728,7 @@ public class Configuration
     public void setColumnMappings(Map<Integer, String> columnMappings)
     {
         this.columnMappings = columnMappings;
+        this.rowSchema = null;
     }
 
     public List<String> getTransientColumns()
@@ -272,14 +749,15 @@ public class Configuration
     public void setSyntheticColumns(List<String> syntheticColumns)
     {
         this.syntheticColumns = syntheticColumns;
+        this.rowSchema = null;
     }
 
-    public FunctionReference getMap()
+    public ValueDefinition getMap()
     {
-        return (FunctionReference) map;
+        return map;
     }
 
-    public void setMap(FunctionReference map)
+    public void setMap(ValueDefinition map)
     {
         this.map = map;
     }
@@ -312,6 +790,7 @@ public class Configuration
     public void setPrimaryKeys(List<String> primaryKeys)
     {
         this.primaryKeys = primaryKeys;
+        this.rowSchema = null;
     }
 
     public Map<String, String> getConnectionProperties() throws ConfigurationException
@@ -421,6 +900,16 @@ public class Configuration
         this.scripting = scripting;
     }
 
+    public ScriptingEngine getScriptingEngine()
+    {
+        return scriptingEngine;
+    }
+
+    public void setScriptingEngine(ScriptingEngine scriptingEngine)
+    {
+        this.scriptingEngine = scriptingEngine;
+    }
+
     public int getBatchSize()
     {
         return batchSize <= 0 ? 1 : batchSize;
@@ -441,6 +930,16 @@ public class Configuration
         this.forceUpdate = forceUpdate;
     }
 
+    public boolean isUpdateChangedColumnsOnly()
+    {
+        return updateChangedColumnsOnly;
+    }
+
+    public void setUpdateChangedColumnsOnly(boolean updateChangedColumnsOnly)
+    {
+        this.updateChangedColumnsOnly = updateChangedColumnsOnly;
+    }
+
     public boolean isIgnoreNullPK()
     {
         return ignoreNullPK;
@@ -461,6 +960,125 @@ public class Configuration
         this.ignoreDuplicatePK = ignoreDuplicatePK;
     }
 
+    // Records with the same keys go to the same thread if duplicates are handled by the thread
+    // that wrote the first record, or if threads share the preloaded index
+    public boolean isRoutedByPrimaryKeys()
+    {
+        return ignoreDuplicatePK
+                || (deduplication != null && deduplication.getPolicy() == DuplicatePolicy.LAST_WINS)
+                || (preloadTargetTable != null && operationMode != OperationMode.INSERT);
+    }
+
+    public PrimaryKeyFilterOptions getPrimaryKeyFilter()
+    {
+        return primaryKeyFilter;
+    }
+
+    public void setPrimaryKeyFilter(PrimaryKeyFilterOptions primaryKeyFilter)
+    {
+        this.primaryKeyFilter = primaryKeyFilter;
+    }
+
+    public PreloadOptions getPreloadTargetTable()
+    {
+        return preloadTargetTable;
+    }
+
+    public void setPreloadTargetTable(PreloadOptions preloadTargetTable)
+    {
+        this.preloadTargetTable = preloadTargetTable;
+    }
+
+    public MergeJoinOptions getMergeJoin()
+    {
+        return mergeJoin;
+    }
+
+    public void setMergeJoin(MergeJoinOptions mergeJoin)
+    {
+        this.mergeJoin = mergeJoin;
+    }
+
+    public ExternalSortOptions getExternalSort()
+    {
+        return externalSort;
+    }
+
+    public void setExternalSort(ExternalSortOptions externalSort)
+    {
+        this.externalSort = externalSort;
+    }
+
+    public RangeLookupOptions getRangeLookup()
+    {
+        return rangeLookup;
+    }
+
+    public void setRangeLookup(RangeLookupOptions rangeLookup)
+    {
+        this.rangeLookup = rangeLookup;
+    }
+
+    public PrefetchOptions getPrefetch()
+    {
+        return prefetch;
+    }
+
+    public void setPrefetch(PrefetchOptions prefetch)
+    {
+        this.prefetch = prefetch;
+    }
+
+    public DeduplicationOptions getDeduplication()
+    {
+        return deduplication;
+    }
+
+    public void setDeduplication(DeduplicationOptions deduplication)
+    {
+        this.deduplication = deduplication;
+    }
+
+    public CoalesceOptions getCoalesce()
+    {
+        return coalesce;
+    }
+
+    public void setCoalesce(CoalesceOptions coalesce)
+    {
+        this.coalesce = coalesce;
+    }
+
+    public TypedBindingOptions getTypedBinding()
+    {
+        return typedBinding;
+    }
+
+    public void setTypedBinding(TypedBindingOptions typedBinding)
+    {
+        this.typedBinding = typedBinding;
+    }
+
+    public List<FilterOptions> getFilter()
+    {
+        return filter;
+    }
+
+    public void setFilter(List<FilterOptions> filter)
+    {
+        this.filter = filter;
+    }
+
+    public Map<String, LookupOptions> getLookups()
+    {
+        return lookups;
+    }
+
+    public void setLookups(Map<String, LookupOptions> lookups)
+    {
+        this.lookups = lookups;
+    }
+
     public FileResolver getFileResolver()
     {
         return fileResolver;
@@ -471,33 +1089,44 @@ public class Configuration
         this.fileResolver = fileResolver;
     }
 
+    public RowSchema getRowSchema()
+    {
+        RowSchema schema = rowSchema;
+
+        if (schema == null)
+        {
+            rowSchema = schema = new RowSchema(this);
+        }
+
+        return schema;
+    }
+
+    // Evaluates values once per import, consumer threads use their own engines
     public ScriptEngine getScriptEngine()
     {
         if (scriptEngine == null)
         {
-            try
-            {
-                scriptEngine = newScriptEngine();
-            }
-            catch (ScriptException | IOException e)
-            {
-                throw new RuntimeException("Error loading scripting engine", e);
-            }
+            scriptEngine = createScriptEngine();
         }
         return scriptEngine;
     }
 
-    private ScriptEngine newScriptEngine() throws FileNotFoundException,
-            ScriptException, IOException
+    public ScriptEngine createScriptEngine()
     {
-        ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
-
-        ScriptEngine scriptEngine = scriptEngineManager.getEngineByName("Nashorn");
-
-        if (scriptEngine == null)
+        try
         {
-            scriptEngine = scriptEngineManager.getEngineByName("JavaScript");
+            return newScriptEngine();
         }
+        catch (ScriptException | IOException e)
+        {
+            throw new RuntimeException("Error loading scripting engine", e);
+        }
+    }
+
+    private ScriptEngine newScriptEngine() throws FileNotFoundException,
+            ScriptException, IOException
+    {
+        ScriptEngine scriptEngine = lookupScriptEngine();
 
         if (getScripting() != null)
         {
@@ -506,6 +1135,8 @@ public class Configuration
                 FileReader scriptReader = new FileReader(fileResolver.getFile(filename));
                 try
                 {
+                    // Named sources are compiled once by all GraalJS engines
+                    scriptEngine.put(ScriptEngine.FILENAME, filename);
                     scriptEngine.eval(scriptReader);
                 }
                 finally
@@ -517,6 +1148,82 @@ public class Configuration
         return scriptEngine;
     }
 
+    private ScriptEngine lookupScriptEngine() throws ScriptException
+    {
+        if (scriptingEngine == ScriptingEngine.GRAALJS)
+        {
+            ScriptEngine scriptEngine = createGraalJSScriptEngine();
+
+            if (scriptEngine == null)
+            {
+                throw new ScriptException("GraalJS script engine is not available,"
+                        + " add org.graalvm.js:js and org.graalvm.js:js-scriptengine to the classpath");
+            }
+
+            return scriptEngine;
+        }
+
+        ScriptEngineManager scriptEngineManager = new ScriptEngineManager();
+
+        ScriptEngine scriptEngine = scriptEngineManager.getEngineByName("Nashorn");
+
+        if (scriptEngine != null)
+        {
+            return scriptEngine;
+        }
+
+        if (scriptingEngine == ScriptingEngine.NASHORN)
+        {
+            throw new ScriptException("Nashorn script engine is not available, it was removed in Java 15");
+        }
+
+        try
+        {
+            scriptEngine = createGraalJSScriptEngine();
+        }
+        catch (LinkageError e)
+        {
+            // Some of GraalJS dependencies are missing
+            scriptEngine = null;
+        }
+
+        return scriptEngine != null
+                ? scriptEngine
+                : scriptEngineManager.getEngineByName("JavaScript");
+    }
+
+    private static ScriptEngine createGraalJSScriptEngine()
+    {
+        // GraalJS is an optional dependency, so GraalJSScripting is only loaded if GraalJS is available
+        try
+        {
+            Class.forName("com.oracle.truffle.js.scriptengine.GraalJSScriptEngine");
+        }
+        catch (ClassNotFoundException e)
+        {
+            return null;
+        }
+
+        try
+        {
+            return (ScriptEngine) Class.forName("com.anjlab.csv2db.GraalJSScripting")
+                    .getMethod("createScriptEngine")
+                    .invoke(null);
+        }
+        catch (InvocationTargetException e)
+        {
+            if (e.getCause() instanceof Error)
+            {
+                throw (Error) e.getCause();
+            }
+            throw Import.runtimeException((Exception) e.getCause());
+        }
+        catch (ReflectiveOperationException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static void addOptions(Options options)
     {
         options
@@ -567,21 +1274,57 @@ public class Configuration
         return this;
     }
 
-    public String joinPrimaryKeys(Map<String, Object> nameValues)
+    public List<String> getOrderedTableColumnNames()
     {
-        StringBuilder builder = new StringBuilder();
-        for (String primaryKeyColumnName : getPrimaryKeys())
+        List<Integer> csvColumnIndices = new ArrayList<Integer>();
+        csvColumnIndices.addAll(getColumnMappings().keySet());
+        Collections.sort(csvColumnIndices);
+
+        List<String> columnNames = new ArrayList<String>();
+
+        for (int csvColumnIndex : csvColumnIndices)
+        {
+            String columnName = getColumnMappings().get(csvColumnIndex);
+
+            if (!isTransientColumn(columnName))
+            {
+                columnNames.add(columnName);
+            }
+        }
+
+        if (getSyntheticColumns() != null)
         {
-            if (builder.length() > 0)
+            List<String> copy = new ArrayList<>();
+            copy.addAll(getSyntheticColumns());
+            Collections.sort(copy);
+
+            for (String columnName : copy)
             {
-                builder.append(", ");
+                // There shouldn't be any transient columns between synthetic ones,
+                // but we'll check this anyway for consistency
+                if (!isTransientColumn(columnName))
+                {
+                    columnNames.add(columnName);
+                }
             }
-            builder
-                    .append(primaryKeyColumnName)
-                    .append("=")
-                    .append(String.valueOf(nameValues.get(primaryKeyColumnName)));
         }
-        return builder.toString();
+
+        return columnNames;
+    }
+
+    public boolean isTransientColumn(String columnName)
+    {
+        return transientColumns != null && transientColumns.contains(columnName);
+    }
+
+    public Row toNameValues(String[] columns)
+    {
+        return getRowSchema().newRow(columns);
+    }
+
+    public PrimaryKey getPrimaryKey(Map<String, Object> nameValues)
+    {
+        return PrimaryKey.of(getPrimaryKeys(), nameValues);
     }
 
     public String escapeSqlName(String name)
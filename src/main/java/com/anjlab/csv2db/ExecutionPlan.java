@@ -0,0 +1,733 @@
+package com.anjlab.csv2db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import javax.script.ScriptEngine;
+import javax.script.ScriptException;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.anjlab.csv2db.Configuration.DuplicatePolicy;
+import com.anjlab.csv2db.Configuration.LookupMissPolicy;
+import com.anjlab.csv2db.Configuration.LookupOptions;
+import com.anjlab.csv2db.Configuration.OperationMode;
+
+// Configuration compiled and validated once per import, so that configuration errors are reported
+// before any connection is opened. The plan is immutable and shared by all consumers.
+public class ExecutionPlan
+{
+    public static class CompiledColumn
+    {
+        protected final String name;
+
+        protected final int slot;
+
+        protected final ValueDefinition transformer;
+
+        protected final ColumnBinder binder;
+
+        public CompiledColumn(String name, int slot, ValueDefinition transformer, ColumnBinder binder)
+        {
+            this.name = name;
+            this.slot = slot;
+            this.transformer = transformer;
+            this.binder = binder;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+    }
+
+    private final Configuration config;
+
+    private final Map<String, ColumnBinder> binders;
+
+    private final RowSchema rowSchema;
+
+    private final List<String> orderedTableColumnNames;
+
+    private final CompiledColumn[] tableColumns;
+
+    private final CompiledColumn[] primaryKeyColumns;
+
+    private final List<CompiledColumn> batchTransformColumns;
+
+    private final List<String> columnNamesWithInsertValues;
+
+    private final List<String> columnNamesWithUpdateValues;
+
+    private final List<String> insertValueParameterNames;
+
+    private final List<ValueDefinition> insertValueParameters;
+
+    private final List<ColumnBinder> insertValueBinders;
+
+    private final List<String> updateValueParameterNames;
+
+    private final List<ValueDefinition> updateValueParameters;
+
+    private final List<ColumnBinder> updateValueBinders;
+
+    private final String selectClause;
+
+    private final String whereClause;
+
+    private final String insertClause;
+
+    private final String updateClause;
+
+    private final Properties connectionProperties;
+
+    private final FunctionReference mapFunction;
+
+    private final MapPlugin mapPlugin;
+
+    private final RowFilter rowFilter;
+
+    private final List<LookupReference> lookupReferences;
+
+    private ExecutionPlan(Configuration config, Map<String, ColumnBinder> binders)
+            throws ConfigurationException, ScriptException
+    {
+        this.config = config;
+        this.binders = binders;
+        this.rowSchema = config.getRowSchema();
+        this.orderedTableColumnNames = Collections.unmodifiableList(config.getOrderedTableColumnNames());
+        this.tableColumns = compileColumns(orderedTableColumnNames);
+        this.primaryKeyColumns = config.getPrimaryKeys() != null
+                ? compileColumns(config.getPrimaryKeys())
+                : new CompiledColumn[0];
+        this.batchTransformColumns = collectBatchTransformColumns();
+
+        this.columnNamesWithInsertValues = sortedKeys(config.getInsertValues());
+        this.columnNamesWithUpdateValues = sortedKeys(config.getUpdateValues());
+
+        this.insertValueParameterNames = new ArrayList<>();
+        this.insertValueParameters = new ArrayList<>();
+        this.updateValueParameterNames = new ArrayList<>();
+        this.updateValueParameters = new ArrayList<>();
+        this.insertValueBinders = new ArrayList<>();
+        this.updateValueBinders = new ArrayList<>();
+
+        collectParameters(config.getInsertValues(), columnNamesWithInsertValues,
+                insertValueParameterNames, insertValueParameters, insertValueBinders);
+        collectParameters(config.getUpdateValues(), columnNamesWithUpdateValues,
+                updateValueParameterNames, updateValueParameters, updateValueBinders);
+
+        this.selectClause = "SELECT " + StringUtils.join(config.escapeSqlNames(orderedTableColumnNames), ", ")
+                + " FROM " + config.escapeSqlName(config.getTargetTable());
+
+        StringBuilder whereClause = new StringBuilder();
+
+        for (CompiledColumn primaryKeyColumn : primaryKeyColumns)
+        {
+            if (whereClause.length() > 0)
+            {
+                whereClause.append(" AND ");
+            }
+
+            whereClause.append(config.escapeSqlName(primaryKeyColumn.name)).append(" = ?");
+        }
+
+        this.whereClause = whereClause.toString();
+        this.insertClause = buildInsertClause();
+        this.updateClause = buildUpdateClause(null);
+
+        this.mapFunction = config.getMap() instanceof FunctionReference
+                ? (FunctionReference) config.getMap()
+                : null;
+        this.mapPlugin = config.getMap() instanceof ClassReference
+                ? ((ClassReference) config.getMap()).getMapPlugin()
+                : null;
+
+        this.rowFilter = RowFilter.compile(config.getFilter());
+
+        this.lookupReferences = new ArrayList<>();
+
+        for (Map<String, ValueDefinition> values : Arrays.asList(
+                config.getInsertValues(), config.getUpdateValues(), config.getTransform()))
+        {
+            if (values != null)
+            {
+                for (ValueDefinition definition : values.values())
+                {
+                    if (definition instanceof LookupReference)
+                    {
+                        lookupReferences.add((LookupReference) definition);
+                    }
+                }
+            }
+        }
+
+        this.connectionProperties = new Properties();
+
+        if (config.getConnectionProperties() != null)
+        {
+            connectionProperties.putAll(config.getConnectionProperties());
+        }
+    }
+
+    public static ExecutionPlan compile(Configuration config) throws ConfigurationException
+    {
+        validate(config);
+
+        return create(config, Collections.<String, ColumnBinder> emptyMap());
+    }
+
+    public ExecutionPlan withColumnBinders(Map<String, ColumnBinder> binders) throws ConfigurationException
+    {
+        return create(config, binders);
+    }
+
+    private static ExecutionPlan create(Configuration config, Map<String, ColumnBinder> binders)
+            throws ConfigurationException
+    {
+        try
+        {
+            return new ExecutionPlan(config, binders);
+        }
+        catch (ScriptException e)
+        {
+            throw new ConfigurationException("Error compiling configuration: " + e.getMessage());
+        }
+    }
+
+    private static void validate(Configuration config) throws ConfigurationException
+    {
+        if (config.getOperationMode() == null)
+        {
+            throw new ConfigurationException("operationMode required");
+        }
+
+        if (StringUtils.isEmpty(config.getTargetTable()))
+        {
+            throw new ConfigurationException("targetTable required");
+        }
+
+        if (config.getColumnMappings() == null || config.getColumnMappings().isEmpty())
+        {
+            throw new ConfigurationException("columnMappings required");
+        }
+
+        boolean hasPrimaryKeys = config.getPrimaryKeys() != null && !config.getPrimaryKeys().isEmpty();
+
+        if (!hasPrimaryKeys)
+        {
+            if (config.getOperationMode() != OperationMode.INSERT)
+            {
+                throw new ConfigurationException("primaryKeys required for " + config.getOperationMode() + " mode");
+            }
+            if (config.isIgnoreDuplicatePK())
+            {
+                throw new ConfigurationException("primaryKeys required for ignoreDuplicatePK");
+            }
+            if (config.getDeduplication() != null)
+            {
+                throw new ConfigurationException("primaryKeys required for deduplication");
+            }
+            if (config.getCoalesce() != null)
+            {
+                throw new ConfigurationException("primaryKeys required for coalesce");
+            }
+            if (config.getExternalSort() != null)
+            {
+                throw new ConfigurationException("primaryKeys required for externalSort");
+            }
+        }
+
+        if (config.getDeduplication() != null
+                && config.getDeduplication().getPolicy() == DuplicatePolicy.LAST_WINS
+                && config.getOperationMode() != OperationMode.MERGE)
+        {
+            throw new ConfigurationException(
+                    "Deduplication policy " + config.getDeduplication().getPolicy()
+                            + " is only supported in MERGE mode");
+        }
+
+        if (config.getMergeJoin() != null && hasPrimaryKeys)
+        {
+            List<String> columnNames = config.getOrderedTableColumnNames();
+
+            for (String primaryKey : config.getPrimaryKeys())
+            {
+                if (!columnNames.contains(primaryKey))
+                {
+                    throw new ConfigurationException(
+                            "Primary key '" + primaryKey + "' should be mapped to use mergeJoin");
+                }
+            }
+        }
+
+        validateLookups(config);
+
+        validateValues(config, "insertValues", config.getInsertValues());
+        validateValues(config, "updateValues", config.getUpdateValues());
+        validateValues(config, "transform", config.getTransform());
+
+        if (config.getMap() != null
+                && !(config.getMap() instanceof FunctionReference)
+                && !(config.getMap() instanceof ClassReference))
+        {
+            throw new ConfigurationException("map should be a function or a class reference");
+        }
+
+        if (config.getMap() instanceof FunctionReference && ((FunctionReference) config.getMap()).isCached())
+        {
+            throw new ConfigurationException("map function can't be cached");
+        }
+    }
+
+    private static void validateLookups(Configuration config) throws ConfigurationException
+    {
+        if (config.getLookups() == null)
+        {
+            return;
+        }
+
+        for (Map.Entry<String, LookupOptions> entry : config.getLookups().entrySet())
+        {
+            LookupOptions options = entry.getValue();
+
+            if (options == null || (options.getQuery() == null) == (options.getCsv() == null))
+            {
+                throw new ConfigurationException(
+                        "Either 'query' or 'csv' required for lookup '" + entry.getKey() + "'");
+            }
+
+            if (options.getOnMiss() == LookupMissPolicy.INSERT)
+            {
+                if (options.getInsert() == null || options.getFetch() == null)
+                {
+                    throw new ConfigurationException(
+                            "'insert' and 'fetch' required for lookup '" + entry.getKey() + "' in INSERT mode");
+                }
+
+                if (options.getMaxCachedEntries() <= 0)
+                {
+                    throw new ConfigurationException(
+                            "maxCachedEntries of lookup '" + entry.getKey() + "' should be positive");
+                }
+            }
+        }
+    }
+
+    private static void validateValues(Configuration config, String name, Map<String, ValueDefinition> values)
+            throws ConfigurationException
+    {
+        if (values == null)
+        {
+            return;
+        }
+
+        for (Map.Entry<String, ValueDefinition> entry : values.entrySet())
+        {
+            if (entry.getValue() == null)
+            {
+                throw new ConfigurationException(
+                        "Value of column '" + entry.getKey() + "' in '" + name + "' is not defined");
+            }
+
+            if (entry.getValue() instanceof LookupReference)
+            {
+                String lookupName = ((LookupReference) entry.getValue()).getLookupName();
+
+                if (config.getLookups() == null || !config.getLookups().containsKey(lookupName))
+                {
+                    throw new ConfigurationException(
+                            "Lookup '" + lookupName + "' of column '" + entry.getKey() + "' in '" + name
+                                    + "' is not defined");
+                }
+            }
+
+            if (entry.getValue() instanceof FunctionReference
+                    && ((FunctionReference) entry.getValue()).isCached()
+                    && (!"transform".equals(name)
+                            || config.getColumnMappings() == null
+                            || !config.getColumnMappings().containsValue(entry.getKey())))
+            {
+                // Values are cached by value of the column, which is only known for transforms of CSV columns
+                throw new ConfigurationException(
+                        "Function of column '" + entry.getKey() + "' in '" + name + "' can't be cached, "
+                                + "only transforms of columns from 'columnMappings' can be cached");
+            }
+
+            if (entry.getValue() instanceof ClassReference)
+            {
+                // Plugins are loaded and initialized once before the import
+                ((ClassReference) entry.getValue()).getValuePlugin();
+            }
+        }
+    }
+
+    private CompiledColumn[] compileColumns(List<String> columnNames) throws ConfigurationException
+    {
+        CompiledColumn[] columns = new CompiledColumn[columnNames.size()];
+
+        for (int i = 0; i < columns.length; i++)
+        {
+            String targetTableColumnName = columnNames.get(i);
+
+            ValueDefinition transformer = config.getTransform() != null
+                    ? config.getTransform().get(targetTableColumnName)
+                    : null;
+
+            if (transformer != null && transformer.producesSQL())
+            {
+                throw new ConfigurationException(
+                        "Transform definition for column '" + targetTableColumnName + "' produces SQL which is not supported. "
+                                + "SQL expressions only supported for 'insertValues' and 'updateValues'.");
+            }
+
+            columns[i] = new CompiledColumn(
+                    targetTableColumnName,
+                    rowSchema.slotOf(targetTableColumnName),
+                    transformer,
+                    getBinder(targetTableColumnName));
+        }
+
+        return columns;
+    }
+
+    private List<CompiledColumn> collectBatchTransformColumns()
+    {
+        Map<String, CompiledColumn> columns = new LinkedHashMap<>();
+
+        for (CompiledColumn[] compiledColumns : new CompiledColumn[][] { tableColumns, primaryKeyColumns })
+        {
+            for (CompiledColumn column : compiledColumns)
+            {
+                if (column.slot >= 0
+                        && column.transformer instanceof FunctionReference
+                        && ((FunctionReference) column.transformer).isBatch()
+                        && !columns.containsKey(column.name))
+                {
+                    columns.put(column.name, column);
+                }
+            }
+        }
+
+        return Collections.unmodifiableList(new ArrayList<>(columns.values()));
+    }
+
+    public ColumnBinder getBinder(String targetTableColumnName)
+    {
+        ColumnBinder binder = binders.get(targetTableColumnName);
+
+        return binder != null ? binder : ColumnBinder.OBJECT;
+    }
+
+    private static List<String> sortedKeys(Map<String, ValueDefinition> values)
+    {
+        if (values == null)
+        {
+            return Collections.emptyList();
+        }
+
+        List<String> columnNames = new ArrayList<String>();
+        columnNames.addAll(values.keySet());
+        Collections.sort(columnNames);
+
+        return Collections.unmodifiableList(columnNames);
+    }
+
+    private void collectParameters(
+            Map<String, ValueDefinition> values, List<String> columnNames,
+            List<String> parameterNames, List<ValueDefinition> parameters, List<ColumnBinder> parameterBinders)
+    {
+        for (String targetTableColumnName : columnNames)
+        {
+            ValueDefinition definition = values.get(targetTableColumnName);
+
+            if (!definition.producesSQL())
+            {
+                parameterNames.add(targetTableColumnName);
+                parameters.add(definition);
+                parameterBinders.add(getBinder(targetTableColumnName));
+            }
+        }
+    }
+
+    private String buildInsertClause() throws ScriptException
+    {
+        StringBuilder insertClause =
+                new StringBuilder("INSERT INTO ")
+                        .append(config.escapeSqlName(config.getTargetTable()))
+                        .append(" (");
+
+        StringBuilder valuesClause = new StringBuilder();
+
+        for (String targetTableColumnName : columnNamesWithInsertValues)
+        {
+            if (valuesClause.length() > 0)
+            {
+                insertClause.append(", ");
+                valuesClause.append(", ");
+            }
+            insertClause.append(config.escapeSqlName(targetTableColumnName));
+
+            ValueDefinition definition = config.getInsertValues().get(targetTableColumnName);
+
+            if (definition.producesSQL())
+            {
+                valuesClause.append(definition.eval(targetTableColumnName, null, config.getScriptEngine()));
+            }
+            else
+            {
+                valuesClause.append("?");
+            }
+        }
+
+        for (String targetTableColumnName : orderedTableColumnNames)
+        {
+            if (valuesClause.length() > 0)
+            {
+                insertClause.append(", ");
+                valuesClause.append(", ");
+            }
+            insertClause.append(config.escapeSqlName(targetTableColumnName));
+            valuesClause.append("?");
+        }
+
+        return insertClause.append(") VALUES (")
+                .append(valuesClause)
+                .append(")")
+                .toString();
+    }
+
+    private String buildUpdateClause(BitSet columns) throws ScriptException
+    {
+        StringBuilder setClause = new StringBuilder();
+
+        for (String targetTableColumnName : columnNamesWithUpdateValues)
+        {
+            if (setClause.length() > 0)
+            {
+                setClause.append(", ");
+            }
+            setClause.append(config.escapeSqlName(targetTableColumnName)).append(" = ");
+
+            ValueDefinition definition = config.getUpdateValues().get(targetTableColumnName);
+
+            if (definition.producesSQL())
+            {
+                setClause.append(definition.eval(targetTableColumnName, null, config.getScriptEngine()));
+            }
+            else
+            {
+                setClause.append("?");
+            }
+        }
+
+        for (int i = 0; i < orderedTableColumnNames.size(); i++)
+        {
+            if (columns != null && !columns.get(i))
+            {
+                continue;
+            }
+
+            if (setClause.length() > 0)
+            {
+                setClause.append(", ");
+            }
+            setClause.append(config.escapeSqlName(orderedTableColumnNames.get(i))).append(" = ?");
+        }
+
+        return new StringBuilder("UPDATE ")
+                .append(config.escapeSqlName(config.getTargetTable()))
+                .append(" SET ")
+                .append(setClause)
+                .append(" WHERE ")
+                .append(whereClause)
+                .toString();
+    }
+
+    public Configuration getConfiguration()
+    {
+        return config;
+    }
+
+    public RowSchema getRowSchema()
+    {
+        return rowSchema;
+    }
+
+    public List<String> getOrderedTableColumnNames()
+    {
+        return orderedTableColumnNames;
+    }
+
+    public CompiledColumn[] getTableColumns()
+    {
+        return tableColumns;
+    }
+
+    public CompiledColumn[] getPrimaryKeyColumns()
+    {
+        return primaryKeyColumns;
+    }
+
+    public List<CompiledColumn> getBatchTransformColumns()
+    {
+        return batchTransformColumns;
+    }
+
+    public List<String> getColumnNamesWithInsertValues()
+    {
+        return columnNamesWithInsertValues;
+    }
+
+    public List<String> getColumnNamesWithUpdateValues()
+    {
+        return columnNamesWithUpdateValues;
+    }
+
+    public List<String> getInsertValueParameterNames()
+    {
+        return insertValueParameterNames;
+    }
+
+    public List<ValueDefinition> getInsertValueParameters()
+    {
+        return insertValueParameters;
+    }
+
+    public List<ColumnBinder> getInsertValueBinders()
+    {
+        return insertValueBinders;
+    }
+
+    public List<String> getUpdateValueParameterNames()
+    {
+        return updateValueParameterNames;
+    }
+
+    public List<ValueDefinition> getUpdateValueParameters()
+    {
+        return updateValueParameters;
+    }
+
+    public List<ColumnBinder> getUpdateValueBinders()
+    {
+        return updateValueBinders;
+    }
+
+    public String getSelectClause()
+    {
+        return selectClause;
+    }
+
+    public String getWhereClause()
+    {
+        return whereClause;
+    }
+
+    public String getInsertClause()
+    {
+        return insertClause;
+    }
+
+    // Columns are indices of getOrderedTableColumnNames(), null means all columns
+    public String getUpdateClause(BitSet columns)
+    {
+        if (columns == null)
+        {
+            return updateClause;
+        }
+
+        try
+        {
+            return buildUpdateClause(columns);
+        }
+        catch (ScriptException e)
+        {
+            // SQL values were already evaluated when the plan was compiled
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public FunctionReference getMapFunction()
+    {
+        return mapFunction;
+    }
+
+    public MapPlugin getMapPlugin()
+    {
+        return mapPlugin;
+    }
+
+    public List<LookupReference> getLookupReferences()
+    {
+        return lookupReferences;
+    }
+
+    public RowFilter getRowFilter()
+    {
+        return rowFilter;
+    }
+
+    public Properties getConnectionProperties()
+    {
+        return connectionProperties;
+    }
+
+    // Transformed values are cached in rows, so that routing, deduplication, lookups
+    // and writes of the same row don't evaluate them again
+    public Object transform(CompiledColumn column, Map<String, Object> nameValues, ScriptEngine scriptEngine)
+            throws ScriptException
+    {
+        boolean isRow = column.slot >= 0
+                && nameValues instanceof Row
+                && ((Row) nameValues).getSchema() == rowSchema;
+
+        if (column.transformer == null)
+        {
+            return isRow ? ((Row) nameValues).get(column.slot) : nameValues.get(column.name);
+        }
+
+        if (isRow && ((Row) nameValues).hasTransformed(column.slot))
+        {
+            return ((Row) nameValues).getTransformed(column.slot);
+        }
+
+        Object value;
+
+        try
+        {
+            value = column.transformer.eval(column.name, nameValues, scriptEngine);
+        }
+        catch (RuntimeException | ScriptException e)
+        {
+            System.err.println("Error running transformation for column '" + column.name + "'");
+            throw e;
+        }
+
+        if (isRow)
+        {
+            ((Row) nameValues).setTransformed(column.slot, value);
+        }
+
+        return value;
+    }
+
+    public PrimaryKey transformPrimaryKeys(Map<String, Object> nameValues, ScriptEngine scriptEngine)
+            throws ScriptException
+    {
+        Object[] values = new Object[primaryKeyColumns.length];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = transform(primaryKeyColumns[i], nameValues, scriptEngine);
+        }
+
+        return PrimaryKey.of(config.getPrimaryKeys(), values);
+    }
+}
@@ -0,0 +1,628 @@
+package com.anjlab.csv2db;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+
+// Parsed once into a tree of nodes, so evaluation only reads the columns it references
+public class Expression implements ValueDefinition
+{
+    public abstract static class Node
+    {
+        public abstract Object eval(Map<String, Object> nameValues);
+
+        protected boolean isConstant()
+        {
+            return false;
+        }
+    }
+
+    private static final class Literal extends Node
+    {
+        private final Object value;
+
+        private Literal(Object value)
+        {
+            this.value = value;
+        }
+
+        @Override
+        public Object eval(Map<String, Object> nameValues)
+        {
+            return value;
+        }
+
+        @Override
+        protected boolean isConstant()
+        {
+            return true;
+        }
+    }
+
+    private static final class ColumnSlot
+    {
+        private final RowSchema schema;
+
+        private final int slot;
+
+        private ColumnSlot(RowSchema schema, int slot)
+        {
+            this.schema = schema;
+            this.slot = slot;
+        }
+    }
+
+    private static final class ColumnReference extends Node
+    {
+        private final String name;
+
+        private volatile ColumnSlot columnSlot;
+
+        private ColumnReference(String name)
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Object eval(Map<String, Object> nameValues)
+        {
+            if (nameValues == null)
+            {
+                return null;
+            }
+
+            if (nameValues instanceof Row)
+            {
+                Row row = (Row) nameValues;
+
+                ColumnSlot cached = columnSlot;
+
+                if (cached == null || cached.schema != row.getSchema())
+                {
+                    // The slot is resolved once per schema, i.e. once per import
+                    cached = new ColumnSlot(row.getSchema(), row.getSchema().slotOf(name));
+
+                    columnSlot = cached;
+                }
+
+                if (cached.slot >= 0)
+                {
+                    return row.get(cached.slot);
+                }
+            }
+
+            return nameValues.get(name);
+        }
+    }
+
+    private abstract static class Call extends Node
+    {
+        protected final Node[] args;
+
+        protected Call(List<Node> args)
+        {
+            this.args = args.toArray(new Node[args.size()]);
+        }
+
+        @Override
+        protected boolean isConstant()
+        {
+            for (Node arg : args)
+            {
+                if (!arg.isConstant())
+                {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private final String source;
+
+    private final Node root;
+
+    public Expression(String source)
+    {
+        this.source = source;
+        this.root = new Parser(source).parse();
+    }
+
+    public String getSource()
+    {
+        return source;
+    }
+
+    @Override
+    public Object eval(String targetTableColumnName, Map<String, Object> nameValues, ScriptEngine scriptEngine)
+    {
+        return root.eval(nameValues);
+    }
+
+    @Override
+    public JsonElement toJsonElement()
+    {
+        JsonObject json = new JsonObject();
+        json.addProperty("expr", source);
+        return json;
+    }
+
+    @Override
+    public boolean producesSQL()
+    {
+        return false;
+    }
+
+    private static String asString(Object value)
+    {
+        return value == null ? null : value.toString();
+    }
+
+    private static boolean isEmpty(Object value)
+    {
+        return value == null || (value instanceof String && ((String) value).isEmpty());
+    }
+
+    private static boolean isTrue(Object value)
+    {
+        if (value instanceof Boolean)
+        {
+            return (Boolean) value;
+        }
+        return !isEmpty(value) && !"false".equalsIgnoreCase(value.toString());
+    }
+
+    private static int toInt(Object value, String function)
+    {
+        if (value instanceof Number)
+        {
+            return ((Number) value).intValue();
+        }
+
+        try
+        {
+            return Integer.parseInt(String.valueOf(value).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException(
+                    "Integer argument expected by " + function + "(), got '" + value + "'", e);
+        }
+    }
+
+    private static Node call(String name, final List<Node> args, int position)
+    {
+        switch (name.toLowerCase())
+        {
+        case "concat":
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    StringBuilder builder = new StringBuilder();
+                    for (Node arg : this.args)
+                    {
+                        Object value = arg.eval(nameValues);
+                        if (value != null)
+                        {
+                            builder.append(value);
+                        }
+                    }
+                    return builder.toString();
+                }
+            };
+
+        case "coalesce":
+            requireArgs(name, args, 1, Integer.MAX_VALUE, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    for (Node arg : this.args)
+                    {
+                        Object value = arg.eval(nameValues);
+                        if (!isEmpty(value))
+                        {
+                            return value;
+                        }
+                    }
+                    return null;
+                }
+            };
+
+        case "substr":
+            requireArgs(name, args, 2, 3, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    String value = asString(this.args[0].eval(nameValues));
+                    if (value == null)
+                    {
+                        return null;
+                    }
+                    int start = Math.min(Math.max(0, toInt(this.args[1].eval(nameValues), "substr")), value.length());
+                    int end = this.args.length > 2
+                            ? Math.min(value.length(), start + Math.max(0, toInt(this.args[2].eval(nameValues), "substr")))
+                            : value.length();
+                    return value.substring(start, end);
+                }
+            };
+
+        case "upper":
+            requireArgs(name, args, 1, 1, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    String value = asString(this.args[0].eval(nameValues));
+                    return value == null ? null : value.toUpperCase();
+                }
+            };
+
+        case "lower":
+            requireArgs(name, args, 1, 1, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    String value = asString(this.args[0].eval(nameValues));
+                    return value == null ? null : value.toLowerCase();
+                }
+            };
+
+        case "trim":
+            requireArgs(name, args, 1, 1, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    String value = asString(this.args[0].eval(nameValues));
+                    return value == null ? null : value.trim();
+                }
+            };
+
+        case "length":
+            requireArgs(name, args, 1, 1, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    String value = asString(this.args[0].eval(nameValues));
+                    return value == null ? null : value.length();
+                }
+            };
+
+        case "replace":
+            requireArgs(name, args, 3, 3, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    String value = asString(this.args[0].eval(nameValues));
+                    if (value == null)
+                    {
+                        return null;
+                    }
+                    String target = asString(this.args[1].eval(nameValues));
+                    String replacement = asString(this.args[2].eval(nameValues));
+                    return isEmpty(target) ? value : value.replace(target, replacement == null ? "" : replacement);
+                }
+            };
+
+        case "nullif":
+            requireArgs(name, args, 2, 2, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    Object value = this.args[0].eval(nameValues);
+                    String other = asString(this.args[1].eval(nameValues));
+                    return value == null || value.toString().equals(other) ? null : value;
+                }
+            };
+
+        case "eq":
+            requireArgs(name, args, 2, 2, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    String left = asString(this.args[0].eval(nameValues));
+                    String right = asString(this.args[1].eval(nameValues));
+                    return left == null ? right == null : left.equals(right);
+                }
+            };
+
+        case "if":
+            requireArgs(name, args, 3, 3, position);
+
+            return new Call(args)
+            {
+                @Override
+                public Object eval(Map<String, Object> nameValues)
+                {
+                    return isTrue(this.args[0].eval(nameValues))
+                            ? this.args[1].eval(nameValues)
+                            : this.args[2].eval(nameValues);
+                }
+            };
+
+        default:
+            throw new JsonParseException("Unknown function '" + name + "' at position " + position);
+        }
+    }
+
+    private static void requireArgs(String name, List<Node> args, int min, int max, int position)
+    {
+        if (args.size() < min || args.size() > max)
+        {
+            throw new JsonParseException("Wrong number of arguments of '" + name + "' at position " + position);
+        }
+    }
+
+    // Recursive descent parser of
+    //
+    //     expression := term ('||' term)*
+    //     term       := string | number | 'null' | 'true' | 'false' | column
+    //                 | function '(' [expression (',' expression)*] ')' | '(' expression ')'
+    //     column     := identifier | '"' name '"'
+    //
+    // Constant sub-expressions are folded
+    private static class Parser
+    {
+        private final String source;
+
+        private int position;
+
+        private Parser(String source)
+        {
+            this.source = source;
+        }
+
+        private Node parse()
+        {
+            if (source == null)
+            {
+                throw new JsonParseException("Expression required");
+            }
+
+            Node node = parseExpression();
+
+            skipWhitespace();
+
+            if (position < source.length())
+            {
+                throw error("Unexpected '" + source.charAt(position) + "'");
+            }
+
+            return node;
+        }
+
+        private Node parseExpression()
+        {
+            int start = position;
+
+            List<Node> terms = new ArrayList<>();
+
+            terms.add(parseTerm());
+
+            while (consume("||"))
+            {
+                terms.add(parseTerm());
+            }
+
+            return terms.size() == 1 ? terms.get(0) : fold(call("concat", terms, start));
+        }
+
+        private Node parseTerm()
+        {
+            skipWhitespace();
+
+            if (position >= source.length())
+            {
+                throw error("Unexpected end of expression");
+            }
+
+            char c = source.charAt(position);
+
+            if (c == '\'')
+            {
+                return new Literal(parseQuoted('\''));
+            }
+
+            if (c == '"')
+            {
+                return new ColumnReference(parseQuoted('"'));
+            }
+
+            if (c == '(')
+            {
+                position++;
+                Node node = parseExpression();
+                expect(")");
+                return node;
+            }
+
+            if (Character.isDigit(c) || c == '-')
+            {
+                return new Literal(parseNumber());
+            }
+
+            if (Character.isJavaIdentifierStart(c))
+            {
+                int start = position;
+
+                String identifier = parseIdentifier();
+
+                if (consume("("))
+                {
+                    List<Node> args = new ArrayList<>();
+
+                    if (!consume(")"))
+                    {
+                        do
+                        {
+                            args.add(parseExpression());
+                        }
+                        while (consume(","));
+
+                        expect(")");
+                    }
+
+                    return fold(call(identifier, args, start));
+                }
+
+                switch (identifier)
+                {
+                case "null":
+                    return new Literal(null);
+                case "true":
+                    return new Literal(Boolean.TRUE);
+                case "false":
+                    return new Literal(Boolean.FALSE);
+                default:
+                    return new ColumnReference(identifier);
+                }
+            }
+
+            throw error("Unexpected '" + c + "'");
+        }
+
+        private Node fold(Node node)
+        {
+            return node.isConstant() ? new Literal(node.eval(null)) : node;
+        }
+
+        private String parseQuoted(char quote)
+        {
+            StringBuilder builder = new StringBuilder();
+
+            position++;
+
+            while (position < source.length())
+            {
+                char c = source.charAt(position++);
+
+                if (c == quote)
+                {
+                    // Doubled quote is an escaped quote
+                    if (position < source.length() && source.charAt(position) == quote)
+                    {
+                        position++;
+                    }
+                    else
+                    {
+                        return builder.toString();
+                    }
+                }
+
+                builder.append(c);
+            }
+
+            throw error("Unterminated " + quote);
+        }
+
+        private Number parseNumber()
+        {
+            int start = position;
+
+            if (source.charAt(position) == '-')
+            {
+                position++;
+            }
+
+            boolean decimal = false;
+
+            while (position < source.length()
+                    && (Character.isDigit(source.charAt(position)) || (!decimal && source.charAt(position) == '.')))
+            {
+                decimal |= source.charAt(position) == '.';
+                position++;
+            }
+
+            String number = source.substring(start, position);
+
+            try
+            {
+                return decimal ? (Number) Double.valueOf(number) : (Number) Long.valueOf(number);
+            }
+            catch (NumberFormatException e)
+            {
+                position = start;
+                throw error("Invalid number '" + number + "'");
+            }
+        }
+
+        private String parseIdentifier()
+        {
+            int start = position;
+
+            while (position < source.length() && Character.isJavaIdentifierPart(source.charAt(position)))
+            {
+                position++;
+            }
+
+            return source.substring(start, position);
+        }
+
+        private boolean consume(String token)
+        {
+            skipWhitespace();
+
+            if (source.startsWith(token, position))
+            {
+                position += token.length();
+                return true;
+            }
+
+            return false;
+        }
+
+        private void expect(String token)
+        {
+            if (!consume(token))
+            {
+                throw error("'" + token + "' expected");
+            }
+        }
+
+        private void skipWhitespace()
+        {
+            while (position < source.length() && Character.isWhitespace(source.charAt(position)))
+            {
+                position++;
+            }
+        }
+
+        private JsonParseException error(String message)
+        {
+            return new JsonParseException(message + " at position " + position + " of expression: " + source);
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.anjlab.csv2db;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import javax.script.ScriptException;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
+
+// Lines are sorted and spilled to compressed runs when they exceed maxMemoryMB, runs are k-way merged.
+// The sort is stable, lines with equal keys keep their input order.
+public class ExternalSorter implements Closeable
+{
+    private static class SortEntry
+    {
+        private final PrimaryKey keys;
+        private final String[] line;
+        private final int runIndex;
+
+        public SortEntry(PrimaryKey keys, String[] line, int runIndex)
+        {
+            this.keys = keys;
+            this.line = line;
+            this.runIndex = runIndex;
+        }
+    }
+
+    private static class Run
+    {
+        private final File file;
+        private final long size;
+
+        public Run(File file, long size)
+        {
+            this.file = file;
+            this.size = size;
+        }
+    }
+
+    private class RunReader implements Closeable
+    {
+        private final DataInputStream input;
+        private final int runIndex;
+        private long remaining;
+        private SortEntry head;
+
+        public RunReader(Run run, int runIndex) throws IOException
+        {
+            this.input = new DataInputStream(
+                    new BufferedInputStream(
+                            new GZIPInputStream(
+                                    new FileInputStream(run.file))));
+            this.runIndex = runIndex;
+            this.remaining = run.size;
+        }
+
+        public boolean advance() throws IOException
+        {
+            if (remaining == 0)
+            {
+                head = null;
+                return false;
+            }
+
+            remaining--;
+
+            try
+            {
+                Object[] keys = FileTargetTableIndex.decode(readBytes(input));
+
+                String[] line = new String[input.readInt()];
+
+                for (int i = 0; i < line.length; i++)
+                {
+                    line[i] = new String(readBytes(input), StandardCharsets.UTF_8);
+                }
+
+                head = new SortEntry(PrimaryKey.of(config.getPrimaryKeys(), keys), line, runIndex);
+            }
+            catch (ClassNotFoundException e)
+            {
+                throw new IOException(e);
+            }
+
+            return true;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            input.close();
+        }
+    }
+
+    private final Configuration config;
+
+    private final long maxMemory;
+
+    private final Comparator<SortEntry> comparator;
+
+    private final List<SortEntry> entries;
+
+    private final List<Run> runs;
+
+    private final List<RunReader> readers;
+
+    private final Timer sortTimer;
+
+    private final Counter spilledBytes;
+
+    private long estimatedSize;
+
+    public ExternalSorter(Configuration config) throws ConfigurationException
+    {
+        if (config.getPrimaryKeys() == null || config.getPrimaryKeys().isEmpty())
+        {
+            throw new ConfigurationException("primaryKeys required for externalSort");
+        }
+
+        this.config = config;
+        this.maxMemory = config.getExternalSort().getMaxMemoryMB() * 1024 * 1024;
+        this.entries = new ArrayList<>();
+        this.runs = new ArrayList<>();
+        this.readers = new ArrayList<>();
+
+        this.comparator = new Comparator<SortEntry>()
+        {
+            @Override
+            public int compare(SortEntry entry1, SortEntry entry2)
+            {
+                int result = entry1.keys.compareTo(entry2.keys);
+
+                return result != 0
+                        ? result
+                        : Integer.compare(entry1.runIndex, entry2.runIndex);
+            }
+        };
+
+        this.sortTimer = Import.METRIC_REGISTRY.timer("reader.sort");
+        this.spilledBytes = Import.METRIC_REGISTRY.counter("reader.sort.spilledBytes");
+    }
+
+    public void add(String[] line) throws IOException, ScriptException
+    {
+        entries.add(new SortEntry(transformPrimaryKeys(line), line, Integer.MAX_VALUE));
+
+        estimatedSize += estimateSize(line);
+
+        if (estimatedSize > maxMemory)
+        {
+            spill();
+        }
+    }
+
+    private PrimaryKey transformPrimaryKeys(String[] line) throws ScriptException
+    {
+        Map<String, Object> nameValues = config.toNameValues(line);
+
+        List<String> primaryKeys = config.getPrimaryKeys();
+
+        Object[] keys = new Object[primaryKeys.size()];
+
+        for (int i = 0; i < keys.length; i++)
+        {
+            String primaryKeyColumnName = primaryKeys.get(i);
+
+            ValueDefinition transformer = config.getTransform() != null
+                    ? config.getTransform().get(primaryKeyColumnName)
+                    : null;
+
+            keys[i] = transformer != null
+                    ? transformer.eval(primaryKeyColumnName, nameValues, config.getScriptEngine())
+                    : nameValues.get(primaryKeyColumnName);
+        }
+
+        return PrimaryKey.of(primaryKeys, keys);
+    }
+
+    private static long estimateSize(String[] line)
+    {
+        // Sort entry, list of keys and array of values
+        long size = 96 + 8L * line.length;
+
+        for (String value : line)
+        {
+            size += 40 + 2L * value.length();
+        }
+
+        return size;
+    }
+
+    private void sortEntries()
+    {
+        Timer.Context time = sortTimer.time();
+
+        try
+        {
+            Collections.sort(entries, comparator);
+        }
+        finally
+        {
+            time.stop();
+        }
+    }
+
+    private void spill() throws IOException
+    {
+        sortEntries();
+
+        String tempDirectory = config.getExternalSort().getTempDirectory();
+
+        File file = File.createTempFile("csv2db-sort-", ".run",
+                tempDirectory == null ? null : new File(tempDirectory));
+
+        runs.add(new Run(file, entries.size()));
+
+        try (DataOutputStream output = new DataOutputStream(
+                new BufferedOutputStream(
+                        new GZIPOutputStream(
+                                new FileOutputStream(file)))))
+        {
+            for (SortEntry entry : entries)
+            {
+                writeBytes(output, FileTargetTableIndex.encode(entry.keys.toArray()));
+
+                output.writeInt(entry.line.length);
+
+                for (String value : entry.line)
+                {
+                    writeBytes(output, value.getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        spilledBytes.inc(file.length());
+
+        if (Import.isVerboseEnabled())
+        {
+            Import.logVerbose("Spilled " + entries.size() + " sorted lines to " + file
+                    + " (" + file.length() + " bytes)");
+        }
+
+        entries.clear();
+
+        estimatedSize = 0;
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException
+    {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException
+    {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+
+    public Iterator<String[]> sorted() throws IOException
+    {
+        sortEntries();
+
+        if (runs.isEmpty())
+        {
+            final Iterator<SortEntry> iterator = entries.iterator();
+
+            return new Iterator<String[]>()
+            {
+                @Override
+                public boolean hasNext()
+                {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public String[] next()
+                {
+                    return iterator.next().line;
+                }
+
+                @Override
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        final PriorityQueue<RunReader> queue = new PriorityQueue<>(runs.size() + 1, new Comparator<RunReader>()
+        {
+            @Override
+            public int compare(RunReader reader1, RunReader reader2)
+            {
+                return comparator.compare(reader1.head, reader2.head);
+            }
+        });
+
+        for (int i = 0; i < runs.size(); i++)
+        {
+            RunReader reader = new RunReader(runs.get(i), i);
+
+            readers.add(reader);
+
+            if (reader.advance())
+            {
+                queue.add(reader);
+            }
+        }
+
+        // Lines that weren't spilled go last, because they were added last
+        final Iterator<SortEntry> remaining = entries.iterator();
+
+        return new Iterator<String[]>()
+        {
+            private SortEntry nextInMemory = remaining.hasNext() ? remaining.next() : null;
+
+            @Override
+            public boolean hasNext()
+            {
+                return nextInMemory != null || !queue.isEmpty();
+            }
+
+            @Override
+            public String[] next()
+            {
+                if (!hasNext())
+                {
+                    throw new NoSuchElementException();
+                }
+
+                RunReader reader = queue.peek();
+
+                if (reader == null || (nextInMemory != null && comparator.compare(nextInMemory, reader.head) < 0))
+                {
+                    String[] line = nextInMemory.line;
+                    nextInMemory = remaining.hasNext() ? remaining.next() : null;
+                    return line;
+                }
+
+                queue.poll();
+
+                String[] line = reader.head.line;
+
+                try
+                {
+                    if (reader.advance())
+                    {
+                        queue.add(reader);
+                    }
+                }
+                catch (IOException e)
+                {
+                    throw new RuntimeException("Error reading sorted run", e);
+                }
+
+                return line;
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for (RunReader reader : readers)
+        {
+            reader.close();
+        }
+
+        for (Run run : runs)
+        {
+            run.file.delete();
+        }
+
+        entries.clear();
+    }
+}
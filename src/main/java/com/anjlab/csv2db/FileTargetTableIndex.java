@@ -0,0 +1,337 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Keys are kept in memory, values of rows in a temporary file
+public class FileTargetTableIndex extends TargetTableIndex
+{
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte INTEGER = 2;
+    private static final byte LONG = 3;
+    private static final byte DOUBLE = 4;
+    private static final byte FLOAT = 5;
+    private static final byte SHORT = 6;
+    private static final byte BYTE = 7;
+    private static final byte BOOLEAN = 8;
+    private static final byte BIG_DECIMAL = 9;
+    private static final byte BIG_INTEGER = 10;
+    private static final byte TIMESTAMP = 11;
+    private static final byte DATE = 12;
+    private static final byte TIME = 13;
+    private static final byte BYTES = 14;
+    private static final byte SERIALIZED = 15;
+
+    private final File file;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final FileChannel channel;
+
+    private final Map<PrimaryKey, Long> offsets;
+
+    private long length;
+
+    public FileTargetTableIndex(List<String> columnNames, File tempDirectory) throws IOException
+    {
+        super(columnNames);
+
+        this.file = File.createTempFile("csv2db-index-", ".tmp", tempDirectory);
+        this.file.deleteOnExit();
+        this.randomAccessFile = new RandomAccessFile(file, "rw");
+        this.channel = randomAccessFile.getChannel();
+        this.offsets = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public Map<String, Object> get(PrimaryKey keys)
+    {
+        Long offset = offsets.get(keys);
+
+        if (offset == null)
+        {
+            return null;
+        }
+
+        try
+        {
+            ByteBuffer header = ByteBuffer.allocate(4);
+            read(header, offset);
+
+            ByteBuffer record = ByteBuffer.allocate(header.getInt(0));
+            read(record, offset + 4);
+
+            return toNameValues(decode(record.array()));
+        }
+        catch (IOException | ClassNotFoundException e)
+        {
+            throw new RuntimeException("Error reading target table index", e);
+        }
+    }
+
+    private void read(ByteBuffer buffer, long position) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+            {
+                throw new IOException("Unexpected end of file " + file);
+            }
+        }
+    }
+
+    @Override
+    public void put(PrimaryKey keys, Object[] values)
+    {
+        try
+        {
+            byte[] record = encode(values);
+
+            ByteBuffer buffer = ByteBuffer.allocate(4 + record.length);
+            buffer.putInt(record.length).put(record).flip();
+
+            long offset;
+
+            synchronized (this)
+            {
+                offset = length;
+                length += buffer.remaining();
+            }
+
+            while (buffer.hasRemaining())
+            {
+                channel.write(buffer, offset + buffer.position());
+            }
+
+            offsets.put(keys, offset);
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException("Error writing target table index", e);
+        }
+    }
+
+    @Override
+    public long size()
+    {
+        return offsets.size();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            randomAccessFile.close();
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    static byte[] encode(Object[] values) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream output = new DataOutputStream(bytes);
+
+        output.writeInt(values.length);
+
+        for (Object value : values)
+        {
+            if (value == null)
+            {
+                output.writeByte(NULL);
+            }
+            else if (value instanceof String)
+            {
+                output.writeByte(STRING);
+                writeBytes(output, ((String) value).getBytes(StandardCharsets.UTF_8));
+            }
+            else if (value instanceof Integer)
+            {
+                output.writeByte(INTEGER);
+                output.writeInt((Integer) value);
+            }
+            else if (value instanceof Long)
+            {
+                output.writeByte(LONG);
+                output.writeLong((Long) value);
+            }
+            else if (value instanceof Double)
+            {
+                output.writeByte(DOUBLE);
+                output.writeDouble((Double) value);
+            }
+            else if (value instanceof Float)
+            {
+                output.writeByte(FLOAT);
+                output.writeFloat((Float) value);
+            }
+            else if (value instanceof Short)
+            {
+                output.writeByte(SHORT);
+                output.writeShort((Short) value);
+            }
+            else if (value instanceof Byte)
+            {
+                output.writeByte(BYTE);
+                output.writeByte((Byte) value);
+            }
+            else if (value instanceof Boolean)
+            {
+                output.writeByte(BOOLEAN);
+                output.writeBoolean((Boolean) value);
+            }
+            else if (value instanceof BigDecimal)
+            {
+                output.writeByte(BIG_DECIMAL);
+                output.writeUTF(value.toString());
+            }
+            else if (value instanceof BigInteger)
+            {
+                output.writeByte(BIG_INTEGER);
+                output.writeUTF(value.toString());
+            }
+            else if (value instanceof Timestamp)
+            {
+                output.writeByte(TIMESTAMP);
+                output.writeLong(((Timestamp) value).getTime());
+                output.writeInt(((Timestamp) value).getNanos());
+            }
+            else if (value instanceof java.sql.Date)
+            {
+                output.writeByte(DATE);
+                output.writeLong(((java.sql.Date) value).getTime());
+            }
+            else if (value instanceof Time)
+            {
+                output.writeByte(TIME);
+                output.writeLong(((Time) value).getTime());
+            }
+            else if (value instanceof byte[])
+            {
+                output.writeByte(BYTES);
+                writeBytes(output, (byte[]) value);
+            }
+            else
+            {
+                ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+                try (ObjectOutputStream objectOutput = new ObjectOutputStream(serialized))
+                {
+                    objectOutput.writeObject(value);
+                }
+                output.writeByte(SERIALIZED);
+                writeBytes(output, serialized.toByteArray());
+            }
+        }
+
+        output.flush();
+
+        return bytes.toByteArray();
+    }
+
+    private static void writeBytes(DataOutputStream output, byte[] bytes) throws IOException
+    {
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    static Object[] decode(byte[] record) throws IOException, ClassNotFoundException
+    {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(record));
+
+        Object[] values = new Object[input.readInt()];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            byte type = input.readByte();
+
+            switch (type)
+            {
+            case NULL:
+                break;
+            case STRING:
+                values[i] = new String(readBytes(input), StandardCharsets.UTF_8);
+                break;
+            case INTEGER:
+                values[i] = input.readInt();
+                break;
+            case LONG:
+                values[i] = input.readLong();
+                break;
+            case DOUBLE:
+                values[i] = input.readDouble();
+                break;
+            case FLOAT:
+                values[i] = input.readFloat();
+                break;
+            case SHORT:
+                values[i] = input.readShort();
+                break;
+            case BYTE:
+                values[i] = input.readByte();
+                break;
+            case BOOLEAN:
+                values[i] = input.readBoolean();
+                break;
+            case BIG_DECIMAL:
+                values[i] = new BigDecimal(input.readUTF());
+                break;
+            case BIG_INTEGER:
+                values[i] = new BigInteger(input.readUTF());
+                break;
+            case TIMESTAMP:
+                Timestamp timestamp = new Timestamp(input.readLong());
+                timestamp.setNanos(input.readInt());
+                values[i] = timestamp;
+                break;
+            case DATE:
+                values[i] = new java.sql.Date(input.readLong());
+                break;
+            case TIME:
+                values[i] = new Time(input.readLong());
+                break;
+            case BYTES:
+                values[i] = readBytes(input);
+                break;
+            case SERIALIZED:
+                try (ObjectInputStream objectInput =
+                        new ObjectInputStream(new ByteArrayInputStream(readBytes(input))))
+                {
+                    values[i] = objectInput.readObject();
+                }
+                break;
+            default:
+                throw new IOException("Unsupported value type: " + type);
+            }
+        }
+
+        return values;
+    }
+
+    private static byte[] readBytes(DataInputStream input) throws IOException
+    {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+        return bytes;
+    }
+}
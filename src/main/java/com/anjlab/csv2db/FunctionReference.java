@@ -1,6 +1,9 @@
 package com.anjlab.csv2db;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
 import javax.script.Invocable;
@@ -12,20 +15,82 @@ import com.google.gson.JsonObject;
 
 public class FunctionReference implements ValueDefinition
 {
+    private static class Handle
+    {
+        private final ScriptEngine scriptEngine;
+        private final ScriptFunction function;
+
+        public Handle(ScriptEngine scriptEngine, ScriptFunction function)
+        {
+            this.scriptEngine = scriptEngine;
+            this.function = function;
+        }
+    }
+
     private String functionName;
-    
+
+    private boolean batch;
+
+    private int cacheMaxEntries;
+
+    // Values of pure functions shared by all consumer threads
+    private final transient ValueCache cache;
+
+    // Every consumer thread evaluates functions in its own script engine
+    private final transient ThreadLocal<Handle> handle = new ThreadLocal<Handle>();
+
     public FunctionReference(String functionName)
+    {
+        this(functionName, false);
+    }
+
+    public FunctionReference(String functionName, boolean batch)
+    {
+        this(functionName, batch, 0);
+    }
+
+    public FunctionReference(String functionName, boolean batch, int cacheMaxEntries)
     {
         this.functionName = functionName;
+        this.batch = batch;
+        this.cacheMaxEntries = cacheMaxEntries;
+        this.cache = cacheMaxEntries > 0
+                ? new ValueCache(cacheMaxEntries, "cache." + functionName)
+                : null;
+    }
+
+    public String getFunctionName()
+    {
+        return functionName;
+    }
+
+    public boolean isBatch()
+    {
+        return batch;
+    }
+
+    public boolean isCached()
+    {
+        return cache != null;
     }
-    
+
     public Object eval(ScriptEngine scriptEngine, Object... args)
     {
         try
         {
+            if (args == null || args.length <= 3)
+            {
+                ScriptFunction function = resolve(scriptEngine);
+
+                return function.call(
+                        args != null && args.length > 0 ? args[0] : null,
+                        args != null && args.length > 1 ? args[1] : null,
+                        args != null && args.length > 2 ? args[2] : null);
+            }
+
             return ((Invocable) scriptEngine).invokeFunction(functionName, args);
         }
-        catch (ScriptException | NoSuchMethodException e)
+        catch (RuntimeException | ScriptException | NoSuchMethodException e)
         {
             StringBuilder functionCall =
                     new StringBuilder()
@@ -43,17 +108,169 @@ public class FunctionReference implements ValueDefinition
         }
     }
 
+    private ScriptFunction resolve(final ScriptEngine scriptEngine) throws ScriptException
+    {
+        Handle current = handle.get();
+
+        if (current != null && current.scriptEngine == scriptEngine)
+        {
+            return current.function;
+        }
+
+        // Function is looked up by name once, the wrapper keeps reference to it
+        Object wrapper = scriptEngine.eval(
+                "(function(f) { return { call: function(arg0, arg1, arg2) {"
+                        + " var result = f(arg0, arg1, arg2); return result === undefined ? null : result; } }; })"
+                        + "(" + functionName + ")");
+
+        ScriptFunction function = ((Invocable) scriptEngine).getInterface(wrapper, ScriptFunction.class);
+
+        if (function == null)
+        {
+            // Engine can't implement Java interfaces with script objects
+            function = new ScriptFunction()
+            {
+                @Override
+                public Object call(Object arg0, Object arg1, Object arg2)
+                {
+                    try
+                    {
+                        return ((Invocable) scriptEngine).invokeFunction(functionName, arg0, arg1, arg2);
+                    }
+                    catch (ScriptException | NoSuchMethodException e)
+                    {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+        }
+
+        handle.set(new Handle(scriptEngine, function));
+
+        return function;
+    }
+
     @Override
     public Object eval(String targetTableColumnName, Map<String, Object> nameValues, ScriptEngine scriptEngine)
     {
+        if (cache != null)
+        {
+            Object key = nameValues.get(targetTableColumnName);
+
+            Object value = cache.get(key);
+
+            if (value == ValueCache.MISSING)
+            {
+                value = evalUncached(targetTableColumnName, nameValues, scriptEngine);
+
+                cache.put(key, value);
+            }
+
+            return value;
+        }
+
+        return evalUncached(targetTableColumnName, nameValues, scriptEngine);
+    }
+
+    private Object evalUncached(String targetTableColumnName, Map<String, Object> nameValues, ScriptEngine scriptEngine)
+    {
+        if (batch)
+        {
+            return evalBatch(scriptEngine, targetTableColumnName,
+                    Collections.singletonList(nameValues)).get(0);
+        }
+
         return eval(scriptEngine, targetTableColumnName, nameValues);
     }
 
+    // The function adds one value per row to the list
+    public List<Object> evalBatch(ScriptEngine scriptEngine, String targetTableColumnName,
+            List<? extends Map<String, Object>> rows)
+    {
+        if (cache != null)
+        {
+            return evalBatchCached(scriptEngine, targetTableColumnName, rows);
+        }
+
+        return evalBatchUncached(scriptEngine, targetTableColumnName, rows);
+    }
+
+    private List<Object> evalBatchCached(ScriptEngine scriptEngine, String targetTableColumnName,
+            List<? extends Map<String, Object>> rows)
+    {
+        List<Object> values = new ArrayList<>(rows.size());
+
+        List<Map<String, Object>> missedRows = new ArrayList<>();
+        List<Integer> missedIndices = new ArrayList<>();
+
+        for (int i = 0; i < rows.size(); i++)
+        {
+            Object value = cache.get(rows.get(i).get(targetTableColumnName));
+
+            if (value == ValueCache.MISSING)
+            {
+                missedRows.add(rows.get(i));
+                missedIndices.add(i);
+            }
+
+            values.add(value);
+        }
+
+        if (!missedRows.isEmpty())
+        {
+            List<Object> missedValues = evalBatchUncached(scriptEngine, targetTableColumnName, missedRows);
+
+            for (int i = 0; i < missedRows.size(); i++)
+            {
+                values.set(missedIndices.get(i), missedValues.get(i));
+
+                cache.put(missedRows.get(i).get(targetTableColumnName), missedValues.get(i));
+            }
+        }
+
+        return values;
+    }
+
+    private List<Object> evalBatchUncached(ScriptEngine scriptEngine, String targetTableColumnName,
+            List<? extends Map<String, Object>> rows)
+    {
+        List<Object> values = new ArrayList<>(rows.size());
+
+        eval(scriptEngine, targetTableColumnName, rows, values);
+
+        if (values.size() != rows.size())
+        {
+            throw new RuntimeException(
+                    "Function " + functionName + " returned " + values.size() + " values for " + rows.size() + " rows");
+        }
+
+        return values;
+    }
+
+    public List<Map<String, Object>> mapBatch(ScriptEngine scriptEngine, List<? extends Map<String, Object>> rows)
+    {
+        List<Map<String, Object>> emitted = new ArrayList<>(rows.size());
+
+        eval(scriptEngine, rows, emitted);
+
+        return emitted;
+    }
+
     @Override
     public JsonElement toJsonElement()
     {
         JsonObject json = new JsonObject();
         json.addProperty("function", functionName);
+        if (batch)
+        {
+            json.addProperty("batch", true);
+        }
+        if (cacheMaxEntries > 0)
+        {
+            JsonObject cacheOptions = new JsonObject();
+            cacheOptions.addProperty("maxEntries", cacheMaxEntries);
+            json.add("cache", cacheOptions);
+        }
         return json;
     }
 
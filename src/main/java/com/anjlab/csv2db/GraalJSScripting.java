@@ -0,0 +1,38 @@
+package com.anjlab.csv2db;
+
+import javax.script.ScriptEngine;
+
+import org.graalvm.polyglot.Context;
+import org.graalvm.polyglot.Engine;
+
+import com.oracle.truffle.js.scriptengine.GraalJSScriptEngine;
+
+// Engines share one polyglot engine, so that scripts are parsed once. Contexts run in Nashorn compatibility
+// mode, so scripts written for Nashorn keep working. Loaded reflectively, GraalJS is an optional dependency.
+public final class GraalJSScripting
+{
+    private static Engine sharedEngine;
+
+    private GraalJSScripting()
+    {
+    }
+
+    private static synchronized Engine getSharedEngine()
+    {
+        if (sharedEngine == null)
+        {
+            sharedEngine = Engine.create();
+        }
+        return sharedEngine;
+    }
+
+    public static ScriptEngine createScriptEngine()
+    {
+        return GraalJSScriptEngine.create(
+                getSharedEngine(),
+                Context.newBuilder("js")
+                        // Scripts call methods of rows, emit records and use Java classes
+                        .allowAllAccess(true)
+                        .option("js.nashorn-compat", "true"));
+    }
+}
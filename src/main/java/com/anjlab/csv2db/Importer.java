@@ -1,6 +1,7 @@
 package com.anjlab.csv2db;
 
 import au.com.bytecode.opencsv.CSVReader;
+import com.anjlab.csv2db.Configuration.OperationMode;
 import com.codahale.metrics.Timer;
 import com.codahale.metrics.Timer.Context;
 import org.apache.commons.compress.archivers.ArchiveEntry;
@@ -11,7 +12,7 @@ import org.apache.commons.io.FilenameUtils;
 import org.apache.commons.io.input.AutoCloseInputStream;
 import org.apache.commons.lang3.StringUtils;
 
-import javax.script.ScriptContext;
+import javax.script.Invocable;
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 import java.io.Closeable;
@@ -26,7 +27,10 @@ import java.sql.BatchUpdateException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.ExecutorService;
@@ -40,11 +44,31 @@ public class Importer
     private final int numberOfThreads;
     private final PerformanceCounter perfCounter;
 
+    private ExecutionPlan plan;
+
+    private PrimaryKeySet primaryKeySet;
+
+    private final List<LookupTable> lookupTables = new ArrayList<>();
+
+    // Script engines of consumer threads are reused by all imports
+    private final ScriptEngine[] scriptEngines;
+
     public Importer(Configuration config, int numberOfThreads, PerformanceCounter perfCounter)
     {
         this.numberOfThreads = numberOfThreads;
         this.config = config;
         this.perfCounter = perfCounter;
+        this.scriptEngines = new ScriptEngine[numberOfThreads];
+    }
+
+    private ScriptEngine getScriptEngine(int threadId)
+    {
+        if (scriptEngines[threadId] == null)
+        {
+            scriptEngines[threadId] = config.createScriptEngine();
+        }
+
+        return scriptEngines[threadId];
     }
 
     public void performImport(String filename)
@@ -68,22 +92,126 @@ public class Importer
     {
         final File inputFile = new File(filename);
 
-        if (inputFile.isDirectory())
+        // Duplicates are suppressed across all files of the input
+        boolean ownPlan = plan == null;
+
+        if (ownPlan)
         {
-            importFromDir(inputFile, filenameFilter);
+            plan = compilePlan();
+            primaryKeySet = createPrimaryKeySet();
         }
-        else if (StringUtils.endsWithIgnoreCase(filename, ".zip"))
+
+        try
         {
-            importFromZip(inputFile, filenameFilter);
+            if (inputFile.isDirectory())
+            {
+                importFromDir(inputFile, filenameFilter);
+            }
+            else if (StringUtils.endsWithIgnoreCase(filename, ".zip"))
+            {
+                importFromZip(inputFile, filenameFilter);
+            }
+            else
+            {
+                logImportingFrom(inputFile.getName());
+
+                performImport(new AutoCloseInputStream(new FileInputStream(inputFile)));
+            }
         }
-        else
+        finally
+        {
+            if (ownPlan)
+            {
+                closeLookupTables();
+                plan = null;
+                primaryKeySet = null;
+            }
+        }
+    }
+
+    private ExecutionPlan compilePlan()
+            throws ClassNotFoundException, SQLException, ConfigurationException, IOException
+    {
+        // Configuration errors are reported before any connection is opened
+        ExecutionPlan plan = ExecutionPlan.compile(config);
+
+        if (config.getTypedBinding() == null && plan.getLookupReferences().isEmpty())
         {
-            logImportingFrom(inputFile.getName());
+            return plan;
+        }
+
+        Connection connection = createConnection();
+
+        try
+        {
+            if (config.getTypedBinding() != null)
+            {
+                plan = plan.withColumnBinders(ColumnBinder.load(config, connection));
+            }
+
+            loadLookupTables(plan, connection);
 
-            performImport(new AutoCloseInputStream(new FileInputStream(inputFile)));
+            return plan;
+        }
+        finally
+        {
+            connection.close();
         }
     }
 
+    private void loadLookupTables(ExecutionPlan plan, Connection connection)
+            throws ClassNotFoundException, SQLException, ConfigurationException, IOException
+    {
+        Map<String, LookupTable> tables = new HashMap<>();
+
+        try
+        {
+            for (LookupReference reference : plan.getLookupReferences())
+            {
+                LookupTable table = tables.get(reference.getLookupName());
+
+                if (table == null)
+                {
+                    Configuration.LookupOptions options = config.getLookups().get(reference.getLookupName());
+
+                    table = LookupTable.load(config, reference.getLookupName(), connection,
+                            options.getOnMiss() == Configuration.LookupMissPolicy.INSERT
+                                    ? createConnection()
+                                    : null);
+
+                    tables.put(reference.getLookupName(), table);
+                    lookupTables.add(table);
+                }
+
+                reference.setTable(table);
+            }
+        }
+        catch (ClassNotFoundException | SQLException | ConfigurationException | IOException | RuntimeException e)
+        {
+            closeLookupTables();
+            throw e;
+        }
+    }
+
+    private void closeLookupTables()
+    {
+        for (LookupTable table : lookupTables)
+        {
+            closeQuietly(table);
+        }
+
+        lookupTables.clear();
+    }
+
+    private PrimaryKeySet createPrimaryKeySet()
+    {
+        Configuration.DeduplicationOptions options = config.getDeduplication();
+
+        return options != null
+                ? new PrimaryKeySet(options.getMaxMemoryMB())
+                : null;
+    }
+
     private void importFromDir(final File input, FilenameFilter filenameFilter)
             throws ClassNotFoundException, SQLException, IOException,
             ScriptException, ConfigurationException, FileNotFoundException, InterruptedException
@@ -136,25 +264,100 @@ public class Importer
     public void performImport(InputStream input)
             throws ClassNotFoundException, SQLException, IOException, ScriptException, ConfigurationException, InterruptedException
     {
-        ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+        boolean ownPlan = plan == null;
+
+        if (ownPlan)
+        {
+            plan = compilePlan();
+            primaryKeySet = createPrimaryKeySet();
+        }
+
+        TargetTableIndex targetTableIndex = null;
+
+        try
+        {
+            ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+
+            Mediator mediator = new SharedBlockingQueueMediator(config, numberOfThreads);
+
+            targetTableIndex = loadTargetTableIndex();
+
+            PrimaryKeyFilter primaryKeyFilter = targetTableIndex == null
+                    ? loadPrimaryKeyFilter()
+                    : null;
+
+            for (int i = 0; i < numberOfThreads; i++)
+            {
+                executorService.submit(createConsumer(mediator, plan, primaryKeyFilter, targetTableIndex, primaryKeySet, i));
+            }
+
+            executorService.shutdown();
+
+            readInput(input, mediator, plan.getRowFilter());
+
+            executorService.awaitTermination(1, TimeUnit.DAYS);
+        }
+        finally
+        {
+            closeQuietly(targetTableIndex);
+
+            if (ownPlan)
+            {
+                closeLookupTables();
+                plan = null;
+                primaryKeySet = null;
+            }
+        }
+    }
+
+    private TargetTableIndex loadTargetTableIndex()
+            throws ClassNotFoundException, SQLException, ConfigurationException, IOException
+    {
+        if (config.getPreloadTargetTable() == null || config.getOperationMode() == OperationMode.INSERT)
+        {
+            return null;
+        }
 
-        Mediator mediator = new SharedBlockingQueueMediator(config, numberOfThreads);
+        Connection connection = createConnection();
 
-        for (int i = 0; i < numberOfThreads; i++)
+        try
+        {
+            return TargetTableIndex.load(config, connection);
+        }
+        finally
         {
-            executorService.submit(createConsumer(mediator, i));
+            connection.close();
         }
+    }
 
-        executorService.shutdown();
+    private PrimaryKeyFilter loadPrimaryKeyFilter()
+            throws ClassNotFoundException, SQLException, ConfigurationException
+    {
+        if (config.getPrimaryKeyFilter() == null || config.getOperationMode() == OperationMode.INSERT)
+        {
+            return null;
+        }
 
-        readInput(input, mediator);
+        Connection connection = createConnection();
 
-        executorService.awaitTermination(1, TimeUnit.DAYS);
+        try
+        {
+            return PrimaryKeyFilter.load(config, connection);
+        }
+        finally
+        {
+            connection.close();
+        }
     }
 
-    private void readInput(InputStream input, Mediator mediator) throws InterruptedException
+    // Package-private for benchmarks
+    void readInput(InputStream input, Mediator mediator, RowFilter rowFilter)
+            throws InterruptedException, ConfigurationException
     {
         CSVReader reader = null;
+        ExternalSorter sorter = config.getExternalSort() != null
+                ? new ExternalSorter(config)
+                : null;
         try
         {
             Configuration.CSVOptions csvOptions = config.getCsvOptions();
@@ -171,12 +374,17 @@ public class Importer
             String[] nextLine;
             while ((nextLine = reader.readNext()) != null)
             {
-                // XXX This may block if all handlers terminated with error
-                mediator.dispatch(nextLine);
-
-                if (perfCounter != null)
+                // Filtered lines still count towards the limit
+                if (rowFilter == null || rowFilter.accept(nextLine))
                 {
-                    perfCounter.lineEnqueued();
+                    if (sorter != null)
+                    {
+                        sorter.add(nextLine);
+                    }
+                    else
+                    {
+                        dispatch(mediator, nextLine);
+                    }
                 }
 
                 if (config.getLimit() > 0)
@@ -190,15 +398,38 @@ public class Importer
                     }
                 }
             }
+
+            if (sorter != null)
+            {
+                Iterator<String[]> sortedLines = sorter.sorted();
+
+                while (sortedLines.hasNext())
+                {
+                    dispatch(mediator, sortedLines.next());
+                }
+            }
+
             mediator.producerDone();
         }
-        catch (IOException e)
+        catch (IOException | ScriptException e)
         {
             throw new RuntimeException(e);
         }
         finally
         {
             closeQuietly(reader);
+            closeQuietly(sorter);
+        }
+    }
+
+    private void dispatch(Mediator mediator, String[] line) throws InterruptedException
+    {
+        // XXX This may block if all handlers terminated with error
+        mediator.dispatch(line);
+
+        if (perfCounter != null)
+        {
+            perfCounter.lineEnqueued();
         }
     }
 
@@ -217,43 +448,55 @@ public class Importer
         }
     }
 
-    private Runnable createConsumer(final Mediator mediator, final int threadId)
-            throws SQLException, ScriptException, ClassNotFoundException, ConfigurationException
+    private Runnable createConsumer(
+            final Mediator mediator,
+            final ExecutionPlan plan,
+            final PrimaryKeyFilter primaryKeyFilter,
+            final TargetTableIndex targetTableIndex,
+            final PrimaryKeySet primaryKeySet,
+            final int threadId)
+                    throws SQLException, ScriptException, ClassNotFoundException, ConfigurationException
     {
+        final ScriptEngine scriptEngine = getScriptEngine(threadId);
+
         return new Runnable()
         {
             final RecordHandler strategy = getRecordHandlerStrategy(
-                    createConnection(), config.getScriptEngine(), mediator, threadId);
+                    plan, createConnection(), scriptEngine, mediator,
+                    primaryKeyFilter, targetTableIndex, primaryKeySet, threadId);
 
             final Timer recordsMeter;
 
-            // TODO No need building & binding emitFunction if `config.getMap() == null`
-
             // The map function accepts nameValues and the JavaScript emit callback function.
             // The emit function should call back to Java, but since we can't create pure Java
             // object representing JavaScript function we create this bridge that will in turn
             // do the actual call to Java using the #handleRecord(...) interface method
             final Object emitFunction;
 
-            {
-                String threadLocalEmit = "emit" + threadId;
-                String threadLocalStrategy = "strategy" + threadId;
-
-                StringBuilder emitFunctionDeclaration = new StringBuilder()
-                        .append("function ").append(threadLocalEmit).append("(nameValues) {")
-                        .append(threadLocalStrategy).append(".handleRecord(nameValues);")
-                        .append("}");
+            // Rows for the batch map function
+            final List<Map<String, Object>> mapBuffer = new ArrayList<>();
 
-                try
+            {
+                if (plan.getMapFunction() != null && !plan.getMapFunction().isBatch())
                 {
-                    config.getScriptEngine().getContext().setAttribute(
-                            threadLocalStrategy, strategy, ScriptContext.ENGINE_SCOPE);
+                    try
+                    {
+                        // The bridge captures strategy of this thread instead of declaring globals
+                        Object emitFunctionFactory = scriptEngine.eval(
+                                "(function(strategy) { return function(nameValues) {"
+                                        + " strategy.handleRecord(nameValues); }; })");
 
-                    emitFunction = config.getScriptEngine().eval(emitFunctionDeclaration.toString());
+                        emitFunction = ((Invocable) scriptEngine)
+                                .invokeMethod(emitFunctionFactory, "call", null, strategy);
+                    }
+                    catch (ScriptException | NoSuchMethodException e)
+                    {
+                        throw new RuntimeException("Internal error", e);
+                    }
                 }
-                catch (ScriptException e)
+                else
                 {
-                    throw new RuntimeException("Internal error", e);
+                    emitFunction = null;
                 }
 
                 recordsMeter = Import.isMetricsEnabled()
@@ -332,26 +575,31 @@ public class Importer
                         return false;
                     }
 
-                    Map<String, Object> nameValues = new HashMap<String, Object>();
-                    for (Map.Entry<Integer, String> mapping : config.getColumnMappings().entrySet())
-                    {
-                        String value = columns[mapping.getKey()];
-
-                        String targetColumnName = mapping.getValue();
+                    Map<String, Object> nameValues = config.toNameValues(columns);
 
-                        nameValues.put(targetColumnName, value);
+                    if (plan.getMapPlugin() != null)
+                    {
+                        plan.getMapPlugin().map(nameValues, strategy);
                     }
-
-                    if (config.getMap() == null)
+                    else if (plan.getMapFunction() == null)
                     {
                         strategy.handleRecord(nameValues);
                     }
+                    else if (plan.getMapFunction().isBatch())
+                    {
+                        mapBuffer.add(nameValues);
+
+                        if (mapBuffer.size() >= config.getBatchSize())
+                        {
+                            flushMapBuffer();
+                        }
+                    }
                     else
                     {
                         // Note that all emitted values (if any)
                         // will be handled by this same thread
-                        config.getMap().eval(
-                                config.getScriptEngine(),
+                        plan.getMapFunction().eval(
+                                scriptEngine,
                                 nameValues,
                                 emitFunction);
                     }
@@ -361,6 +609,16 @@ public class Importer
                     // re-routed record
                     strategy.handleRecord((Map<String, Object>) record);
                 }
+                else if (record == Mediator.END_OF_LINES)
+                {
+                    // Other consumers still accept re-routed records
+                    flushMapBuffer();
+
+                    if (strategy instanceof BatchTransformRecordHandler)
+                    {
+                        ((BatchTransformRecordHandler) strategy).flush();
+                    }
+                }
                 else
                 {
                     // null-value?
@@ -370,6 +628,25 @@ public class Importer
                 return true;
             }
 
+            private void flushMapBuffer()
+                    throws SQLException, ConfigurationException, ScriptException, InterruptedException
+            {
+                if (mapBuffer.isEmpty())
+                {
+                    return;
+                }
+
+                // Emitted rows are collected by the map function and handled after it returns
+                List<Map<String, Object>> emitted = plan.getMapFunction().mapBatch(scriptEngine, mapBuffer);
+
+                mapBuffer.clear();
+
+                for (Map<String, Object> nameValues : emitted)
+                {
+                    strategy.handleRecord(nameValues);
+                }
+            }
+
             private void printStackTrace(Throwable t)
             {
                 if (t instanceof BatchUpdateException)
@@ -403,29 +680,83 @@ public class Importer
     public Connection createConnection() throws ClassNotFoundException, SQLException, ConfigurationException
     {
         Class.forName(config.getDriverClass());
-        Properties properties = new Properties();
-        if (config.getConnectionProperties() != null)
+        Properties properties;
+        if (plan != null)
         {
-            properties.putAll(config.getConnectionProperties());
+            properties = plan.getConnectionProperties();
+        }
+        else
+        {
+            properties = new Properties();
+            if (config.getConnectionProperties() != null)
+            {
+                properties.putAll(config.getConnectionProperties());
+            }
         }
 
         return DriverManager.getConnection(config.getConnectionUrl(), properties);
     }
 
     private RecordHandler getRecordHandlerStrategy(
-            Connection connection, ScriptEngine scriptEngine,
-            Router router, int threadId)
-                    throws SQLException, ScriptException
+            ExecutionPlan plan, Connection connection, ScriptEngine scriptEngine,
+            Router router, PrimaryKeyFilter primaryKeyFilter,
+            TargetTableIndex targetTableIndex, PrimaryKeySet primaryKeySet, int threadId)
+                    throws SQLException, ScriptException, ClassNotFoundException, ConfigurationException
     {
+        RecordHandler handler = createRecordHandler(
+                plan, connection, scriptEngine, router, primaryKeyFilter, targetTableIndex, primaryKeySet, threadId);
+
+        if (config.getCoalesce() != null)
+        {
+            handler = new CoalescingRecordHandler(plan, scriptEngine, router, threadId, numberOfThreads, handler);
+        }
+
+        if (!plan.getBatchTransformColumns().isEmpty())
+        {
+            handler = new BatchTransformRecordHandler(plan, scriptEngine, handler);
+        }
+
+        return handler;
+    }
+
+    private RecordHandler createRecordHandler(
+            ExecutionPlan plan, Connection connection, ScriptEngine scriptEngine,
+            Router router, PrimaryKeyFilter primaryKeyFilter,
+            TargetTableIndex targetTableIndex, PrimaryKeySet primaryKeySet, int threadId)
+                    throws SQLException, ScriptException, ClassNotFoundException, ConfigurationException
+    {
+        AbstractInsertUpdateRecordHandler handler;
+
         switch (config.getOperationMode())
         {
         case INSERT:
-            return new InsertRecordHandler(config, connection, scriptEngine, router, threadId, numberOfThreads);
+            InsertRecordHandler insertHandler =
+                    new InsertRecordHandler(plan, connection, scriptEngine, router, threadId, numberOfThreads);
+            insertHandler.setPrimaryKeySet(primaryKeySet);
+            return insertHandler;
         case INSERTONLY:
-            return new InsertOnlyRecordHandler(config, connection, scriptEngine, router, threadId, numberOfThreads);
+            handler = new InsertOnlyRecordHandler(plan, connection, scriptEngine, router, threadId, numberOfThreads);
+            break;
         default:
-            return new MergeRecordHandler(config, connection, scriptEngine, router, threadId, numberOfThreads);
+            handler = new MergeRecordHandler(plan, connection, scriptEngine, router, threadId, numberOfThreads);
+            break;
         }
+
+        handler.setPrimaryKeyFilter(primaryKeyFilter);
+        handler.setTargetTableIndex(targetTableIndex);
+        handler.setPrimaryKeySet(primaryKeySet);
+
+        if (config.getMergeJoin() != null && targetTableIndex == null)
+        {
+            handler.setSortedTargetTableCursor(new SortedTargetTableCursor(config, createConnection()));
+        }
+
+        if (config.getPrefetch() != null && targetTableIndex == null)
+        {
+            handler.setLookupConnection(createConnection());
+        }
+
+        return handler;
     }
 
 }
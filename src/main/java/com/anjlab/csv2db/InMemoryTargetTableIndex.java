@@ -0,0 +1,51 @@
+package com.anjlab.csv2db;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class InMemoryTargetTableIndex extends TargetTableIndex
+{
+    private final Map<PrimaryKey, Object[]> rows;
+
+    public InMemoryTargetTableIndex(List<String> columnNames)
+    {
+        super(columnNames);
+
+        this.rows = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public Map<String, Object> get(PrimaryKey keys)
+    {
+        Object[] values = rows.get(keys);
+
+        return values == null ? null : toNameValues(values);
+    }
+
+    @Override
+    public void put(PrimaryKey keys, Object[] values)
+    {
+        rows.put(keys, values);
+    }
+
+    @Override
+    public long size()
+    {
+        return rows.size();
+    }
+
+    public void copyTo(TargetTableIndex index)
+    {
+        for (Entry<PrimaryKey, Object[]> entry : rows.entrySet())
+        {
+            index.put(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public void clear()
+    {
+        rows.clear();
+    }
+}
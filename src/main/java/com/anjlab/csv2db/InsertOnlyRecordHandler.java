@@ -2,11 +2,14 @@ package com.anjlab.csv2db;
 
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.BitSet;
 import java.util.Map;
 
 import javax.script.ScriptEngine;
 import javax.script.ScriptException;
 
+import com.anjlab.csv2db.ExecutionPlan.CompiledColumn;
+
 /**
  * Class to insert missing values, totally ignoring rows where the primary key already exists
  * NB: depending on your data you might want to set batch size to 1 (or very low) to avoid
@@ -19,15 +22,15 @@ public class InsertOnlyRecordHandler extends MergeRecordHandler
 {
 
     public InsertOnlyRecordHandler(
-            Configuration config,
+            ExecutionPlan plan,
             Connection connection,
             ScriptEngine scriptEngine,
             Router router,
             int threadId,
             int threadCount)
-                    throws SQLException, ScriptException
+                    throws SQLException
     {
-        super(config, connection, scriptEngine, router, threadId, threadCount);
+        super(plan, connection, scriptEngine, router, threadId, threadCount);
     }
 
     @Override
@@ -36,9 +39,9 @@ public class InsertOnlyRecordHandler extends MergeRecordHandler
     {
         if (config.isIgnoreNullPK())
         {
-            for (String primaryKeyColumnName : config.getPrimaryKeys())
+            for (CompiledColumn primaryKeyColumn : getPrimaryKeyColumns())
             {
-                if (transform(primaryKeyColumnName, nameValues) == null)
+                if (transform(primaryKeyColumn, nameValues) == null)
                 {
                     // don't perform an insert if any of the PK values are null
                     return;
@@ -50,7 +53,7 @@ public class InsertOnlyRecordHandler extends MergeRecordHandler
     }
 
     @Override
-    protected void performUpdate(Map<String, Object> nameValues)
+    protected void performUpdate(Map<String, Object> nameValues, BitSet changedColumns)
             throws SQLException, ConfigurationException, ScriptException
     {
         // Do nothing
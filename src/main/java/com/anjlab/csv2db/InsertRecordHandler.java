@@ -1,5 +1,6 @@
 package com.anjlab.csv2db;
 
+import com.anjlab.csv2db.ExecutionPlan.CompiledColumn;
 import com.codahale.metrics.Timer;
 
 import javax.script.ScriptEngine;
@@ -8,6 +9,7 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -19,68 +21,27 @@ public class InsertRecordHandler extends AbstractRecordHandler
 
     private int numberOfStatementsInBatch;
 
-    private final Set<String> duplicatesTracker;
+    private final Set<PrimaryKey> duplicatesTracker;
 
     public InsertRecordHandler(
-            Configuration config,
+            ExecutionPlan plan,
             Connection connection,
             ScriptEngine scriptEngine,
             Router router,
             int threadId,
             int threadCount)
-                    throws SQLException, ScriptException
+                    throws SQLException
     {
-        super(config, scriptEngine, connection, router, threadId, threadCount);
+        super(plan, scriptEngine, connection, router, threadId, threadCount);
 
-        StringBuilder insertClause =
-                new StringBuilder("INSERT INTO ")
-                        .append(config.escapeSqlName(config.getTargetTable()))
-                        .append(" (");
-
-        StringBuilder valuesClause = new StringBuilder();
-
-        for (String targetTableColumnName : getColumnNamesWithInsertValues())
-        {
-            if (valuesClause.length() > 0)
-            {
-                insertClause.append(", ");
-                valuesClause.append(", ");
-            }
-            insertClause.append(config.escapeSqlName(targetTableColumnName));
-
-            ValueDefinition definition = config.getInsertValues().get(targetTableColumnName);
-
-            if (definition.producesSQL())
-            {
-                valuesClause.append(definition.eval(targetTableColumnName, null, scriptEngine));
-            }
-            else
-            {
-                valuesClause.append("?");
-            }
-        }
-
-        for (String targetTableColumnName : getOrderedTableColumnNames())
-        {
-            if (valuesClause.length() > 0)
-            {
-                insertClause.append(", ");
-                valuesClause.append(", ");
-            }
-            insertClause.append(config.escapeSqlName(targetTableColumnName));
-            valuesClause.append("?");
-        }
-
-        insertClause.append(") VALUES (")
-                .append(valuesClause)
-                .append(")");
+        String insertClause = plan.getInsertClause();
 
         if (Import.isVerboseEnabled())
         {
             Import.logVerbose("INSERT statement used: " + insertClause);
         }
 
-        insertStatement = connection.prepareStatement(insertClause.toString());
+        insertStatement = connection.prepareStatement(insertClause);
 
         insertStatementTimer = Import.METRIC_REGISTRY.timer("thread-" + threadId + ".inserts");
 
@@ -96,15 +57,16 @@ public class InsertRecordHandler extends AbstractRecordHandler
             printNameValues(nameValues);
         }
 
-        // XXX Check duplicates should be performed on eval'ed/transformed values,
-        // right now it's partially true (i.e. eval'ed but not transformed values are used),
-        // and only if map function is declared in configuration
+        // Duplicates are checked on transformed values of primary keys,
+        // which are cached in the row and reused when the record is written
+        PrimaryKey transformedKeys = config.isIgnoreDuplicatePK() || primaryKeySet != null
+                ? transformPrimaryKeys(nameValues)
+                : null;
+
         if (config.isIgnoreDuplicatePK())
         {
             // If needed re-route this to another handler based on keys hash
-            String keys = config.joinPrimaryKeys(nameValues);
-
-            int partitionId = Math.abs(keys.hashCode() % threadCount);
+            int partitionId = transformedKeys.partition(threadCount);
 
             if (partitionId != threadId)
             {
@@ -112,48 +74,63 @@ public class InsertRecordHandler extends AbstractRecordHandler
                 return;
             }
 
-            if (duplicatesTracker.contains(keys))
+            if (duplicatesTracker.contains(transformedKeys))
             {
                 // This record will be ignored
                 if (Import.isVerboseEnabled())
                 {
-                    Import.logVerbose("Duplicate already in batch for keys: " + keys);
+                    Import.logVerbose("Duplicate already in batch for keys: " + transformedKeys);
                 }
                 return;
             }
 
-            duplicatesTracker.add(keys);
+            duplicatesTracker.add(transformedKeys);
         }
 
-        int parameterIndex = 1;
-
-        for (String targetTableColumnName : getColumnNamesWithInsertValues())
+        if (primaryKeySet != null)
         {
-            ValueDefinition definition = config.getInsertValues().get(targetTableColumnName);
-
-            if (!definition.producesSQL())
+            if (!primaryKeySet.add(transformedKeys))
             {
-                Object columnValue = eval(definition, targetTableColumnName, nameValues);
+                suppressedDuplicates.mark();
 
                 if (Import.isVerboseEnabled())
                 {
-                    printNameValue(targetTableColumnName, columnValue);
+                    Import.logVerbose("Duplicate ignored for keys: " + transformedKeys);
                 }
-
-                insertStatement.setObject(parameterIndex++, columnValue);
+                return;
             }
         }
 
-        for (String targetTableColumnName : getOrderedTableColumnNames())
+        int parameterIndex = 1;
+
+        List<String> parameterNames = plan.getInsertValueParameterNames();
+        List<ValueDefinition> parameters = plan.getInsertValueParameters();
+        List<ColumnBinder> binders = plan.getInsertValueBinders();
+
+        for (int i = 0; i < parameters.size(); i++)
         {
-            Object columnValue = transform(targetTableColumnName, nameValues);
+            String targetTableColumnName = parameterNames.get(i);
+
+            Object columnValue = eval(parameters.get(i), targetTableColumnName, nameValues);
 
             if (Import.isVerboseEnabled())
             {
                 printNameValue(targetTableColumnName, columnValue);
             }
 
-            insertStatement.setObject(parameterIndex++, columnValue);
+            bind(insertStatement, parameterIndex++, binders.get(i), columnValue, nameValues);
+        }
+
+        for (CompiledColumn column : getTableColumns())
+        {
+            Object columnValue = transform(column, nameValues);
+
+            if (Import.isVerboseEnabled())
+            {
+                printNameValue(column.name, columnValue);
+            }
+
+            bind(insertStatement, parameterIndex++, column.binder, columnValue, nameValues);
         }
 
         numberOfStatementsInBatch++;
@@ -179,6 +156,15 @@ public class InsertRecordHandler extends AbstractRecordHandler
         }
 
         if (numberOfStatementsInBatch >= limit)
+        {
+            flushBatch();
+        }
+    }
+
+    // Executes pending INSERTs even if batch execution is disabled
+    protected void flushBatch() throws SQLException
+    {
+        if (numberOfStatementsInBatch > 0)
         {
             if (Import.isVerboseEnabled())
             {
@@ -0,0 +1,68 @@
+package com.anjlab.csv2db;
+
+import java.util.Map;
+
+import javax.script.ScriptEngine;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+public class LookupReference implements ValueDefinition
+{
+    private final String lookupName;
+
+    private final String keyColumnName;
+
+    private transient volatile LookupTable table;
+
+    public LookupReference(String lookupName, String keyColumnName)
+    {
+        this.lookupName = lookupName;
+        this.keyColumnName = keyColumnName;
+    }
+
+    public String getLookupName()
+    {
+        return lookupName;
+    }
+
+    public void setTable(LookupTable table)
+    {
+        this.table = table;
+    }
+
+    @Override
+    public Object eval(String targetTableColumnName, Map<String, Object> nameValues, ScriptEngine scriptEngine)
+    {
+        LookupTable lookupTable = table;
+
+        if (lookupTable == null)
+        {
+            throw new IllegalStateException("Lookup '" + lookupName + "' is not loaded");
+        }
+
+        Object key = nameValues == null
+                ? null
+                : nameValues.get(keyColumnName != null ? keyColumnName : targetTableColumnName);
+
+        return lookupTable.get(key);
+    }
+
+    @Override
+    public JsonElement toJsonElement()
+    {
+        JsonObject json = new JsonObject();
+        json.addProperty("lookup", lookupName);
+        if (keyColumnName != null)
+        {
+            json.addProperty("key", keyColumnName);
+        }
+        return json;
+    }
+
+    @Override
+    public boolean producesSQL()
+    {
+        return false;
+    }
+}
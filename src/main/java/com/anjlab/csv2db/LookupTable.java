@@ -0,0 +1,319 @@
+package com.anjlab.csv2db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.anjlab.csv2db.Configuration.CSVOptions;
+import com.anjlab.csv2db.Configuration.LookupMissPolicy;
+import com.anjlab.csv2db.Configuration.LookupOptions;
+
+import au.com.bytecode.opencsv.CSVReader;
+
+// Shared by all consumers, keys are compared as strings
+public class LookupTable implements Closeable
+{
+    private static final Object MISSING = ValueCache.MISSING;
+
+    private final String name;
+
+    private final LookupOptions options;
+
+    private final String[] keys;
+
+    private final Object[] values;
+
+    private final int size;
+
+    private final ValueCache fetchedValues;
+
+    // Only used in INSERT mode
+    private final Connection connection;
+
+    private PreparedStatement insertStatement;
+
+    private PreparedStatement fetchStatement;
+
+    private LookupTable(String name, LookupOptions options, List<String> keys, List<Object> values,
+            Connection connection)
+    {
+        this.name = name;
+        this.options = options;
+        this.connection = connection;
+
+        // Load factor is at most 0.5, so that probe sequences stay short
+        int capacity = Integer.highestOneBit(Math.max(2, keys.size()) * 2) * 2;
+
+        this.keys = new String[capacity];
+        this.values = new Object[capacity];
+
+        int count = 0;
+
+        for (int i = 0; i < keys.size(); i++)
+        {
+            String key = keys.get(i);
+
+            if (key == null)
+            {
+                continue;
+            }
+
+            int index = indexOf(key);
+
+            if (this.keys[index] == null)
+            {
+                this.keys[index] = key;
+                count++;
+            }
+
+            // The last row of the same key wins
+            this.values[index] = values.get(i);
+        }
+
+        this.size = count;
+
+        this.fetchedValues = options.getOnMiss() == LookupMissPolicy.INSERT
+                ? new ValueCache(options.getMaxCachedEntries(), "lookup." + name)
+                : null;
+    }
+
+    private int indexOf(String key)
+    {
+        int mask = keys.length - 1;
+
+        int hash = key.hashCode();
+        hash ^= (hash >>> 16);
+
+        int index = hash & mask;
+
+        while (keys[index] != null && !keys[index].equals(key))
+        {
+            index = (index + 1) & mask;
+        }
+
+        return index;
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public int size()
+    {
+        return size;
+    }
+
+    public Object get(Object key)
+    {
+        if (key == null)
+        {
+            return null;
+        }
+
+        String k = key.toString();
+
+        int index = indexOf(k);
+
+        if (keys[index] != null)
+        {
+            return values[index];
+        }
+
+        switch (options.getOnMiss())
+        {
+        case FAIL:
+            throw new IllegalArgumentException("Key '" + k + "' not found in lookup '" + name + "'");
+
+        case INSERT:
+            return fetchOrInsert(k);
+
+        default:
+            return null;
+        }
+    }
+
+    private Object fetchOrInsert(String key)
+    {
+        Object value = fetchedValues.get(key);
+
+        if (value != MISSING)
+        {
+            return value;
+        }
+
+        // Consumers share the connection, and the same key should only be inserted once
+        synchronized (this)
+        {
+            try
+            {
+                value = fetch(key);
+
+                if (value == MISSING)
+                {
+                    if (Import.isVerboseEnabled())
+                    {
+                        Import.logVerbose("Inserting key '" + key + "' to lookup '" + name + "'");
+                    }
+
+                    insertStatement.setString(1, key);
+                    insertStatement.executeUpdate();
+
+                    value = fetch(key);
+
+                    if (value == MISSING)
+                    {
+                        throw new IllegalStateException(
+                                "Key '" + key + "' not found in lookup '" + name + "' after it was inserted");
+                    }
+                }
+            }
+            catch (SQLException e)
+            {
+                throw new RuntimeException("Error inserting key '" + key + "' to lookup '" + name + "'", e);
+            }
+
+            fetchedValues.put(key, value);
+
+            return value;
+        }
+    }
+
+    private Object fetch(String key) throws SQLException
+    {
+        fetchStatement.setString(1, key);
+
+        try (ResultSet resultSet = fetchStatement.executeQuery())
+        {
+            return resultSet.next() ? resultSet.getObject(1) : MISSING;
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (connection == null)
+        {
+            return;
+        }
+
+        try
+        {
+            connection.close();
+        }
+        catch (SQLException e)
+        {
+            throw new IOException(e);
+        }
+    }
+
+    // missConnection is owned by the table, it is only used in INSERT miss mode
+    public static LookupTable load(Configuration config, String name, Connection connection,
+            Connection missConnection) throws SQLException, IOException
+    {
+        try
+        {
+            return load(config, name, config.getLookups().get(name), connection, missConnection);
+        }
+        catch (SQLException | IOException | RuntimeException e)
+        {
+            if (missConnection != null)
+            {
+                missConnection.close();
+            }
+            throw e;
+        }
+    }
+
+    private static LookupTable load(Configuration config, String name, LookupOptions options,
+            Connection connection, Connection missConnection) throws SQLException, IOException
+    {
+        List<String> keys = new ArrayList<>();
+        List<Object> values = new ArrayList<>();
+
+        if (options.getQuery() != null)
+        {
+            if (Import.isVerboseEnabled())
+            {
+                Import.logVerbose("Loading lookup '" + name + "' using: " + options.getQuery());
+            }
+
+            try (Statement statement = connection.createStatement();
+                    ResultSet resultSet = statement.executeQuery(options.getQuery()))
+            {
+                while (resultSet.next())
+                {
+                    Object key = resultSet.getObject(1);
+
+                    keys.add(key == null ? null : key.toString());
+                    values.add(resultSet.getObject(2));
+                }
+            }
+        }
+        else
+        {
+            loadCsv(config, options, keys, values);
+        }
+
+        LookupTable table = new LookupTable(name, options, keys, values, missConnection);
+
+        if (missConnection != null)
+        {
+            table.insertStatement = missConnection.prepareStatement(options.getInsert());
+            table.fetchStatement = missConnection.prepareStatement(options.getFetch());
+        }
+
+        if (Import.isVerboseEnabled())
+        {
+            Import.logVerbose("Loaded " + table.size() + " entries to lookup '" + name + "'");
+        }
+
+        return table;
+    }
+
+    private static void loadCsv(Configuration config, LookupOptions options, List<String> keys, List<Object> values)
+            throws IOException
+    {
+        File file = config.getFileResolver() != null
+                ? config.getFileResolver().getFile(options.getCsv())
+                : new File(options.getCsv());
+
+        CSVOptions csvOptions = options.getCsvOptions() != null
+                ? options.getCsvOptions()
+                : new CSVOptions();
+
+        try (CSVReader reader = new CSVReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8),
+                csvOptions.getSeparatorChar(),
+                csvOptions.getQuoteChar(),
+                csvOptions.getEscapeChar(),
+                csvOptions.getSkipLines(),
+                csvOptions.isStrictQuotes(),
+                csvOptions.isIgnoreLeadingWhiteSpace()))
+        {
+            String[] line;
+
+            while ((line = reader.readNext()) != null)
+            {
+                if (line.length <= Math.max(options.getKeyColumn(), options.getValueColumn()))
+                {
+                    // Blank lines
+                    continue;
+                }
+
+                keys.add(line[options.getKeyColumn()]);
+                values.add(line[options.getValueColumn()]);
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package com.anjlab.csv2db;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+// One instance is shared by all import threads, so implementations should be thread-safe
+public interface MapPlugin
+{
+    void init(Map<String, Object> args) throws ConfigurationException;
+
+    void map(Map<String, Object> nameValues, RecordHandler emit)
+            throws SQLException, ConfigurationException, ScriptException, InterruptedException;
+}
@@ -2,6 +2,9 @@ package com.anjlab.csv2db;
 
 public interface Mediator extends Router
 {
+    // Taken once when there are no more lines for the consumer
+    Object END_OF_LINES = new Object();
+
     void dispatch(String[] line) throws InterruptedException;
 
     void producerDone() throws InterruptedException;
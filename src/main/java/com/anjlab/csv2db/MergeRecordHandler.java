@@ -1,5 +1,6 @@
 package com.anjlab.csv2db;
 
+import com.anjlab.csv2db.ExecutionPlan.CompiledColumn;
 import com.codahale.metrics.Timer;
 
 import javax.script.ScriptEngine;
@@ -7,81 +8,133 @@ import javax.script.ScriptException;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import static com.anjlab.csv2db.Import.runtimeException;
 
 public class MergeRecordHandler extends AbstractInsertUpdateRecordHandler
 {
-    protected AbstractRecordHandler insertRecordHandler;
+    private static final int MAX_PARTIAL_UPDATE_STATEMENTS = 32;
 
-    protected PreparedStatement updateStatement;
+    protected InsertRecordHandler insertRecordHandler;
 
-    private final Timer updateStatementTimer;
+    protected UpdateBatch updateBatch;
 
-    private int numberOfStatementsInBatch;
+    // Keyed by changed columns, in LRU order
+    private final LinkedHashMap<BitSet, UpdateBatch> partialUpdateBatches;
 
-    public MergeRecordHandler(
-            Configuration config,
-            Connection connection,
-            ScriptEngine scriptEngine,
-            Router router,
-            int threadId,
-            int threadCount)
-                    throws SQLException, ScriptException
+    // Partial updates of the same key must not be reordered, otherwise older values may overwrite newer ones
+    private final Map<PrimaryKey, UpdateBatch> partialUpdateKeys;
+
+    private final Timer updateStatementTimer;
+
+    protected class UpdateBatch
     {
-        super(config, scriptEngine, connection, router, threadId, threadCount);
+        private final PreparedStatement statement;
 
-        StringBuilder setClause = new StringBuilder();
+        private final List<PrimaryKey> keys;
 
-        for (String targetTableColumnName : getColumnNamesWithUpdateValues())
+        private int numberOfStatementsInBatch;
+
+        public UpdateBatch(BitSet columns) throws SQLException
         {
-            if (setClause.length() > 0)
+            String updateClause = plan.getUpdateClause(columns);
+
+            if (Import.isVerboseEnabled())
             {
-                setClause.append(", ");
+                Import.logVerbose("UPDATE statement used: " + updateClause);
             }
-            setClause.append(config.escapeSqlName(targetTableColumnName)).append(" = ");
 
-            ValueDefinition definition = config.getUpdateValues().get(targetTableColumnName);
+            this.statement = connection.prepareStatement(updateClause);
+            this.keys = new ArrayList<>();
+        }
 
-            if (definition.producesSQL())
+        public void execute(int limit) throws SQLException
+        {
+            if (numberOfStatementsInBatch == 0 || numberOfStatementsInBatch < limit)
             {
-                setClause.append(definition.eval(targetTableColumnName, null, scriptEngine));
+                return;
             }
-            else
+
+            if (isTrackingWrittenRecords())
             {
-                setClause.append("?");
+                // Records that are still pending insert may already be updated by this batch
+                insertRecordHandler.flushBatch();
             }
-        }
 
-        for (String targetTableColumnName : getOrderedTableColumnNames())
-        {
-            if (setClause.length() > 0)
+            Import.measureTime(updateStatementTimer, new VoidCallable<SQLException>()
             {
-                setClause.append(", ");
+                @Override
+                public void run() throws SQLException
+                {
+                    statement.executeBatch();
+                }
+            });
+
+            statement.clearParameters();
+
+            numberOfStatementsInBatch = 0;
+
+            for (PrimaryKey key : keys)
+            {
+                partialUpdateKeys.remove(key);
             }
-            setClause.append(config.escapeSqlName(targetTableColumnName)).append(" = ?");
+
+            keys.clear();
         }
+    }
+
+    public MergeRecordHandler(
+            ExecutionPlan plan,
+            Connection connection,
+            ScriptEngine scriptEngine,
+            Router router,
+            int threadId,
+            int threadCount)
+                    throws SQLException
+    {
+        super(plan, scriptEngine, connection, router, threadId, threadCount);
+
+        this.updateStatementTimer = Import.METRIC_REGISTRY.timer("thread-" + threadId + ".updates");
 
-        StringBuilder updateClause =
-                new StringBuilder("UPDATE ")
-                        .append(config.escapeSqlName(config.getTargetTable()))
-                        .append(" SET ")
-                        .append(setClause)
-                        .append(" WHERE ")
-                        .append(buildWhereClause());
+        this.updateBatch = new UpdateBatch(null);
 
-        if (Import.isVerboseEnabled())
-        {
-            Import.logVerbose("UPDATE statement used: " + updateClause);
-        }
+        this.partialUpdateBatches = new LinkedHashMap<>(16, 0.75f, true);
 
-        this.updateStatement = connection.prepareStatement(updateClause.toString());
+        this.partialUpdateKeys = new HashMap<>();
 
         this.insertRecordHandler = new InsertRecordHandler(
-                config, connection, scriptEngine, router, threadId, threadCount);
+                plan, connection, scriptEngine, router, threadId, threadCount);
+    }
 
-        this.updateStatementTimer = Import.METRIC_REGISTRY.timer("thread-" + threadId + ".updates");
+    private UpdateBatch getOrCreatePartialUpdateBatch(BitSet changedColumns) throws SQLException
+    {
+        UpdateBatch batch = partialUpdateBatches.get(changedColumns);
+
+        if (batch == null)
+        {
+            if (partialUpdateBatches.size() >= MAX_PARTIAL_UPDATE_STATEMENTS)
+            {
+                Iterator<UpdateBatch> eldest = partialUpdateBatches.values().iterator();
+                UpdateBatch evicted = eldest.next();
+                eldest.remove();
+
+                evicted.execute(0);
+                closeQuietly(evicted.statement);
+            }
+
+            batch = new UpdateBatch(changedColumns);
+
+            partialUpdateBatches.put(changedColumns, batch);
+        }
+
+        return batch;
     }
 
     @Override
@@ -89,9 +142,9 @@ public class MergeRecordHandler extends AbstractInsertUpdateRecordHandler
     {
         super.enableBatchExecution();
 
-        checkBatchExecution(config.getBatchSize());
-
         insertRecordHandler.enableBatchExecution();
+
+        checkBatchExecution(config.getBatchSize());
     }
 
     @Override
@@ -110,57 +163,85 @@ public class MergeRecordHandler extends AbstractInsertUpdateRecordHandler
     }
 
     @Override
-    protected void performUpdate(Map<String, Object> nameValues)
+    protected void performUpdate(Map<String, Object> nameValues, BitSet changedColumns)
             throws ScriptException, SQLException, ConfigurationException
     {
-        int parameterIndex = 1;
+        UpdateBatch batch = updateBatch;
 
-        //  Set parameters for the SET clause
-        for (String targetTableColumnName : getColumnNamesWithUpdateValues())
+        if (changedColumns != null)
         {
-            ValueDefinition definition = config.getUpdateValues().get(targetTableColumnName);
+            batch = getOrCreatePartialUpdateBatch(changedColumns);
 
-            if (!definition.producesSQL())
-            {
-                Object columnValue = eval(definition, targetTableColumnName, nameValues);
+            PrimaryKey keys = transformPrimaryKeys(nameValues);
 
-                if (Import.isVerboseEnabled())
-                {
-                    printNameValue(targetTableColumnName, columnValue);
-                }
+            UpdateBatch pendingBatch = partialUpdateKeys.get(keys);
 
-                updateStatement.setObject(parameterIndex++, columnValue);
+            if (pendingBatch != null && pendingBatch != batch)
+            {
+                // Previous update of this record should be applied first
+                pendingBatch.execute(0);
             }
+
+            partialUpdateKeys.put(keys, batch);
+            batch.keys.add(keys);
         }
 
-        for (String targetTableColumnName : getOrderedTableColumnNames())
+        int parameterIndex = 1;
+
+        //  Set parameters for the SET clause
+        List<String> parameterNames = plan.getUpdateValueParameterNames();
+        List<ValueDefinition> parameters = plan.getUpdateValueParameters();
+        List<ColumnBinder> binders = plan.getUpdateValueBinders();
+
+        for (int i = 0; i < parameters.size(); i++)
         {
-            Object columnValue = transform(targetTableColumnName, nameValues);
+            String targetTableColumnName = parameterNames.get(i);
+
+            Object columnValue = eval(parameters.get(i), targetTableColumnName, nameValues);
 
             if (Import.isVerboseEnabled())
             {
                 printNameValue(targetTableColumnName, columnValue);
             }
 
-            updateStatement.setObject(parameterIndex++, columnValue);
+            bind(batch.statement, parameterIndex++, binders.get(i), columnValue, nameValues);
+        }
+
+        CompiledColumn[] columns = getTableColumns();
+
+        for (int i = 0; i < columns.length; i++)
+        {
+            if (changedColumns != null && !changedColumns.get(i))
+            {
+                continue;
+            }
+
+            Object columnValue = transform(columns[i], nameValues);
+
+            if (Import.isVerboseEnabled())
+            {
+                printNameValue(columns[i].name, columnValue);
+            }
+
+            bind(batch.statement, parameterIndex++, columns[i].binder, columnValue, nameValues);
         }
 
         //  Set parameters for the WHERE clause
-        for (String primaryKeyColumnName : config.getPrimaryKeys())
+        for (CompiledColumn primaryKeyColumn : getPrimaryKeyColumns())
         {
-            Object primaryKeyColumnValue = transform(primaryKeyColumnName, nameValues);
+            Object primaryKeyColumnValue = transform(primaryKeyColumn, nameValues);
 
             if (Import.isVerboseEnabled())
             {
-                printNameValue(primaryKeyColumnName, primaryKeyColumnValue);
+                printNameValue(primaryKeyColumn.name, primaryKeyColumnValue);
             }
 
-            updateStatement.setObject(parameterIndex++, primaryKeyColumnValue);
+            bind(batch.statement, parameterIndex++, primaryKeyColumn.binder, primaryKeyColumnValue, nameValues);
         }
 
-        numberOfStatementsInBatch++;
+        batch.numberOfStatementsInBatch++;
 
-        updateStatement.addBatch();
+        batch.statement.addBatch();
 
         checkBatchExecution(config.getBatchSize());
     }
@@ -172,20 +253,11 @@ public class MergeRecordHandler extends AbstractInsertUpdateRecordHandler
             return;
         }
 
-        if (numberOfStatementsInBatch >= limit)
-        {
-            Import.measureTime(updateStatementTimer, new VoidCallable<SQLException>()
-            {
-                @Override
-                public void run() throws SQLException
-                {
-                    updateStatement.executeBatch();
-                }
-            });
-
-            updateStatement.clearParameters();
+        updateBatch.execute(limit);
 
-            numberOfStatementsInBatch = 0;
+        for (UpdateBatch batch : partialUpdateBatches.values())
+        {
+            batch.execute(limit);
         }
     }
 
@@ -206,8 +278,14 @@ public class MergeRecordHandler extends AbstractInsertUpdateRecordHandler
         }
         finally
         {
-            closeQuietly(updateStatement);
+            closeQuietly(updateBatch.statement);
+
+            for (UpdateBatch batch : partialUpdateBatches.values())
+            {
+                closeQuietly(batch.statement);
+            }
+
             super.close();
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,236 @@
+package com.anjlab.csv2db;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+// Numbers are equal regardless of their types and equal to strings of their plain form,
+// i.e. 1, 1L, 1.0 and "1", while "1", "01", "1.0" and "+1" are different strings
+public final class PrimaryKey implements Comparable<PrimaryKey>
+{
+    private static final long NULL_HASH = 0x9E3779B97F4A7C15L;
+
+    private static final PrimaryKeyComparator COMPARATOR = new PrimaryKeyComparator();
+
+    private final List<String> columnNames;
+
+    private final Object[] values;
+
+    private final long hash64;
+
+    private PrimaryKey(List<String> columnNames, Object[] values)
+    {
+        this.columnNames = columnNames;
+        this.values = values;
+
+        long hash = 1;
+
+        for (Object value : values)
+        {
+            hash = hash * 31 + hash(value);
+        }
+
+        this.hash64 = mix(hash);
+    }
+
+    public static PrimaryKey of(List<String> columnNames, Object... values)
+    {
+        return new PrimaryKey(columnNames, values);
+    }
+
+    public static PrimaryKey of(List<String> columnNames, Map<String, Object> nameValues)
+    {
+        Object[] values = new Object[columnNames.size()];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = nameValues.get(columnNames.get(i));
+        }
+
+        return new PrimaryKey(columnNames, values);
+    }
+
+    public int size()
+    {
+        return values.length;
+    }
+
+    public Object get(int index)
+    {
+        return values[index];
+    }
+
+    public Object[] toArray()
+    {
+        return values.clone();
+    }
+
+    public long fingerprint()
+    {
+        return hash64;
+    }
+
+    public int partition(int numberOfPartitions)
+    {
+        return (int) ((hash64 >>> 1) % numberOfPartitions);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        return (int) (hash64 ^ (hash64 >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+        if (this == obj)
+        {
+            return true;
+        }
+        if (!(obj instanceof PrimaryKey))
+        {
+            return false;
+        }
+
+        PrimaryKey other = (PrimaryKey) obj;
+
+        if (hash64 != other.hash64 || values.length != other.values.length)
+        {
+            return false;
+        }
+
+        for (int i = 0; i < values.length; i++)
+        {
+            if (!valueEquals(values[i], other.values[i]))
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    @Override
+    public int compareTo(PrimaryKey other)
+    {
+        return COMPARATOR.compare(this, other);
+    }
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+
+        for (int i = 0; i < values.length; i++)
+        {
+            if (i > 0)
+            {
+                builder.append(", ");
+            }
+            builder
+                    .append(columnNames.get(i))
+                    .append("=")
+                    .append(String.valueOf(values[i]));
+        }
+
+        return builder.toString();
+    }
+
+    private static boolean valueEquals(Object value1, Object value2)
+    {
+        if (value1 == null || value2 == null)
+        {
+            return value1 == value2;
+        }
+
+        if (value1 instanceof byte[] || value2 instanceof byte[])
+        {
+            return value1 instanceof byte[] && value2 instanceof byte[]
+                    && Arrays.equals((byte[]) value1, (byte[]) value2);
+        }
+
+        if (value1 instanceof String && value2 instanceof String)
+        {
+            return value1.equals(value2);
+        }
+
+        return canonical(value1).equals(canonical(value2));
+    }
+
+    private static long hash(Object value)
+    {
+        if (value == null)
+        {
+            return NULL_HASH;
+        }
+
+        if (value instanceof byte[])
+        {
+            return hash((byte[]) value);
+        }
+
+        return hash(canonical(value));
+    }
+
+    // Equal values have equal canonical forms, so equality is transitive and consistent with hashes
+    private static String canonical(Object value)
+    {
+        if (value instanceof String)
+        {
+            return (String) value;
+        }
+
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+        {
+            return Long.toString(((Number) value).longValue());
+        }
+
+        if (value instanceof Number)
+        {
+            BigDecimal decimal = PrimaryKeyComparator.toBigDecimal(value);
+
+            if (decimal == null)
+            {
+                return value.toString();
+            }
+
+            // stripTrailingZeros() doesn't strip zero values before Java 8
+            return decimal.signum() == 0
+                    ? "0"
+                    : decimal.stripTrailingZeros().toPlainString();
+        }
+
+        return value.toString();
+    }
+
+    private static long hash(String string)
+    {
+        return PrimaryKeyFilter.hash(string);
+    }
+
+    private static long hash(byte[] bytes)
+    {
+        // FNV-1a, same as for strings
+        long hash = 0xCBF29CE484222325L;
+
+        for (byte b : bytes)
+        {
+            hash ^= b & 0xFF;
+            hash *= 0x100000001B3L;
+        }
+
+        return hash;
+    }
+
+    private static long mix(long hash)
+    {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,94 @@
+package com.anjlab.csv2db;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Comparator;
+
+// Same order as databases sort keys: numbers numerically (with strings that represent numbers too),
+// strings by their UTF-16 code units (binary collation), and nulls last
+public class PrimaryKeyComparator implements Comparator<PrimaryKey>
+{
+    @Override
+    public int compare(PrimaryKey keys1, PrimaryKey keys2)
+    {
+        for (int i = 0; i < keys1.size(); i++)
+        {
+            int result = compareValues(keys1.get(i), keys2.get(i));
+
+            if (result != 0)
+            {
+                return result;
+            }
+        }
+
+        return 0;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public static int compareValues(Object value1, Object value2)
+    {
+        if (value1 == value2)
+        {
+            return 0;
+        }
+        if (value1 == null)
+        {
+            return 1;
+        }
+        if (value2 == null)
+        {
+            return -1;
+        }
+
+        if (value1 instanceof Number || value2 instanceof Number)
+        {
+            BigDecimal decimal1 = toBigDecimal(value1);
+            BigDecimal decimal2 = toBigDecimal(value2);
+
+            if (decimal1 != null && decimal2 != null)
+            {
+                return decimal1.compareTo(decimal2);
+            }
+        }
+
+        if (value1.getClass() == value2.getClass() && value1 instanceof Comparable)
+        {
+            return ((Comparable) value1).compareTo(value2);
+        }
+
+        return String.valueOf(value1).compareTo(String.valueOf(value2));
+    }
+
+    static BigDecimal toBigDecimal(Object value)
+    {
+        if (value instanceof BigDecimal)
+        {
+            return (BigDecimal) value;
+        }
+        if (value instanceof BigInteger)
+        {
+            return new BigDecimal((BigInteger) value);
+        }
+        if (value instanceof Double || value instanceof Float)
+        {
+            double doubleValue = ((Number) value).doubleValue();
+
+            return Double.isNaN(doubleValue) || Double.isInfinite(doubleValue)
+                    ? null
+                    : BigDecimal.valueOf(doubleValue);
+        }
+        if (value instanceof Number)
+        {
+            return BigDecimal.valueOf(((Number) value).longValue());
+        }
+
+        try
+        {
+            return new BigDecimal(value.toString().trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return null;
+        }
+    }
+}
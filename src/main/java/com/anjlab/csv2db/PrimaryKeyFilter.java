@@ -0,0 +1,163 @@
+package com.anjlab.csv2db;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.apache.commons.lang3.StringUtils;
+
+// Bloom filter of keys of target table, records whose keys are not in the filter are inserted without lookups
+public class PrimaryKeyFilter
+{
+    private static final long MAX_NUMBER_OF_BITS = (long) Integer.MAX_VALUE * Long.SIZE;
+
+    private final AtomicLongArray bits;
+
+    private final long numberOfBits;
+
+    private final int numberOfHashFunctions;
+
+    public PrimaryKeyFilter(long expectedNumberOfKeys, double falsePositiveProbability)
+    {
+        long n = Math.max(1, expectedNumberOfKeys);
+
+        long m = (long) (-n * Math.log(falsePositiveProbability) / (Math.log(2) * Math.log(2)));
+
+        m = Math.max(Long.SIZE, Math.min(m, MAX_NUMBER_OF_BITS));
+
+        this.bits = new AtomicLongArray((int) ((m + Long.SIZE - 1) / Long.SIZE));
+        this.numberOfBits = (long) bits.length() * Long.SIZE;
+        this.numberOfHashFunctions = Math.max(1, (int) Math.round((double) m / n * Math.log(2)));
+    }
+
+    public void put(PrimaryKey key)
+    {
+        long hash1 = key.fingerprint();
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+
+        for (int i = 0; i < numberOfHashFunctions; i++)
+        {
+            long bitIndex = ((hash1 + i * hash2) & Long.MAX_VALUE) % numberOfBits;
+
+            int index = (int) (bitIndex >>> 6);
+            long mask = 1L << bitIndex;
+
+            while (true)
+            {
+                long word = bits.get(index);
+
+                if ((word & mask) != 0 || bits.compareAndSet(index, word, word | mask))
+                {
+                    break;
+                }
+            }
+        }
+    }
+
+    public boolean mightContain(PrimaryKey key)
+    {
+        long hash1 = key.fingerprint();
+        long hash2 = mix(hash1 ^ 0x9E3779B97F4A7C15L);
+
+        for (int i = 0; i < numberOfHashFunctions; i++)
+        {
+            long bitIndex = ((hash1 + i * hash2) & Long.MAX_VALUE) % numberOfBits;
+
+            if ((bits.get((int) (bitIndex >>> 6)) & (1L << bitIndex)) == 0)
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    static long hash(String key)
+    {
+        // 64-bit FNV-1a
+        long hash = 0xCBF29CE484222325L;
+
+        for (int i = 0; i < key.length(); i++)
+        {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+
+        return mix(hash);
+    }
+
+    private static long mix(long hash)
+    {
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        hash *= 0xC4CEB9FE1A85EC53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    public static PrimaryKeyFilter load(Configuration config, Connection connection) throws SQLException
+    {
+        Configuration.PrimaryKeyFilterOptions options = config.getPrimaryKeyFilter();
+
+        String tableName = config.escapeSqlName(config.getTargetTable());
+
+        long numberOfKeys;
+
+        try (Statement statement = connection.createStatement();
+             ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + tableName))
+        {
+            resultSet.next();
+            numberOfKeys = resultSet.getLong(1);
+        }
+
+        PrimaryKeyFilter filter = new PrimaryKeyFilter(
+                numberOfKeys + options.getExpectedNumberOfNewKeys(),
+                options.getFalsePositiveProbability());
+
+        String selectClause = "SELECT " + StringUtils.join(config.escapeSqlNames(config.getPrimaryKeys()), ", ")
+                + " FROM " + tableName;
+
+        if (Import.isVerboseEnabled())
+        {
+            Import.logVerbose("Loading primary keys filter for " + numberOfKeys + " keys using: " + selectClause);
+        }
+
+        boolean autoCommit = connection.getAutoCommit();
+
+        // Some drivers (i.e. PostgreSQL) only use fetch size outside of auto-commit mode
+        connection.setAutoCommit(false);
+
+        try (Statement statement = connection.createStatement())
+        {
+            statement.setFetchSize(options.getFetchSize());
+
+            try (ResultSet resultSet = statement.executeQuery(selectClause))
+            {
+                List<String> primaryKeys = config.getPrimaryKeys();
+
+                while (resultSet.next())
+                {
+                    Object[] values = new Object[primaryKeys.size()];
+
+                    for (int i = 0; i < values.length; i++)
+                    {
+                        values[i] = resultSet.getObject(i + 1);
+                    }
+
+                    filter.put(PrimaryKey.of(primaryKeys, values));
+                }
+            }
+        }
+        finally
+        {
+            connection.commit();
+            connection.setAutoCommit(autoCommit);
+        }
+
+        return filter;
+    }
+}
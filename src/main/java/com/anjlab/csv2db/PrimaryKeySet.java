@@ -0,0 +1,173 @@
+package com.anjlab.csv2db;
+
+import java.nio.ByteBuffer;
+
+// Off-heap set of 64-bit fingerprints, keys with the same fingerprint are indistinguishable,
+// the chance of that is about n^2 / 2^65 for n keys
+public class PrimaryKeySet
+{
+    private static final int NUMBER_OF_SEGMENTS = 64;
+
+    private static final int INITIAL_SEGMENT_CAPACITY = 4096;
+
+    private static final double MAX_LOAD_FACTOR = 0.75;
+
+    private static class Segment
+    {
+        private final int maxCapacity;
+
+        private ByteBuffer slots;
+
+        private int capacity;
+
+        private int size;
+
+        public Segment(int maxCapacity)
+        {
+            this.maxCapacity = maxCapacity;
+            this.capacity = Math.min(INITIAL_SEGMENT_CAPACITY, maxCapacity);
+            this.slots = ByteBuffer.allocateDirect(capacity * 8);
+        }
+
+        public synchronized boolean add(long fingerprint)
+        {
+            if (size >= capacity * MAX_LOAD_FACTOR)
+            {
+                if (capacity >= maxCapacity)
+                {
+                    throw new IllegalStateException(
+                            "Primary key set is full, consider increasing deduplication.maxMemoryMB");
+                }
+
+                resize(capacity * 2);
+            }
+
+            if (insert(slots, capacity, fingerprint))
+            {
+                size++;
+                return true;
+            }
+
+            return false;
+        }
+
+        public synchronized boolean contains(long fingerprint)
+        {
+            int mask = capacity - 1;
+
+            for (int index = (int) fingerprint & mask; ; index = (index + 1) & mask)
+            {
+                long slot = slots.getLong(index * 8);
+
+                if (slot == 0)
+                {
+                    return false;
+                }
+                if (slot == fingerprint)
+                {
+                    return true;
+                }
+            }
+        }
+
+        private void resize(int newCapacity)
+        {
+            ByteBuffer newSlots = ByteBuffer.allocateDirect(newCapacity * 8);
+
+            for (int i = 0; i < capacity; i++)
+            {
+                long slot = slots.getLong(i * 8);
+
+                if (slot != 0)
+                {
+                    insert(newSlots, newCapacity, slot);
+                }
+            }
+
+            slots = newSlots;
+            capacity = newCapacity;
+        }
+
+        private static boolean insert(ByteBuffer slots, int capacity, long fingerprint)
+        {
+            int mask = capacity - 1;
+
+            for (int index = (int) fingerprint & mask; ; index = (index + 1) & mask)
+            {
+                long slot = slots.getLong(index * 8);
+
+                if (slot == fingerprint)
+                {
+                    return false;
+                }
+                if (slot == 0)
+                {
+                    slots.putLong(index * 8, fingerprint);
+                    return true;
+                }
+            }
+        }
+    }
+
+    private final Segment[] segments;
+
+    public PrimaryKeySet(long maxMemoryMB)
+    {
+        long maxSegmentCapacity = Math.max(
+                Long.highestOneBit(maxMemoryMB * 1024 * 1024 / 8 / NUMBER_OF_SEGMENTS),
+                INITIAL_SEGMENT_CAPACITY);
+
+        // Size of the direct buffer is limited by Integer.MAX_VALUE
+        int maxCapacity = (int) Math.min(maxSegmentCapacity, 1 << 27);
+
+        segments = new Segment[NUMBER_OF_SEGMENTS];
+
+        for (int i = 0; i < segments.length; i++)
+        {
+            segments[i] = new Segment(maxCapacity);
+        }
+    }
+
+    public boolean add(PrimaryKey keys)
+    {
+        long fingerprint = fingerprint(keys);
+
+        return segment(fingerprint).add(fingerprint);
+    }
+
+    public boolean contains(PrimaryKey keys)
+    {
+        long fingerprint = fingerprint(keys);
+
+        return segment(fingerprint).contains(fingerprint);
+    }
+
+    public long size()
+    {
+        long size = 0;
+
+        for (Segment segment : segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.size;
+            }
+        }
+
+        return size;
+    }
+
+    private Segment segment(long fingerprint)
+    {
+        // High bits select the segment, low bits select the slot within segment
+        return segments[(int) (fingerprint >>> 58)];
+    }
+
+    private static long fingerprint(PrimaryKey keys)
+    {
+        long fingerprint = keys.fingerprint();
+
+        // Zero marks empty slots
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+}
@@ -0,0 +1,343 @@
+package com.anjlab.csv2db;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+// Values in slots of RowSchema, a Map so that rows can be passed to scripts as is. Rows are not thread-safe.
+public class Row extends AbstractMap<String, Object>
+{
+    private static final Object ABSENT = new Object();
+
+    private final RowSchema schema;
+
+    private final Object[] values;
+
+    private int numberOfValues;
+
+    private Map<String, Object> overflow;
+
+    private Object[] transformed;
+
+    private Set<Map.Entry<String, Object>> entrySet;
+
+    Row(RowSchema schema)
+    {
+        this.schema = schema;
+        this.values = new Object[schema.size()];
+
+        Arrays.fill(values, ABSENT);
+    }
+
+    public RowSchema getSchema()
+    {
+        return schema;
+    }
+
+    public Object get(int slot)
+    {
+        Object value = values[slot];
+
+        return value == ABSENT ? null : value;
+    }
+
+    public Object set(int slot, Object value)
+    {
+        transformed = null;
+
+        Object previous = values[slot];
+
+        values[slot] = value;
+
+        if (previous == ABSENT)
+        {
+            numberOfValues++;
+            return null;
+        }
+
+        return previous;
+    }
+
+    @Override
+    public Object get(Object key)
+    {
+        int slot = schema.slotOf(key);
+
+        if (slot >= 0)
+        {
+            return get(slot);
+        }
+
+        return overflow == null ? null : overflow.get(key);
+    }
+
+    @Override
+    public boolean containsKey(Object key)
+    {
+        int slot = schema.slotOf(key);
+
+        if (slot >= 0)
+        {
+            return values[slot] != ABSENT;
+        }
+
+        return overflow != null && overflow.containsKey(key);
+    }
+
+    @Override
+    public Object put(String key, Object value)
+    {
+        int slot = schema.slotOf(key);
+
+        if (slot >= 0)
+        {
+            return set(slot, value);
+        }
+
+        if (overflow == null)
+        {
+            overflow = new HashMap<>();
+        }
+
+        transformed = null;
+
+        return overflow.put(key, value);
+    }
+
+    @Override
+    public Object remove(Object key)
+    {
+        int slot = schema.slotOf(key);
+
+        if (slot >= 0)
+        {
+            return clear(slot);
+        }
+
+        if (overflow == null)
+        {
+            return null;
+        }
+
+        transformed = null;
+
+        return overflow.remove(key);
+    }
+
+    private Object clear(int slot)
+    {
+        transformed = null;
+
+        Object previous = values[slot];
+
+        if (previous == ABSENT)
+        {
+            return null;
+        }
+
+        values[slot] = ABSENT;
+        numberOfValues--;
+
+        return previous;
+    }
+
+    @Override
+    public int size()
+    {
+        return numberOfValues + (overflow == null ? 0 : overflow.size());
+    }
+
+    @Override
+    public void clear()
+    {
+        Arrays.fill(values, ABSENT);
+        numberOfValues = 0;
+        overflow = null;
+        transformed = null;
+    }
+
+    public boolean hasTransformed(int slot)
+    {
+        return transformed != null && transformed[slot] != ABSENT;
+    }
+
+    public Object getTransformed(int slot)
+    {
+        return transformed[slot];
+    }
+
+    // Cached until any value of the row changes
+    public void setTransformed(int slot, Object value)
+    {
+        if (transformed == null)
+        {
+            transformed = new Object[values.length];
+            Arrays.fill(transformed, ABSENT);
+        }
+
+        transformed[slot] = value;
+    }
+
+    @Override
+    public Set<Map.Entry<String, Object>> entrySet()
+    {
+        if (entrySet == null)
+        {
+            entrySet = new AbstractSet<Map.Entry<String, Object>>()
+            {
+                @Override
+                public Iterator<Map.Entry<String, Object>> iterator()
+                {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size()
+                {
+                    return Row.this.size();
+                }
+            };
+        }
+
+        return entrySet;
+    }
+
+    private class SlotEntry implements Map.Entry<String, Object>
+    {
+        private final int slot;
+
+        public SlotEntry(int slot)
+        {
+            this.slot = slot;
+        }
+
+        @Override
+        public String getKey()
+        {
+            return schema.getName(slot);
+        }
+
+        @Override
+        public Object getValue()
+        {
+            return get(slot);
+        }
+
+        @Override
+        public Object setValue(Object value)
+        {
+            return set(slot, value);
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Map.Entry))
+            {
+                return false;
+            }
+
+            Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+
+            Object value = getValue();
+
+            return getKey().equals(other.getKey())
+                    && (value == null ? other.getValue() == null : value.equals(other.getValue()));
+        }
+
+        @Override
+        public int hashCode()
+        {
+            Object value = getValue();
+
+            return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString()
+        {
+            return getKey() + "=" + getValue();
+        }
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<String, Object>>
+    {
+        private int nextSlot = -1;
+
+        private int lastSlot = -1;
+
+        private Iterator<Map.Entry<String, Object>> overflowIterator;
+
+        public EntryIterator()
+        {
+            advance();
+        }
+
+        private void advance()
+        {
+            do
+            {
+                nextSlot++;
+            }
+            while (nextSlot < values.length && values[nextSlot] == ABSENT);
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            if (nextSlot < values.length)
+            {
+                return true;
+            }
+
+            if (overflowIterator == null && overflow != null)
+            {
+                overflowIterator = overflow.entrySet().iterator();
+            }
+
+            return overflowIterator != null && overflowIterator.hasNext();
+        }
+
+        @Override
+        public Map.Entry<String, Object> next()
+        {
+            if (!hasNext())
+            {
+                throw new NoSuchElementException();
+            }
+
+            if (nextSlot < values.length)
+            {
+                lastSlot = nextSlot;
+                advance();
+                return new SlotEntry(lastSlot);
+            }
+
+            lastSlot = -1;
+            return overflowIterator.next();
+        }
+
+        @Override
+        public void remove()
+        {
+            if (lastSlot >= 0)
+            {
+                clear(lastSlot);
+                lastSlot = -1;
+            }
+            else if (overflowIterator != null)
+            {
+                overflowIterator.remove();
+            }
+            else
+            {
+                throw new IllegalStateException();
+            }
+        }
+    }
+}
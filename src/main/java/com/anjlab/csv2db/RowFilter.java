@@ -0,0 +1,202 @@
+package com.anjlab.csv2db;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
+import com.anjlab.csv2db.Configuration.FilterOptions;
+import com.codahale.metrics.Meter;
+
+public class RowFilter
+{
+    private abstract static class Predicate
+    {
+        private final int column;
+
+        private final boolean negate;
+
+        private final Meter droppedRows;
+
+        protected Predicate(FilterOptions options, int index)
+        {
+            this.column = options.getColumn();
+            this.negate = options.isNegate();
+            this.droppedRows = Import.METRIC_REGISTRY.meter("filter." + index + ".droppedRows");
+        }
+
+        // value is null if the line has no such column
+        protected abstract boolean matches(String value);
+    }
+
+    private final Predicate[] predicates;
+
+    private RowFilter(Predicate[] predicates)
+    {
+        this.predicates = predicates;
+    }
+
+    public boolean accept(String[] line)
+    {
+        for (Predicate predicate : predicates)
+        {
+            String value = predicate.column < line.length ? line[predicate.column] : null;
+
+            if (predicate.matches(value) == predicate.negate)
+            {
+                predicate.droppedRows.mark();
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public static RowFilter compile(List<FilterOptions> options) throws ConfigurationException
+    {
+        if (options == null || options.isEmpty())
+        {
+            return null;
+        }
+
+        Predicate[] predicates = new Predicate[options.size()];
+
+        for (int i = 0; i < predicates.length; i++)
+        {
+            predicates[i] = compile(options.get(i), i);
+        }
+
+        return new RowFilter(predicates);
+    }
+
+    private static Predicate compile(FilterOptions options, int index) throws ConfigurationException
+    {
+        if (options == null || options.getColumn() < 0)
+        {
+            throw new ConfigurationException("Column index required for filter #" + index);
+        }
+
+        int numberOfConditions = 0;
+
+        if (options.getEmpty() != null)
+        {
+            numberOfConditions++;
+        }
+        if (options.getEquals() != null)
+        {
+            numberOfConditions++;
+        }
+        if (options.getIn() != null)
+        {
+            numberOfConditions++;
+        }
+        if (options.getRegex() != null)
+        {
+            numberOfConditions++;
+        }
+        if (options.getMin() != null || options.getMax() != null)
+        {
+            numberOfConditions++;
+        }
+
+        if (numberOfConditions != 1)
+        {
+            throw new ConfigurationException(
+                    "Filter #" + index + " should define exactly one of 'empty', 'equals', 'in', 'regex' or 'min'/'max'");
+        }
+
+        if (options.getEmpty() != null)
+        {
+            final boolean empty = options.getEmpty();
+
+            return new Predicate(options, index)
+            {
+                @Override
+                protected boolean matches(String value)
+                {
+                    return (value == null || value.isEmpty()) == empty;
+                }
+            };
+        }
+
+        if (options.getEquals() != null)
+        {
+            final String expected = options.getEquals();
+
+            return new Predicate(options, index)
+            {
+                @Override
+                protected boolean matches(String value)
+                {
+                    return expected.equals(value);
+                }
+            };
+        }
+
+        if (options.getIn() != null)
+        {
+            final Set<String> values = new HashSet<>(options.getIn());
+
+            return new Predicate(options, index)
+            {
+                @Override
+                protected boolean matches(String value)
+                {
+                    return value != null && values.contains(value);
+                }
+            };
+        }
+
+        if (options.getRegex() != null)
+        {
+            final Pattern pattern;
+
+            try
+            {
+                pattern = Pattern.compile(options.getRegex());
+            }
+            catch (PatternSyntaxException e)
+            {
+                throw new ConfigurationException("Invalid regex of filter #" + index + ": " + e.getMessage());
+            }
+
+            return new Predicate(options, index)
+            {
+                @Override
+                protected boolean matches(String value)
+                {
+                    return value != null && pattern.matcher(value).matches();
+                }
+            };
+        }
+
+        final double min = options.getMin() != null ? options.getMin() : Double.NEGATIVE_INFINITY;
+        final double max = options.getMax() != null ? options.getMax() : Double.POSITIVE_INFINITY;
+
+        return new Predicate(options, index)
+        {
+            @Override
+            protected boolean matches(String value)
+            {
+                if (value == null)
+                {
+                    return false;
+                }
+
+                double number;
+
+                try
+                {
+                    number = Double.parseDouble(value.trim());
+                }
+                catch (NumberFormatException e)
+                {
+                    return false;
+                }
+
+                return number >= min && number <= max;
+            }
+        };
+    }
+}
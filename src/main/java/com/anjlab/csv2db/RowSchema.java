@@ -0,0 +1,102 @@
+package com.anjlab.csv2db;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Mapped columns come first in the order of CSV columns, followed by synthetic columns
+// and primary keys that are not mapped
+public class RowSchema
+{
+    private final List<String> names;
+
+    private final Map<String, Integer> slots;
+
+    private final int[] csvColumnIndices;
+
+    private final int[] csvColumnSlots;
+
+    public RowSchema(Configuration config)
+    {
+        this.names = new ArrayList<>();
+        this.slots = new HashMap<>();
+
+        List<Integer> csvColumnIndices = new ArrayList<>(config.getColumnMappings().keySet());
+        Collections.sort(csvColumnIndices);
+
+        this.csvColumnIndices = new int[csvColumnIndices.size()];
+        this.csvColumnSlots = new int[csvColumnIndices.size()];
+
+        for (int i = 0; i < csvColumnIndices.size(); i++)
+        {
+            this.csvColumnIndices[i] = csvColumnIndices.get(i);
+            this.csvColumnSlots[i] = addSlot(config.getColumnMappings().get(csvColumnIndices.get(i)));
+        }
+
+        if (config.getSyntheticColumns() != null)
+        {
+            for (String columnName : config.getSyntheticColumns())
+            {
+                addSlot(columnName);
+            }
+        }
+
+        if (config.getPrimaryKeys() != null)
+        {
+            for (String columnName : config.getPrimaryKeys())
+            {
+                addSlot(columnName);
+            }
+        }
+    }
+
+    private int addSlot(String name)
+    {
+        Integer slot = slots.get(name);
+
+        if (slot == null)
+        {
+            slot = names.size();
+            names.add(name);
+            slots.put(name, slot);
+        }
+
+        return slot;
+    }
+
+    public int size()
+    {
+        return names.size();
+    }
+
+    public String getName(int slot)
+    {
+        return names.get(slot);
+    }
+
+    public int slotOf(Object name)
+    {
+        Integer slot = slots.get(name);
+
+        return slot == null ? -1 : slot;
+    }
+
+    public Row newRow(String[] columns)
+    {
+        Row row = new Row(this);
+
+        for (int i = 0; i < csvColumnIndices.length; i++)
+        {
+            row.set(csvColumnSlots[i], columns[csvColumnIndices[i]]);
+        }
+
+        return row;
+    }
+
+    public Row newRow()
+    {
+        return new Row(this);
+    }
+}
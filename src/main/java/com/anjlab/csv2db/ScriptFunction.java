@@ -0,0 +1,7 @@
+package com.anjlab.csv2db;
+
+public interface ScriptFunction
+{
+    // Missing arguments are passed as null
+    Object call(Object arg0, Object arg1, Object arg2);
+}
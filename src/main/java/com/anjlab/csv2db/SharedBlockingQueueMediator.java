@@ -15,6 +15,7 @@ public class SharedBlockingQueueMediator implements Mediator
 {
     private final int[] deadQueueConsumers;
     private final int[] deadRouterProducers;
+    private final boolean[] endOfLines;
 
     private final BlockingQueue<Map<String, Object>>[] routerQueues;
     private final BlockingQueue<String[]> queue;
@@ -44,7 +45,9 @@ public class SharedBlockingQueueMediator implements Mediator
         deadQueueConsumers = new int[numberOfThreads];
         Arrays.fill(deadQueueConsumers, 0);
 
-        if (config.isIgnoreDuplicatePK())
+        endOfLines = new boolean[numberOfThreads];
+
+        if (config.isRoutedByPrimaryKeys())
         {
             routerQueues = new BlockingQueue[numberOfThreads];
 
@@ -145,6 +148,11 @@ public class SharedBlockingQueueMediator implements Mediator
             return terminalPhaseTake(forThreadId);
         }
 
+        if (endOfLines[forThreadId])
+        {
+            return enterTerminalPhase(forThreadId);
+        }
+
         while (routerQueueHasData(forThreadId))
         {
             Object nameValues = takeFromRouter(forThreadId);
@@ -177,6 +185,14 @@ public class SharedBlockingQueueMediator implements Mediator
         // and there won't be new records in the shared queue
         producerDone();
 
+        // Consumer may still have buffered records that need to be re-routed
+        endOfLines[forThreadId] = true;
+
+        return END_OF_LINES;
+    }
+
+    private Object enterTerminalPhase(int forThreadId) throws InterruptedException
+    {
         if (isRouterEnabled())
         {
             deadQueueConsumers[forThreadId]++;
@@ -0,0 +1,222 @@
+package com.anjlab.csv2db;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+// Uses its own connection, which is closed with the cursor
+public class SortedTargetTableCursor implements Closeable
+{
+    private final Configuration config;
+
+    private final Connection connection;
+
+    private final List<String> columnNames;
+
+    private final int[] primaryKeyIndices;
+
+    private PreparedStatement statement;
+
+    private ResultSet resultSet;
+
+    private Object[] currentRow;
+
+    private PrimaryKey currentKeys;
+
+    private PrimaryKey lastKeys;
+
+    public SortedTargetTableCursor(Configuration config, Connection connection) throws ConfigurationException
+    {
+        this.config = config;
+        this.connection = connection;
+        this.columnNames = config.getOrderedTableColumnNames();
+
+        List<String> primaryKeys = config.getPrimaryKeys();
+
+        this.primaryKeyIndices = new int[primaryKeys.size()];
+
+        for (int i = 0; i < primaryKeyIndices.length; i++)
+        {
+            primaryKeyIndices[i] = columnNames.indexOf(primaryKeys.get(i));
+
+            if (primaryKeyIndices[i] < 0)
+            {
+                throw new ConfigurationException(
+                        "Primary key '" + primaryKeys.get(i) + "' should be mapped to use mergeJoin");
+            }
+        }
+    }
+
+    // Keys of subsequent calls must not decrease
+    public Map<String, Object> seek(PrimaryKey keys) throws SQLException, UnsortedInputException
+    {
+        if (lastKeys != null && keys.compareTo(lastKeys) < 0)
+        {
+            throw new UnsortedInputException(
+                    "Input is not sorted by primary keys: [" + keys
+                            + "] found after [" + lastKeys + "]");
+        }
+
+        lastKeys = keys;
+
+        if (resultSet == null)
+        {
+            open(keys);
+        }
+
+        while (currentKeys != null && currentKeys.compareTo(keys) < 0)
+        {
+            next();
+        }
+
+        if (currentKeys != null && currentKeys.compareTo(keys) == 0)
+        {
+            Map<String, Object> nameValues = new HashMap<>();
+
+            for (int i = 0; i < columnNames.size(); i++)
+            {
+                nameValues.put(columnNames.get(i), currentRow[i]);
+            }
+
+            return nameValues;
+        }
+
+        return null;
+    }
+
+    private void open(PrimaryKey firstKeys) throws SQLException, UnsortedInputException
+    {
+        Configuration.MergeJoinOptions options = config.getMergeJoin();
+
+        StringBuilder selectClause = new StringBuilder("SELECT ")
+                .append(StringUtils.join(config.escapeSqlNames(columnNames), ", "))
+                .append(" FROM ")
+                .append(config.escapeSqlName(config.getTargetTable()));
+
+        // Rows before the first key of this cursor will never be matched.
+        // Only numbers are compared here, because strings may be compared differently
+        // by the database unless custom ORDER BY is specified
+        Object lowerBound = firstKeys.get(0);
+
+        boolean skipLowerRows = options.getOrderBy() == null && lowerBound instanceof Number;
+
+        if (skipLowerRows)
+        {
+            selectClause.append(" WHERE ")
+                    .append(config.escapeSqlName(config.getPrimaryKeys().get(0)))
+                    .append(" >= ?");
+        }
+
+        selectClause.append(" ORDER BY ")
+                .append(options.getOrderBy() != null
+                        ? options.getOrderBy()
+                        : StringUtils.join(config.escapeSqlNames(config.getPrimaryKeys()), ", "));
+
+        if (Import.isVerboseEnabled())
+        {
+            Import.logVerbose("Target table cursor opened using: " + selectClause);
+        }
+
+        // Some drivers (i.e. PostgreSQL) only use fetch size outside of auto-commit mode
+        connection.setAutoCommit(false);
+
+        // Rows under the cursor will be updated using another connection,
+        // databases that lock rows on read would block these updates otherwise
+        if (connection.getMetaData().supportsTransactionIsolationLevel(Connection.TRANSACTION_READ_UNCOMMITTED))
+        {
+            connection.setTransactionIsolation(Connection.TRANSACTION_READ_UNCOMMITTED);
+        }
+
+        statement = connection.prepareStatement(selectClause.toString());
+        statement.setFetchSize(options.getFetchSize());
+
+        if (skipLowerRows)
+        {
+            statement.setObject(1, lowerBound);
+        }
+
+        resultSet = statement.executeQuery();
+
+        next();
+    }
+
+    private void next() throws SQLException, UnsortedInputException
+    {
+        if (!resultSet.next())
+        {
+            currentRow = null;
+            currentKeys = null;
+            return;
+        }
+
+        Object[] row = new Object[columnNames.size()];
+
+        for (int i = 0; i < row.length; i++)
+        {
+            row[i] = resultSet.getObject(i + 1);
+        }
+
+        Object[] values = new Object[primaryKeyIndices.length];
+
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = row[primaryKeyIndices[i]];
+        }
+
+        PrimaryKey keys = PrimaryKey.of(config.getPrimaryKeys(), values);
+
+        if (currentKeys != null && keys.compareTo(currentKeys) < 0)
+        {
+            throw new UnsortedInputException(
+                    "Target table rows are not sorted in the order expected for the input: ["
+                            + keys + "] found after [" + currentKeys
+                            + "], consider specifying mergeJoin.orderBy with binary collation");
+        }
+
+        currentRow = row;
+        currentKeys = keys;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try
+        {
+            if (resultSet != null)
+            {
+                resultSet.close();
+            }
+            if (statement != null)
+            {
+                statement.close();
+            }
+            if (!connection.getAutoCommit())
+            {
+                connection.commit();
+            }
+        }
+        catch (SQLException e)
+        {
+            throw new IOException(e);
+        }
+        finally
+        {
+            try
+            {
+                connection.close();
+            }
+            catch (SQLException e)
+            {
+                //  Ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.anjlab.csv2db;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.lang3.StringUtils;
+
+// Shared by all consumers and safe for concurrent use
+public abstract class TargetTableIndex implements Closeable
+{
+    protected final List<String> columnNames;
+
+    protected TargetTableIndex(List<String> columnNames)
+    {
+        this.columnNames = columnNames;
+    }
+
+    public abstract Map<String, Object> get(PrimaryKey keys);
+
+    public abstract void put(PrimaryKey keys, Object[] values);
+
+    public abstract long size();
+
+    @Override
+    public void close() throws IOException
+    {
+        // Nothing by default
+    }
+
+    protected Map<String, Object> toNameValues(Object[] values)
+    {
+        Map<String, Object> nameValues = new HashMap<>();
+
+        for (int i = 0; i < columnNames.size(); i++)
+        {
+            nameValues.put(columnNames.get(i), values[i]);
+        }
+
+        return nameValues;
+    }
+
+    // Rough estimation of memory occupied by the entry
+    protected static long estimateSize(PrimaryKey keys, Object[] values)
+    {
+        // Hash map entry + primary key + array of values
+        long size = 64 + 32 + 16 + 8L * keys.size() + 16 + 8L * values.length;
+
+        for (int i = 0; i < keys.size(); i++)
+        {
+            size += estimateSize(keys.get(i));
+        }
+
+        for (Object value : values)
+        {
+            size += estimateSize(value);
+        }
+
+        return size;
+    }
+
+    private static long estimateSize(Object value)
+    {
+        if (value == null)
+        {
+            return 0;
+        }
+        if (value instanceof String)
+        {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof byte[])
+        {
+            return 16 + ((byte[]) value).length;
+        }
+        return 32;
+    }
+
+    // Rows are moved to a temporary file if they exceed maxMemoryMB
+    public static TargetTableIndex load(Configuration config, Connection connection) throws SQLException, IOException
+    {
+        Configuration.PreloadOptions options = config.getPreloadTargetTable();
+
+        List<String> columnNames = config.getOrderedTableColumnNames();
+
+        long maxMemory = options.getMaxMemoryMB() * 1024 * 1024;
+
+        String selectClause = "SELECT " + StringUtils.join(config.escapeSqlNames(columnNames), ", ")
+                + " FROM " + config.escapeSqlName(config.getTargetTable());
+
+        if (Import.isVerboseEnabled())
+        {
+            Import.logVerbose("Loading target table index using: " + selectClause);
+        }
+
+        InMemoryTargetTableIndex memoryIndex = new InMemoryTargetTableIndex(columnNames);
+
+        TargetTableIndex index = memoryIndex;
+
+        long estimatedSize = 0;
+
+        boolean autoCommit = connection.getAutoCommit();
+
+        // Some drivers (i.e. PostgreSQL) only use fetch size outside of auto-commit mode
+        connection.setAutoCommit(false);
+
+        try (Statement statement = connection.createStatement())
+        {
+            statement.setFetchSize(options.getFetchSize());
+
+            try (ResultSet resultSet = statement.executeQuery(selectClause))
+            {
+                Map<String, Object> nameValues = new HashMap<>();
+
+                while (resultSet.next())
+                {
+                    Object[] values = new Object[columnNames.size()];
+
+                    for (int i = 0; i < values.length; i++)
+                    {
+                        values[i] = resultSet.getObject(i + 1);
+                        nameValues.put(columnNames.get(i), values[i]);
+                    }
+
+                    PrimaryKey keys = config.getPrimaryKey(nameValues);
+
+                    if (index == memoryIndex)
+                    {
+                        estimatedSize += estimateSize(keys, values);
+
+                        if (estimatedSize > maxMemory)
+                        {
+                            if (Import.isVerboseEnabled())
+                            {
+                                Import.logVerbose("Target table index exceeded " + options.getMaxMemoryMB()
+                                        + "MB after " + memoryIndex.size() + " rows, moving it to disk");
+                            }
+
+                            index = new FileTargetTableIndex(
+                                    columnNames,
+                                    options.getTempDirectory() == null
+                                            ? null
+                                            : new File(options.getTempDirectory()));
+
+                            memoryIndex.copyTo(index);
+                            memoryIndex.clear();
+                        }
+                    }
+
+                    index.put(keys, values);
+                }
+            }
+        }
+        catch (SQLException | IOException | RuntimeException e)
+        {
+            index.close();
+            throw e;
+        }
+        finally
+        {
+            connection.commit();
+            connection.setAutoCommit(autoCommit);
+        }
+
+        if (Import.isVerboseEnabled())
+        {
+            Import.logVerbose("Loaded " + index.size() + " rows to target table index");
+        }
+
+        return index;
+    }
+}
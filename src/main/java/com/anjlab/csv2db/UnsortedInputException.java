@@ -0,0 +1,11 @@
+package com.anjlab.csv2db;
+
+public class UnsortedInputException extends Exception
+{
+    private static final long serialVersionUID = 1L;
+
+    public UnsortedInputException(String message)
+    {
+        super(message);
+    }
+}
@@ -0,0 +1,118 @@
+package com.anjlab.csv2db;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import com.codahale.metrics.Meter;
+
+// LRU cache of values of pure functions shared by consumers, split into segments with their own locks
+public class ValueCache
+{
+    // Returned for missing keys, because null values are cached too
+    public static final Object MISSING = new Object();
+
+    private static final int MAX_SEGMENTS = 16;
+
+    private static final Object NULL = new Object();
+
+    private final Map<Object, Object>[] segments;
+
+    private final Meter hits;
+
+    private final Meter misses;
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public ValueCache(int maxEntries, String metricName)
+    {
+        if (maxEntries <= 0)
+        {
+            throw new IllegalArgumentException("maxEntries should be positive");
+        }
+
+        int numberOfSegments = Math.min(MAX_SEGMENTS, maxEntries);
+
+        this.segments = new Map[numberOfSegments];
+
+        for (int i = 0; i < numberOfSegments; i++)
+        {
+            // Remainder is distributed between the first segments
+            final int capacity = maxEntries / numberOfSegments + (i < maxEntries % numberOfSegments ? 1 : 0);
+
+            segments[i] = new LinkedHashMap<Object, Object>(16, 0.75f, true)
+            {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(Entry<Object, Object> eldest)
+                {
+                    return size() > capacity;
+                }
+            };
+        }
+
+        this.hits = Import.METRIC_REGISTRY.meter(metricName + ".hits");
+        this.misses = Import.METRIC_REGISTRY.meter(metricName + ".misses");
+    }
+
+    private Map<Object, Object> segmentOf(Object key)
+    {
+        int hash = key.hashCode();
+
+        // Spread bits of poor hashes, the same way HashMap does
+        hash ^= (hash >>> 16);
+
+        return segments[(hash & 0x7fffffff) % segments.length];
+    }
+
+    public Object get(Object key)
+    {
+        Object k = key == null ? NULL : key;
+
+        Map<Object, Object> segment = segmentOf(k);
+
+        Object value;
+
+        synchronized (segment)
+        {
+            value = segment.get(k);
+        }
+
+        if (value == null)
+        {
+            misses.mark();
+            return MISSING;
+        }
+
+        hits.mark();
+
+        return value == NULL ? null : value;
+    }
+
+    public void put(Object key, Object value)
+    {
+        Object k = key == null ? NULL : key;
+
+        Map<Object, Object> segment = segmentOf(k);
+
+        synchronized (segment)
+        {
+            segment.put(k, value == null ? NULL : value);
+        }
+    }
+
+    public int size()
+    {
+        int size = 0;
+
+        for (Map<Object, Object> segment : segments)
+        {
+            synchronized (segment)
+            {
+                size += segment.size();
+            }
+        }
+
+        return size;
+    }
+}
@@ -1,6 +1,8 @@
 package com.anjlab.csv2db;
 
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
 
 import com.google.gson.JsonDeserializationContext;
 import com.google.gson.JsonDeserializer;
@@ -37,13 +39,61 @@ public class ValueDefinitionAdapter
 
             throw new JsonParseException("Unsupported value definition: " + jsonPrimitive);
         }
+        else if (json.isJsonArray())
+        {
+            List<BuiltinFunction> functions = new ArrayList<>();
+
+            for (JsonElement element : json.getAsJsonArray())
+            {
+                if (!element.isJsonObject() || element.getAsJsonObject().get("builtin") == null)
+                {
+                    throw new JsonParseException("Only builtins can be chained: " + json);
+                }
+
+                functions.add(BuiltinFunction.parse(element.getAsJsonObject()));
+            }
+
+            if (functions.isEmpty())
+            {
+                throw new JsonParseException("Unsupported value definition: " + json);
+            }
+
+            return new BuiltinChain(functions);
+        }
         else
         {
             JsonObject definition = json.getAsJsonObject();
             
             if (definition.get("function") != null)
             {
-                return new FunctionReference(definition.get("function").getAsString());
+                return new FunctionReference(
+                        definition.get("function").getAsString(),
+                        definition.get("batch") != null && definition.get("batch").getAsBoolean(),
+                        parseCacheMaxEntries(definition));
+            }
+            
+            if (definition.get("builtin") != null)
+            {
+                return BuiltinFunction.parse(definition);
+            }
+            
+            if (definition.get("expr") != null)
+            {
+                return new Expression(definition.get("expr").getAsString());
+            }
+            
+            if (definition.get("lookup") != null)
+            {
+                return new LookupReference(
+                        definition.get("lookup").getAsString(),
+                        definition.get("key") != null ? definition.get("key").getAsString() : null);
+            }
+            
+            if (definition.get("class") != null)
+            {
+                return new ClassReference(
+                        definition.get("class").getAsString(),
+                        definition.get("args") != null ? definition.getAsJsonObject("args") : null);
             }
             
             if (definition.get("sql") != null)
@@ -55,6 +105,25 @@ public class ValueDefinitionAdapter
         }
     }
 
+    private static int parseCacheMaxEntries(JsonObject definition)
+    {
+        JsonElement cache = definition.get("cache");
+
+        if (cache == null || cache.isJsonNull())
+        {
+            return 0;
+        }
+
+        JsonElement maxEntries = cache.isJsonObject() ? cache.getAsJsonObject().get("maxEntries") : null;
+
+        if (maxEntries == null || maxEntries.getAsInt() <= 0)
+        {
+            throw new JsonParseException("Positive cache.maxEntries required: " + definition);
+        }
+
+        return maxEntries.getAsInt();
+    }
+
     @Override
     public JsonElement serialize(ValueDefinition src, Type typeOfSrc,
             JsonSerializationContext context)
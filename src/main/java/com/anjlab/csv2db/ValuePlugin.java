@@ -0,0 +1,12 @@
+package com.anjlab.csv2db;
+
+import java.util.Map;
+
+// One instance is shared by all import threads, so implementations should be thread-safe
+public interface ValuePlugin
+{
+    void init(Map<String, Object> args) throws ConfigurationException;
+
+    // nameValues is null when evaluated for insertValues, updateValues or connectionProperties
+    Object eval(String targetTableColumnName, Map<String, Object> nameValues);
+}
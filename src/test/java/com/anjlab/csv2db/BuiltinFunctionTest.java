@@ -0,0 +1,105 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.sql.Timestamp;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonParseException;
+
+public class BuiltinFunctionTest
+{
+    private static ValueDefinition parse(String json) throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                new ByteArrayInputStream(("{\"transform\": {\"column\": " + json + "}}")
+                        .getBytes(StandardCharsets.UTF_8)),
+                null);
+
+        return config.getTransform().get("column");
+    }
+
+    private static Object eval(String json, Object value) throws Exception
+    {
+        Map<String, Object> nameValues = new HashMap<>();
+        nameValues.put("column", value);
+        nameValues.put("a", "ab");
+        nameValues.put("b", "c");
+
+        return parse(json).eval("column", nameValues, null);
+    }
+
+    @Test
+    public void testStrings() throws Exception
+    {
+        Assert.assertEquals("a b", eval("{\"builtin\": \"trim\"}", " a b "));
+        Assert.assertNull(eval("{\"builtin\": \"trimToNull\"}", "  "));
+        Assert.assertEquals("", eval("{\"builtin\": \"trimToEmpty\"}", null));
+        Assert.assertEquals("ABC", eval("{\"builtin\": \"upper\"}", "abc"));
+        Assert.assertEquals("abc", eval("{\"builtin\": \"lower\"}", "ABC"));
+        Assert.assertNull(eval("{\"builtin\": \"nullIf\", \"value\": \"N/A\"}", "N/A"));
+        Assert.assertEquals("x", eval("{\"builtin\": \"nullIf\", \"value\": \"N/A\"}", "x"));
+        Assert.assertEquals("none", eval("{\"builtin\": \"default\", \"value\": \"none\"}", ""));
+        Assert.assertEquals("123", eval("{\"builtin\": \"regexReplace\", \"pattern\": \"\\\\D\", \"replacement\": \"\"}", "SC-12/3"));
+        Assert.assertEquals("AB", eval("{\"builtin\": \"upper\", \"column\": \"a\"}", null));
+    }
+
+    @Test
+    public void testParseDate() throws Exception
+    {
+        Assert.assertEquals(
+                Timestamp.valueOf("2015-01-02 00:00:00"),
+                eval("{\"builtin\": \"parseDate\", \"pattern\": \"dd/MM/yyyy\"}", "02/01/2015"));
+
+        Assert.assertEquals(
+                "2015-01-02",
+                eval("{\"builtin\": \"parseDate\", \"pattern\": \"dd/MM/yyyy\", \"format\": \"yyyy-MM-dd\"}", "02/01/2015"));
+
+        Assert.assertNull(eval("{\"builtin\": \"parseDate\", \"pattern\": \"dd/MM/yyyy\"}", ""));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testParseDateError() throws Exception
+    {
+        eval("{\"builtin\": \"parseDate\", \"pattern\": \"dd/MM/yyyy\"}", "2015-01-02");
+    }
+
+    @Test
+    public void testHashing() throws Exception
+    {
+        Assert.assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", eval("{\"builtin\": \"sha1\"}", "abc"));
+        Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", eval("{\"builtin\": \"md5\"}", "abc"));
+        Assert.assertNull(eval("{\"builtin\": \"sha256\"}", null));
+
+        Object columnsHash = eval("{\"builtin\": \"sha1\", \"columns\": [\"a\", \"b\"]}", null);
+
+        Assert.assertEquals(40, columnsHash.toString().length());
+        Assert.assertFalse(columnsHash.equals(eval("{\"builtin\": \"sha1\"}", "abc")));
+    }
+
+    @Test
+    public void testChain() throws Exception
+    {
+        String json = "[{\"builtin\":\"trimToNull\"},{\"builtin\":\"upper\"}]";
+
+        Assert.assertEquals("ABC", eval(json, "  abc "));
+        Assert.assertNull(eval(json, "   "));
+        Assert.assertEquals(json, parse(json).toJsonElement().toString());
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testUnknownBuiltin() throws Exception
+    {
+        parse("{\"builtin\": \"unknown\"}");
+    }
+
+    @Test(expected = JsonParseException.class)
+    public void testRequiredOption() throws Exception
+    {
+        parse("{\"builtin\": \"regexReplace\", \"pattern\": \"a\"}");
+    }
+}
@@ -0,0 +1,35 @@
+package com.anjlab.csv2db;
+
+import java.util.Map;
+
+// Changes case of the column value, to upper case if "upper" is true
+public class ChangeCaseValuePlugin implements ValuePlugin
+{
+    private boolean upper;
+
+    @Override
+    public void init(Map<String, Object> args) throws ConfigurationException
+    {
+        Object upper = args.get("upper");
+
+        if (upper != null && !(upper instanceof Boolean))
+        {
+            throw new ConfigurationException("'upper' should be a boolean");
+        }
+
+        this.upper = Boolean.TRUE.equals(upper);
+    }
+
+    @Override
+    public Object eval(String targetTableColumnName, Map<String, Object> nameValues)
+    {
+        Object value = nameValues != null ? nameValues.get(targetTableColumnName) : null;
+
+        if (value == null)
+        {
+            return null;
+        }
+
+        return upper ? value.toString().toUpperCase() : value.toString().toLowerCase();
+    }
+}
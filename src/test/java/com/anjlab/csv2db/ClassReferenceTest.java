@@ -0,0 +1,75 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ClassReferenceTest
+{
+    private static ValueDefinition parse(String json) throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                new ByteArrayInputStream(("{\"insertValues\": {\"column\": " + json + "}}")
+                        .getBytes(StandardCharsets.UTF_8)),
+                null);
+
+        return config.getInsertValues().get("column");
+    }
+
+    @Test
+    public void testCompile() throws Exception
+    {
+        Configuration config = Configuration.fromJson("src/test/resources/test-config-with-plugins.json");
+
+        ExecutionPlan plan = ExecutionPlan.compile(config);
+
+        Assert.assertTrue(plan.getMapPlugin() instanceof RepeatMapPlugin);
+        Assert.assertNull(plan.getMapFunction());
+
+        Map<String, Object> nameValues = new HashMap<>();
+        nameValues.put("company_name", "ACME");
+
+        Assert.assertEquals("acme",
+                config.getTransform().get("company_name").eval("company_name", nameValues, null));
+    }
+
+    @Test
+    public void testServiceLoader() throws Exception
+    {
+        ValueDefinition definition = parse("{\"class\": \"ChangeCaseValuePlugin\", \"args\": {\"upper\": true}}");
+
+        Assert.assertTrue(definition instanceof ClassReference);
+        Assert.assertTrue(((ClassReference) definition).getValuePlugin() instanceof ChangeCaseValuePlugin);
+        Assert.assertFalse(definition.producesSQL());
+
+        Map<String, Object> nameValues = new HashMap<>();
+        nameValues.put("column", "value");
+
+        Assert.assertEquals("VALUE", definition.eval("column", nameValues, null));
+        Assert.assertEquals(
+                "{\"class\":\"ChangeCaseValuePlugin\",\"args\":{\"upper\":true}}",
+                definition.toJsonElement().toString());
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testClassNotFound() throws Exception
+    {
+        ((ClassReference) parse("{\"class\": \"com.example.Missing\"}")).getValuePlugin();
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testWrongPluginType() throws Exception
+    {
+        ((ClassReference) parse("{\"class\": \"com.anjlab.csv2db.RepeatMapPlugin\"}")).getValuePlugin();
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testInvalidArgs() throws Exception
+    {
+        ((ClassReference) parse("{\"class\": \"ChangeCaseValuePlugin\", \"args\": {\"upper\": 1}}")).getValuePlugin();
+    }
+}
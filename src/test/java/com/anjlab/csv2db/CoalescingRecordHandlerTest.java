@@ -0,0 +1,85 @@
+package com.anjlab.csv2db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.anjlab.csv2db.Configuration.CoalesceEviction;
+import com.anjlab.csv2db.Configuration.CoalesceOptions;
+
+public class CoalescingRecordHandlerTest
+{
+    private static class RecordingHandler implements RecordHandler
+    {
+        private final List<Object> companyNumbers = new ArrayList<>();
+
+        @Override
+        public void handleRecord(Map<String, Object> nameValues)
+        {
+            companyNumbers.add(nameValues.get("company_number"));
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+    private List<Object> coalesce(CoalesceEviction eviction, int windowSize, String... companyNumbers)
+            throws Exception
+    {
+        Configuration config = Configuration.fromJson("src/test/resources/test-config.json");
+
+        CoalesceOptions options = new CoalesceOptions();
+        options.setEviction(eviction);
+        options.setWindowSize(windowSize);
+        config.setCoalesce(options);
+
+        RecordingHandler delegate = new RecordingHandler();
+
+        CoalescingRecordHandler handler = new CoalescingRecordHandler(
+                ExecutionPlan.compile(config), null, null, 0, 1, delegate);
+
+        for (String companyNumber : companyNumbers)
+        {
+            String[] line = new String[13];
+            Arrays.fill(line, "");
+            line[0] = "Company " + companyNumber;
+            line[1] = companyNumber;
+
+            handler.handleRecord(config.toNameValues(line));
+        }
+
+        handler.close();
+
+        return delegate.companyNumbers;
+    }
+
+    @Test
+    public void testFlushAll() throws Exception
+    {
+        //  Repeats that arrive right after a new key filled the window are coalesced with it
+        Assert.assertEquals(Arrays.<Object> asList("1", "2", "3", "4"),
+                coalesce(CoalesceEviction.FLUSH_ALL, 2, "1", "1", "2", "2", "3", "3", "4", "4"));
+
+        Assert.assertEquals(Arrays.<Object> asList("1", "2", "3"),
+                coalesce(CoalesceEviction.FLUSH_ALL, 2, "1", "2", "1", "2", "3", "3"));
+    }
+
+    @Test
+    public void testEviction() throws Exception
+    {
+        Assert.assertEquals(Arrays.<Object> asList("1", "2", "3"),
+                coalesce(CoalesceEviction.FIFO, 2, "1", "1", "2", "2", "3", "3"));
+
+        Assert.assertEquals(Arrays.<Object> asList("2", "1", "3"),
+                coalesce(CoalesceEviction.LRU, 2, "1", "2", "1", "3"));
+
+        Assert.assertEquals(Arrays.<Object> asList("1", "2", "3"),
+                coalesce(CoalesceEviction.FIFO, 0, "1", "2", "1", "3", "2"));
+    }
+}
@@ -0,0 +1,112 @@
+package com.anjlab.csv2db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.PreparedStatement;
+import java.sql.SQLDataException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ColumnBinderTest
+{
+    private final List<String> calls = new ArrayList<>();
+
+    private final PreparedStatement statement = (PreparedStatement) Proxy.newProxyInstance(
+            getClass().getClassLoader(),
+            new Class<?>[] { PreparedStatement.class },
+            new InvocationHandler()
+            {
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args)
+                {
+                    calls.add(method.getName() + Arrays.asList(args));
+                    return null;
+                }
+            });
+
+    private void bind(int sqlType, Object value) throws Exception
+    {
+        bind(sqlType, value, null);
+    }
+
+    private void bind(int sqlType, Object value, Configuration.TypedBindingOptions options) throws Exception
+    {
+        ColumnBinder.forType("column", sqlType, "TYPE", options).bind(statement, 1, value);
+    }
+
+    @Test
+    public void testBind() throws Exception
+    {
+        bind(Types.BIGINT, " 12 ");
+        bind(Types.BIGINT, "1.0");
+        bind(Types.INTEGER, 3.0);
+        bind(Types.DECIMAL, "1.50");
+        bind(Types.DOUBLE, "0.5");
+        bind(Types.BOOLEAN, "Yes");
+        bind(Types.BOOLEAN, "0");
+        bind(Types.TIMESTAMP, "2015-01-02 03:04:05");
+        bind(Types.INTEGER, "");
+        bind(Types.VARCHAR, "");
+        bind(Types.VARCHAR, null);
+
+        Assert.assertEquals(Arrays.asList(
+                "setLong[1, 12]",
+                "setLong[1, 1]",
+                "setInt[1, 3]",
+                "setBigDecimal[1, " + new BigDecimal("1.50") + "]",
+                "setDouble[1, 0.5]",
+                "setBoolean[1, true]",
+                "setBoolean[1, false]",
+                "setTimestamp[1, " + Timestamp.valueOf("2015-01-02 03:04:05") + "]",
+                "setNull[1, " + Types.INTEGER + "]",
+                "setString[1, ]",
+                "setNull[1, " + Types.VARCHAR + "]"),
+                calls);
+    }
+
+    @Test
+    public void testDateFormat() throws Exception
+    {
+        Configuration.TypedBindingOptions options = new Configuration.TypedBindingOptions();
+        options.setDateFormat("dd/MM/yyyy");
+
+        bind(Types.DATE, "02/01/2015", options);
+
+        Assert.assertEquals(Arrays.asList("setDate[1, " + java.sql.Date.valueOf("2015-01-02") + "]"), calls);
+    }
+
+    @Test
+    public void testParseError() throws Exception
+    {
+        for (Object[] value : new Object[][] {
+                { Types.BIGINT, "abc" },
+                { Types.BIGINT, "1.5" },
+                { Types.INTEGER, "3000000000" },
+                { Types.BOOLEAN, "maybe" },
+                { Types.DATE, "2015-13" } })
+        {
+            try
+            {
+                bind((Integer) value[0], value[1]);
+
+                Assert.fail("Expected error for " + value[1]);
+            }
+            catch (SQLDataException e)
+            {
+                Assert.assertEquals(
+                        "Cannot convert '" + value[1] + "' to TYPE for column 'column'",
+                        e.getMessage());
+            }
+        }
+
+        Assert.assertTrue(calls.isEmpty());
+    }
+}
@@ -0,0 +1,143 @@
+package com.anjlab.csv2db;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.script.ScriptEngine;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.anjlab.csv2db.Configuration.OperationMode;
+import com.anjlab.csv2db.ExecutionPlan.CompiledColumn;
+
+public class ExecutionPlanTest
+{
+    @Test
+    public void testCompile() throws Exception
+    {
+        Configuration config = Configuration.fromJson("src/test/resources/test-config.json");
+
+        ExecutionPlan plan = ExecutionPlan.compile(config);
+
+        Assert.assertEquals(
+                Arrays.asList("company_name", "company_number", "address_line_1", "address_line_2"),
+                plan.getOrderedTableColumnNames());
+
+        Assert.assertEquals(
+                "INSERT INTO companies_house_records (id, company_name, company_number, address_line_1, address_line_2)"
+                        + " VALUES (current_timestamp, ?, ?, ?, ?)",
+                plan.getInsertClause());
+
+        Assert.assertEquals(
+                "UPDATE companies_house_records SET updated_at = current_date, company_name = ?, company_number = ?,"
+                        + " address_line_1 = ?, address_line_2 = ? WHERE company_number = ?",
+                plan.getUpdateClause(null));
+
+        BitSet columns = new BitSet();
+        columns.set(2);
+
+        Assert.assertEquals(
+                "UPDATE companies_house_records SET updated_at = current_date, address_line_1 = ?"
+                        + " WHERE company_number = ?",
+                plan.getUpdateClause(columns));
+
+        Assert.assertEquals("sa", plan.getConnectionProperties().getProperty("username"));
+
+        Assert.assertEquals(
+                plan.transformPrimaryKeys(
+                        config.toNameValues(new String[] { "A", "12", "", "", "", "", "", "", "", "", "", "", "" }), null)
+                        .partition(4),
+                PrimaryKey.of(config.getPrimaryKeys(), "12").partition(4));
+    }
+
+    @Test
+    public void testTransformOncePerRow() throws Exception
+    {
+        Configuration config = Configuration.fromJson("src/test/resources/test-config.json");
+
+        final AtomicInteger evaluations = new AtomicInteger();
+
+        config.setTransform(new HashMap<String, ValueDefinition>());
+        config.getTransform().put("company_number", new Expression("concat('#', company_number)")
+        {
+            @Override
+            public Object eval(String targetTableColumnName, Map<String, Object> nameValues, ScriptEngine scriptEngine)
+            {
+                evaluations.incrementAndGet();
+                return super.eval(targetTableColumnName, nameValues, scriptEngine);
+            }
+        });
+
+        ExecutionPlan plan = ExecutionPlan.compile(config);
+
+        Row row = config.toNameValues(new String[] { "A", "12", "", "", "", "", "", "", "", "", "", "", "" });
+
+        Assert.assertEquals(PrimaryKey.of(config.getPrimaryKeys(), "#12"), plan.transformPrimaryKeys(row, null));
+
+        for (CompiledColumn column : plan.getTableColumns())
+        {
+            plan.transform(column, row, null);
+        }
+
+        Assert.assertEquals(1, evaluations.get());
+
+        // Cached values are discarded when the row changes
+        row.put("company_number", "13");
+
+        Assert.assertEquals(PrimaryKey.of(config.getPrimaryKeys(), "#13"), plan.transformPrimaryKeys(row, null));
+        Assert.assertEquals(2, evaluations.get());
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testPrimaryKeysRequired() throws Exception
+    {
+        Configuration config = Configuration.fromJson("src/test/resources/test-config.json");
+
+        config.setOperationMode(OperationMode.INSERTONLY);
+        config.setPrimaryKeys(null);
+
+        ExecutionPlan.compile(config);
+    }
+
+    @Test
+    public void testCachedFunctions() throws Exception
+    {
+        Configuration config = Configuration.fromJson("src/test/resources/test-config.json");
+
+        config.setTransform(new HashMap<String, ValueDefinition>());
+
+        config.getTransform().put("company_name", new FunctionReference("lowercase", false, 100));
+
+        ExecutionPlan.compile(config);
+
+        //  Values are cached by value of the target column, which is not in the row
+        config.getInsertValues().put("generated_value", new FunctionReference("reverseCompanyNumber", false, 100));
+
+        try
+        {
+            ExecutionPlan.compile(config);
+            Assert.fail("Cached insertValues function should be rejected");
+        }
+        catch (ConfigurationException e)
+        {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("'generated_value' in 'insertValues'"));
+        }
+
+        config.getInsertValues().remove("generated_value");
+        config.getTransform().put("generated_value", new FunctionReference("reverseCompanyNumber", false, 100));
+
+        try
+        {
+            ExecutionPlan.compile(config);
+            Assert.fail("Cached transform of a column that is not mapped from CSV should be rejected");
+        }
+        catch (ConfigurationException e)
+        {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("'generated_value' in 'transform'"));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package com.anjlab.csv2db;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.gson.JsonParseException;
+
+public class ExpressionTest
+{
+    private static Object eval(String expression) throws Exception
+    {
+        Map<String, Object> nameValues = new HashMap<>();
+        nameValues.put("a", "ab");
+        nameValues.put("b", "c");
+        nameValues.put("empty", "");
+        nameValues.put("column name", " x ");
+
+        return new Expression(expression).eval("column", nameValues, null);
+    }
+
+    @Test
+    public void testFunctions() throws Exception
+    {
+        Assert.assertEquals("ab-c", eval("concat(a, '-', b)"));
+        Assert.assertEquals("ab-c", eval("a || '-' || b"));
+        Assert.assertEquals("ab", eval("concat(a, missing)"));
+        Assert.assertEquals("c", eval("coalesce(empty, missing, b)"));
+        Assert.assertNull(eval("coalesce(empty, missing)"));
+        Assert.assertEquals("b", eval("substr(a, 1)"));
+        Assert.assertEquals("a", eval("substr(a, 0, 1)"));
+        Assert.assertEquals("", eval("substr(a, 5, 1)"));
+        Assert.assertEquals("AB", eval("UPPER(a)"));
+        Assert.assertEquals("x", eval("trim(\"column name\")"));
+        Assert.assertEquals(2, eval("length(a)"));
+        Assert.assertEquals("xb", eval("replace(a, 'a', 'x')"));
+        Assert.assertNull(eval("nullif(a, 'ab')"));
+        Assert.assertEquals("yes", eval("if(eq(b, 'c'), 'yes', 'no')"));
+        Assert.assertEquals("no", eval("if(empty, 'yes', 'no')"));
+        Assert.assertEquals("it's", eval("'it''s'"));
+        Assert.assertNull(eval("null"));
+        Assert.assertEquals(-5L, eval("-5"));
+        Assert.assertEquals("ab1.5", eval("(a || 1.5)"));
+    }
+
+    @Test
+    public void testRowColumns() throws Exception
+    {
+        Map<Integer, String> columnMappings = new HashMap<>();
+        columnMappings.put(0, "company_number");
+        columnMappings.put(1, "post_code");
+
+        Configuration config = new Configuration();
+        config.setColumnMappings(columnMappings);
+        config.setPrimaryKeys(Arrays.asList("company_number"));
+
+        Expression expression = new Expression("concat(company_number, '/', upper(post_code), other)");
+
+        Row row = config.getRowSchema().newRow(new String[] { "123", "ab1" });
+        row.put("other", "!");
+
+        Assert.assertEquals("123/AB1!", expression.eval("id", row, null));
+
+        // Slots are resolved again for rows of another schema
+        Configuration other = new Configuration();
+        Map<Integer, String> otherMappings = new HashMap<>();
+        otherMappings.put(0, "post_code");
+        otherMappings.put(1, "company_number");
+        other.setColumnMappings(otherMappings);
+
+        Assert.assertEquals("456/CD2", expression.eval("id", other.getRowSchema().newRow(new String[] { "cd2", "456" }), null));
+    }
+
+    @Test
+    public void testJson() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                new ByteArrayInputStream("{\"transform\": {\"column\": {\"expr\": \"upper(a)\"}}}"
+                        .getBytes(StandardCharsets.UTF_8)),
+                null);
+
+        ValueDefinition definition = config.getTransform().get("column");
+
+        Assert.assertTrue(definition instanceof Expression);
+        Assert.assertEquals("{\"expr\":\"upper(a)\"}", definition.toJsonElement().toString());
+    }
+
+    @Test
+    public void testParseErrors() throws Exception
+    {
+        for (String expression : Arrays.asList(
+                "", "concat(a", "unknown(a)", "substr(a)", "'unterminated", "a b", "upper(a, b)"))
+        {
+            try
+            {
+                new Expression(expression);
+                Assert.fail("JsonParseException expected for " + expression);
+            }
+            catch (JsonParseException e)
+            {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.anjlab.csv2db;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ExternalSorterTest
+{
+    @Test
+    public void testSortWithSpilledRuns() throws Exception
+    {
+        Map<Integer, String> columnMappings = new HashMap<>();
+        columnMappings.put(0, "company_number");
+        columnMappings.put(1, "company_name");
+
+        Configuration config = new Configuration();
+        config.setPrimaryKeys(Arrays.asList("company_number"));
+        config.setColumnMappings(columnMappings);
+
+        for (long maxMemoryMB : Arrays.asList(256L, 0L))
+        {
+            Configuration.ExternalSortOptions options = new Configuration.ExternalSortOptions();
+            options.setMaxMemoryMB(maxMemoryMB);
+            config.setExternalSort(options);
+
+            List<String> sortedNames = new ArrayList<>();
+
+            try (ExternalSorter sorter = new ExternalSorter(config))
+            {
+                sorter.add(new String[] { "SC421617", "!NSPIRED LTD" });
+                sorter.add(new String[] { "07382019", "!BIG IMPACT GRAPHICS LIMITED" });
+                sorter.add(new String[] { "SC421617", "!NSPIRED LTD (2)" });
+                sorter.add(new String[] { "04753368", "!NFERNO LTD." });
+                sorter.add(new String[] { "08209948", "! LTD" });
+
+                Iterator<String[]> iterator = sorter.sorted();
+
+                while (iterator.hasNext())
+                {
+                    sortedNames.add(iterator.next()[1]);
+                }
+            }
+
+            //  Lines with equal keys keep their input order
+            Assert.assertEquals(
+                    Arrays.asList("!NFERNO LTD.", "!BIG IMPACT GRAPHICS LIMITED", "! LTD",
+                            "!NSPIRED LTD", "!NSPIRED LTD (2)"),
+                    sortedNames);
+        }
+    }
+}
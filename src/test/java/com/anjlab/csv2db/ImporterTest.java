@@ -5,6 +5,9 @@ import org.apache.commons.lang3.StringUtils;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.sql.Connection;
 import java.sql.Date;
 import java.sql.ResultSet;
@@ -14,6 +17,7 @@ import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
 
 public class ImporterTest
@@ -166,6 +170,377 @@ public class ImporterTest
         assertRecordCount(connection, expectedDataset, true);
     }
 
+    @Test
+    public void testMergeChangedColumnsOnly() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+        config.setForceUpdate(false);
+        config.setUpdateChangedColumnsOnly(true);
+
+        Importer importer = new Importer(config, 1, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "companies_house_records");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)," +
+                                "address_line_1 varchar(300)," +
+                                "address_line_2 varchar(300)," +
+                                "updated_at date" +
+                                ")");
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        assertRecordCount(connection, getExpectedDataset(false), true);
+
+        connection.createStatement()
+                .executeUpdate("update companies_house_records set address_line_1 = 'CHANGED'"
+                        + " where company_number = '07382019'");
+
+        connection.createStatement()
+                .executeUpdate("update companies_house_records set company_name = 'CHANGED', address_line_2 = 'CHANGED'"
+                        + " where company_number = '07904170'");
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        //  Only changed records should be updated
+        List<Object[]> expectedDataset = new ArrayList<Object[]>();
+        expectedDataset.addAll(getExpectedDataset(false));
+        expectedDataset.set(1, getExpectedDataset(true).get(1));
+        expectedDataset.set(6, getExpectedDataset(true).get(6));
+        assertRecordCount(connection, expectedDataset, true);
+
+        connection.close();
+    }
+
+    @Test
+    public void testMergeChangedColumnsOnlyWithRepeatedKeys() throws Exception
+    {
+        //  Second record of the same key should be compared with the first one, not with the database
+        File data = File.createTempFile("test-data-repeated-keys", ".csv");
+        data.deleteOnExit();
+
+        Files.write(data.toPath(), Arrays.asList(
+                "CompanyName,CompanyNumber",
+                "\"A\",\"00000001\",\"\",\"\",\"2\",\"1\",\"\",\"\",\"\",\"\",\"\",\"\",\"\"",
+                "\"A\",\"00000001\",\"\",\"\",\"1\",\"2\",\"\",\"\",\"\",\"\",\"\",\"\",\"\""),
+                StandardCharsets.UTF_8);
+
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+        config.setForceUpdate(false);
+        config.setUpdateChangedColumnsOnly(true);
+
+        Importer importer = new Importer(config, 1, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "companies_house_records");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)," +
+                                "address_line_1 varchar(300)," +
+                                "address_line_2 varchar(300)," +
+                                "updated_at date" +
+                                ")");
+
+        connection.createStatement()
+                .executeUpdate("insert into companies_house_records"
+                        + " (id, company_name, company_number, address_line_1, address_line_2)"
+                        + " values (current_timestamp, 'A', '00000001', '1', '1')");
+
+        importer.performImport(data.getPath());
+
+        ResultSet resultSet = connection.createStatement().executeQuery(
+                "select address_line_1, address_line_2 from companies_house_records");
+        Assert.assertTrue(resultSet.next());
+        Assert.assertEquals("1", resultSet.getString(1));
+        Assert.assertEquals("2", resultSet.getString(2));
+        Assert.assertFalse(resultSet.next());
+        resultSet.close();
+
+        connection.close();
+    }
+
+    @Test
+    public void testMergeWithPrimaryKeyFilter() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+        config.setPrimaryKeyFilter(new Configuration.PrimaryKeyFilterOptions());
+        config.setBatchSize(3);
+
+        Importer importer = new Importer(config, 2, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "companies_house_records");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)," +
+                                "address_line_1 varchar(300)," +
+                                "address_line_2 varchar(300)," +
+                                "updated_at date" +
+                                ")");
+
+        //  Some of the records are already in the table
+        connection.createStatement()
+                .executeUpdate("insert into companies_house_records (id, company_number)"
+                        + " values (current_timestamp, '07382019'), (current_timestamp, 'SF000899')");
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        List<Object[]> expectedDataset = new ArrayList<Object[]>();
+        expectedDataset.addAll(getExpectedDataset(false));
+        expectedDataset.set(1, getExpectedDataset(true).get(1));
+        expectedDataset.set(7, getExpectedDataset(true).get(7));
+        assertRecordCount(connection, expectedDataset, true);
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        assertRecordCount(connection, getExpectedDataset(true), true);
+
+        connection.close();
+    }
+
+    @Test
+    public void testMergeWithPreloadedTargetTable() throws Exception
+    {
+        Configuration.PreloadOptions inMemory = new Configuration.PreloadOptions();
+
+        Configuration.PreloadOptions onDisk = new Configuration.PreloadOptions();
+        onDisk.setMaxMemoryMB(0);
+
+        for (Configuration.PreloadOptions options : Arrays.asList(inMemory, onDisk))
+        {
+            Configuration config = Configuration.fromJson(
+                    "src/test/resources/test-config.json");
+
+            config.getCsvOptions().setEscapeChar((char) 0);
+            config.setForceUpdate(false);
+            config.setPreloadTargetTable(options);
+            config.setBatchSize(3);
+
+            Importer importer = new Importer(config, 2, null);
+
+            Connection connection = importer.createConnection();
+
+            dropTableIfExists(connection, "companies_house_records");
+
+            connection.createStatement()
+                    .executeUpdate(
+                            "create table companies_house_records (" +
+                                    "id timestamp not null," +
+                                    "company_name varchar(160)," +
+                                    "company_number varchar(8)," +
+                                    "address_line_1 varchar(300)," +
+                                    "address_line_2 varchar(300)," +
+                                    "updated_at date" +
+                                    ")");
+
+            connection.createStatement()
+                    .executeUpdate("insert into companies_house_records (id, company_number)"
+                            + " values (current_timestamp, '07382019'), (current_timestamp, 'SF000899')");
+
+            importer.performImport("src/test/resources/test-data.csv");
+
+            List<Object[]> expectedDataset = new ArrayList<Object[]>();
+            expectedDataset.addAll(getExpectedDataset(false));
+            expectedDataset.set(1, getExpectedDataset(true).get(1));
+            expectedDataset.set(7, getExpectedDataset(true).get(7));
+            assertRecordCount(connection, expectedDataset, true);
+
+            //  Nothing changed, so nothing should be updated
+            connection.createStatement()
+                    .executeUpdate("update companies_house_records set updated_at = null");
+
+            importer.performImport("src/test/resources/test-data.csv");
+
+            assertRecordCount(connection, getExpectedDataset(false), true);
+
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testMergeWithPreloadedTargetTableAndRepeatedKeys() throws Exception
+    {
+        //  Copies of records should update the records that are still pending insert,
+        //  even though the keys of pending records are already in the shared index
+        List<String> lines = Files.readAllLines(
+                new File("src/test/resources/test-data.csv").toPath(), StandardCharsets.UTF_8);
+
+        List<String> records = new ArrayList<>(lines);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            records.add(String.format("\"FILLER %d\",\"F%07d\",\"\",\"\",\"\",\"\",\"\",\"\",\"\",\"\",\"\",\"\",\"\"", i, i));
+        }
+
+        for (String line : lines.subList(1, lines.size()))
+        {
+            records.add("\"UPDATED " + line.substring(1));
+        }
+
+        File data = File.createTempFile("test-data-repeated", ".csv");
+        data.deleteOnExit();
+
+        Files.write(data.toPath(), records, StandardCharsets.UTF_8);
+
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+        config.setForceUpdate(false);
+        config.setPreloadTargetTable(new Configuration.PreloadOptions());
+
+        //  All records are pending until the end of the input
+        config.setBatchSize(2000);
+
+        Importer importer = new Importer(config, 2, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "companies_house_records");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)," +
+                                "address_line_1 varchar(300)," +
+                                "address_line_2 varchar(300)," +
+                                "updated_at date" +
+                                ")");
+
+        importer.performImport(data.getPath());
+
+        ResultSet resultSet = connection.createStatement().executeQuery(
+                "select count(*) from companies_house_records");
+        resultSet.next();
+        Assert.assertEquals(1000 + getExpectedDataset(false).size(), resultSet.getInt(1));
+        resultSet.close();
+
+        resultSet = connection.createStatement().executeQuery(
+                "select count(*) from companies_house_records where company_name like 'UPDATED %'");
+        resultSet.next();
+        Assert.assertEquals(getExpectedDataset(false).size(), resultSet.getInt(1));
+        resultSet.close();
+
+        connection.close();
+    }
+
+    @Test
+    public void testMergeJoin() throws Exception
+    {
+        //  Sort records of test data by company_number
+        List<String> lines = Files.readAllLines(
+                new File("src/test/resources/test-data.csv").toPath(), StandardCharsets.UTF_8);
+
+        List<String> records = new ArrayList<>(lines.subList(1, lines.size()));
+
+        Collections.sort(records, new Comparator<String>()
+        {
+            @Override
+            public int compare(String line1, String line2)
+            {
+                return line1.split(",")[1].compareTo(line2.split(",")[1]);
+            }
+        });
+
+        records.add(0, lines.get(0));
+
+        File sortedData = File.createTempFile("test-data-sorted", ".csv");
+        sortedData.deleteOnExit();
+
+        Files.write(sortedData.toPath(), records, StandardCharsets.UTF_8);
+
+        Configuration.MergeJoinOptions sorted = new Configuration.MergeJoinOptions();
+
+        Configuration.MergeJoinOptions fallback = new Configuration.MergeJoinOptions();
+        fallback.setFallbackToLookups(true);
+
+        Configuration.ExternalSortOptions externalSort = new Configuration.ExternalSortOptions();
+        externalSort.setMaxMemoryMB(0);
+
+        //  Unsorted input should fall back to lookup queries, or be sorted by external sort
+        for (int i = 0; i < 3; i++)
+        {
+            String inputFilename = i == 0
+                    ? sortedData.getAbsolutePath()
+                    : "src/test/resources/test-data.csv";
+
+            Configuration config = Configuration.fromJson(
+                    "src/test/resources/test-config.json");
+
+            config.getCsvOptions().setEscapeChar((char) 0);
+            config.setForceUpdate(false);
+            config.setMergeJoin(i == 1 ? fallback : sorted);
+            config.setExternalSort(i == 2 ? externalSort : null);
+            config.setBatchSize(3);
+
+            Importer importer = new Importer(config, 2, null);
+
+            Connection connection = importer.createConnection();
+
+            dropTableIfExists(connection, "companies_house_records");
+
+            connection.createStatement()
+                    .executeUpdate(
+                            "create table companies_house_records (" +
+                                    "id timestamp not null," +
+                                    "company_name varchar(160)," +
+                                    "company_number varchar(8)," +
+                                    "address_line_1 varchar(300)," +
+                                    "address_line_2 varchar(300)," +
+                                    "updated_at date" +
+                                    ")");
+
+            connection.createStatement()
+                    .executeUpdate("insert into companies_house_records (id, company_number)"
+                            + " values (current_timestamp, '07382019'), (current_timestamp, 'SF000899')");
+
+            importer.performImport(inputFilename);
+
+            List<Object[]> expectedDataset = new ArrayList<Object[]>();
+            expectedDataset.addAll(getExpectedDataset(false));
+            expectedDataset.set(1, getExpectedDataset(true).get(1));
+            expectedDataset.set(7, getExpectedDataset(true).get(7));
+            assertRecordCount(connection, expectedDataset, true);
+
+            //  Nothing changed, so nothing should be updated
+            connection.createStatement()
+                    .executeUpdate("update companies_house_records set updated_at = null");
+
+            importer.performImport(inputFilename);
+
+            assertRecordCount(connection, getExpectedDataset(false), true);
+
+            connection.close();
+        }
+    }
+
     private List<Object[]> getExpectedDataset(boolean withDate)
     {
         Calendar cal = Calendar.getInstance();
@@ -241,11 +616,24 @@ public class ImporterTest
 
     @Test
     public void testImportWithScripting() throws Exception
+    {
+        importWithScripting(null);
+    }
+
+    @Test
+    public void testImportWithGraalJS() throws Exception
+    {
+        importWithScripting(Configuration.ScriptingEngine.GRAALJS);
+        importWithMap(Configuration.ScriptingEngine.GRAALJS);
+    }
+
+    private void importWithScripting(Configuration.ScriptingEngine scriptingEngine) throws Exception
     {
         Configuration config = Configuration.fromJson(
                 "src/test/resources/test-config-with-scripting.json");
 
         config.getCsvOptions().setEscapeChar((char) 0);
+        config.setScriptingEngine(scriptingEngine);
 
         Importer importer = new Importer(config, 1, null);
 
@@ -280,47 +668,630 @@ public class ImporterTest
     }
 
     @Test
-    public void testImportWithMap() throws Exception
+    public void testImportWithCachedFunctions() throws Exception
     {
         Configuration config = Configuration.fromJson(
-                "src/test/resources/test-config-with-map.json");
+                "src/test/resources/test-config-with-scripting.json");
 
         config.getCsvOptions().setEscapeChar((char) 0);
+        config.getTransform().put("company_name", new FunctionReference("lowercase", false, 2));
 
         Importer importer = new Importer(config, 2, null);
 
         Connection connection = importer.createConnection();
 
-        dropTableIfExists(connection, "\"companies_house_records\"");
+        dropTableIfExists(connection, "companies_house_records");
 
         connection.createStatement()
                 .executeUpdate(
-                        "create table \"companies_house_records\" (" +
-                                "\"id\" timestamp not null," +
-                                "\"company_name\" varchar(160)," +
-                                "\"company_number\" varchar(8)," +
-                                "\"generated_value\" varchar(8)" +
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)," +
+                                "generated_value varchar(8)" +
                                 ")");
 
+        long misses = Import.METRIC_REGISTRY.meter("cache.lowercase.misses").getCount();
+
         importer.performImport("src/test/resources/test-data.csv");
 
-        List<Object[]> dataset = getExpectedDataset(false);
+        Assert.assertTrue(Import.METRIC_REGISTRY.meter("cache.lowercase.misses").getCount() > misses);
 
         List<Object[]> expectedData = new ArrayList<Object[]>();
-        for (Object[] row : dataset)
+        for (Object[] row : getExpectedDataset(false))
         {
             expectedData.add(new Object[] {
                     row[0].toString().toLowerCase(),
                     row[1].toString(),
                     StringUtils.reverse(row[1].toString()) });
-
-            //  map function will call emit(nameValues) twice
-            expectedData.add(new Object[] {
-                    row[0].toString().toLowerCase(),
-                    row[1].toString(),
-                    StringUtils.reverse(row[1].toString()) });
         }
-        assertRecordCount(connection, expectedData, false, "\"");
+        assertRecordCount(connection, expectedData, false);
+
+        connection.close();
+    }
+
+    @Test
+    public void testMergeWithRangeLookup() throws Exception
+    {
+        //  Company numbers of each batch are millions apart, so batches are looked up by ranges
+        //  with the large scan factor, and by keys with the default one
+        for (double maxScanFactor : new double[] { 10000000, 2 })
+        {
+            Configuration config = Configuration.fromJson(
+                    "src/test/resources/test-config-with-scripting.json");
+
+            config.getCsvOptions().setEscapeChar((char) 0);
+            config.getTransform().put("company_number", new FunctionReference("numericCompanyNumber"));
+            config.setBatchSize(5);
+
+            Configuration.RangeLookupOptions rangeLookup = new Configuration.RangeLookupOptions();
+            rangeLookup.setMaxScanFactor(maxScanFactor);
+            config.setRangeLookup(rangeLookup);
+
+            Importer importer = new Importer(config, 1, null);
+
+            Connection connection = importer.createConnection();
+
+            dropTableIfExists(connection, "companies_house_records");
+
+            connection.createStatement()
+                    .executeUpdate(
+                            "create table companies_house_records (" +
+                                    "id timestamp not null," +
+                                    "company_name varchar(160)," +
+                                    "company_number bigint," +
+                                    "generated_value varchar(8)" +
+                                    ")");
+
+            List<Object[]> expectedData = new ArrayList<Object[]>();
+            for (Object[] row : getExpectedDataset(false))
+            {
+                expectedData.add(new Object[] {
+                        row[0].toString().toLowerCase(),
+                        Long.valueOf(row[1].toString().replaceAll("\\D", "")),
+                        StringUtils.reverse(row[1].toString()) });
+            }
+
+            int numberOfBatches = (expectedData.size() + config.getBatchSize() - 1) / config.getBatchSize();
+
+            int expectedRangeLookups = maxScanFactor > 2 ? numberOfBatches : 0;
+
+            long rangeLookups = Import.METRIC_REGISTRY.meter("thread-0.rangeLookups").getCount();
+
+            importer.performImport("src/test/resources/test-data.csv");
+
+            assertRecordCount(connection, expectedData, false);
+
+            Assert.assertEquals(rangeLookups + expectedRangeLookups,
+                    Import.METRIC_REGISTRY.meter("thread-0.rangeLookups").getCount());
+
+            //  Existing records should be found and updated, not inserted again
+            importer.performImport("src/test/resources/test-data.csv");
+
+            assertRecordCount(connection, expectedData, false);
+
+            Assert.assertEquals(rangeLookups + 2 * expectedRangeLookups,
+                    Import.METRIC_REGISTRY.meter("thread-0.rangeLookups").getCount());
+
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testImportWithMap() throws Exception
+    {
+        importWithMap(null);
+    }
+
+    private void importWithMap(Configuration.ScriptingEngine scriptingEngine) throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config-with-map.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+        config.setScriptingEngine(scriptingEngine);
+
+        Importer importer = new Importer(config, 2, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "\"companies_house_records\"");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table \"companies_house_records\" (" +
+                                "\"id\" timestamp not null," +
+                                "\"company_name\" varchar(160)," +
+                                "\"company_number\" varchar(8)," +
+                                "\"generated_value\" varchar(8)" +
+                                ")");
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        List<Object[]> dataset = getExpectedDataset(false);
+
+        List<Object[]> expectedData = new ArrayList<Object[]>();
+        for (Object[] row : dataset)
+        {
+            expectedData.add(new Object[] {
+                    row[0].toString().toLowerCase(),
+                    row[1].toString(),
+                    StringUtils.reverse(row[1].toString()) });
+
+            //  map function will call emit(nameValues) twice
+            expectedData.add(new Object[] {
+                    row[0].toString().toLowerCase(),
+                    row[1].toString(),
+                    StringUtils.reverse(row[1].toString()) });
+        }
+        assertRecordCount(connection, expectedData, false, "\"");
+
+        connection.close();
+    }
+
+    @Test
+    public void testImportWithBatchFunctions() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config-with-map.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+        //  Even batch size keeps both copies of a row in the same MERGE batch, where neither of them
+        //  is found by the lookup, otherwise the second copy would update the first one
+        config.setBatchSize(2);
+        config.setMap(new FunctionReference("testMapBatch", true));
+        config.getTransform().put("company_name", new FunctionReference("lowercaseBatch", true));
+
+        Importer importer = new Importer(config, 2, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "\"companies_house_records\"");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table \"companies_house_records\" (" +
+                                "\"id\" timestamp not null," +
+                                "\"company_name\" varchar(160)," +
+                                "\"company_number\" varchar(8)," +
+                                "\"generated_value\" varchar(8)" +
+                                ")");
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        List<Object[]> expectedData = new ArrayList<Object[]>();
+        for (Object[] row : getExpectedDataset(false))
+        {
+            //  batch map function emits every row twice
+            for (int i = 0; i < 2; i++)
+            {
+                expectedData.add(new Object[] {
+                        row[0].toString().toLowerCase(),
+                        row[1].toString(),
+                        StringUtils.reverse(row[1].toString()) });
+            }
+        }
+        assertRecordCount(connection, expectedData, false, "\"");
+
+        connection.close();
+    }
+
+    @Test
+    public void testImportWithBatchFunctionsAndIgnoreDuplicatePK() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config-with-scripting.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+        config.setBatchSize(100);
+        config.setIgnoreDuplicatePK(true);
+        config.getTransform().put("company_name", new FunctionReference("lowercaseBatch", true));
+
+        Importer importer = new Importer(config, 2, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "companies_house_records");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)," +
+                                "generated_value varchar(8)" +
+                                ")");
+
+        //  Rows are transformed in batches and then re-routed by their keys,
+        //  which should happen before other consumers have finished
+        importer.performImport("src/test/resources/test-data.csv");
+
+        List<Object[]> expectedData = new ArrayList<Object[]>();
+        for (Object[] row : getExpectedDataset(false))
+        {
+            expectedData.add(new Object[] {
+                    row[0].toString().toLowerCase(),
+                    row[1].toString(),
+                    StringUtils.reverse(row[1].toString()) });
+        }
+        assertRecordCount(connection, expectedData, false);
+
+        connection.close();
+    }
+
+    @Test
+    public void testImportWithPlugins() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config-with-plugins.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+
+        Importer importer = new Importer(config, 2, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "companies_house_records");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)" +
+                                ")");
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        List<Object[]> expectedData = new ArrayList<Object[]>();
+        for (Object[] row : getExpectedDataset(false))
+        {
+            //  map plugin emits every row twice
+            for (int i = 0; i < 2; i++)
+            {
+                expectedData.add(new Object[] {
+                        row[0].toString().toLowerCase(),
+                        row[1].toString() });
+            }
+        }
+        assertRecordCount(connection, expectedData, false);
+
+        connection.close();
+    }
+
+    @Test
+    public void testMergeWithPrefetch() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config-with-map.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+        config.setBatchSize(3);
+
+        Configuration.PrefetchOptions prefetch = new Configuration.PrefetchOptions();
+        prefetch.setDepth(2);
+        config.setPrefetch(prefetch);
+
+        Importer importer = new Importer(config, 2, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "\"companies_house_records\"");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table \"companies_house_records\" (" +
+                                "\"id\" timestamp not null," +
+                                "\"company_name\" varchar(160)," +
+                                "\"company_number\" varchar(8)," +
+                                "\"generated_value\" varchar(8)" +
+                                ")");
+
+        List<Object[]> expectedData = new ArrayList<Object[]>();
+        for (Object[] row : getExpectedDataset(false))
+        {
+            expectedData.add(new Object[] {
+                    row[0].toString().toLowerCase(),
+                    row[1].toString(),
+                    StringUtils.reverse(row[1].toString()) });
+        }
+
+        //  map function will call emit(nameValues) twice, second record should update the first one,
+        //  even if they're in different batches and the lookup of the second batch was prefetched
+        importer.performImport("src/test/resources/test-data.csv");
+
+        assertRecordCount(connection, expectedData, false, "\"");
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        assertRecordCount(connection, expectedData, false, "\"");
+
+        connection.close();
+    }
+
+    @Test
+    public void testImportWithDeduplication() throws Exception
+    {
+        List<Object[]> expectedData = new ArrayList<Object[]>();
+        for (Object[] row : getExpectedDataset(false))
+        {
+            expectedData.add(new Object[] {
+                    row[0].toString().toLowerCase(),
+                    row[1].toString(),
+                    StringUtils.reverse(row[1].toString()) });
+        }
+
+        Object[][] modes = new Object[][] {
+                { OperationMode.MERGE, Configuration.DuplicatePolicy.FIRST_WINS },
+                { OperationMode.MERGE, Configuration.DuplicatePolicy.LAST_WINS },
+                { OperationMode.INSERT, Configuration.DuplicatePolicy.FIRST_WINS }
+        };
+
+        for (Object[] mode : modes)
+        {
+            Configuration config = Configuration.fromJson(
+                    "src/test/resources/test-config-with-map.json");
+
+            config.getCsvOptions().setEscapeChar((char) 0);
+            config.setOperationMode((OperationMode) mode[0]);
+            config.setBatchSize(3);
+
+            Configuration.DeduplicationOptions deduplication = new Configuration.DeduplicationOptions();
+            deduplication.setPolicy((Configuration.DuplicatePolicy) mode[1]);
+            deduplication.setMaxMemoryMB(1);
+            config.setDeduplication(deduplication);
+
+            Importer importer = new Importer(config, 2, null);
+
+            Connection connection = importer.createConnection();
+
+            dropTableIfExists(connection, "\"companies_house_records\"");
+
+            connection.createStatement()
+                    .executeUpdate(
+                            "create table \"companies_house_records\" (" +
+                                    "\"id\" timestamp not null," +
+                                    "\"company_name\" varchar(160)," +
+                                    "\"company_number\" varchar(8)," +
+                                    "\"generated_value\" varchar(8)" +
+                                    ")");
+
+            //  map function will call emit(nameValues) twice, but only one record should be written
+            importer.performImport("src/test/resources/test-data.csv");
+
+            assertRecordCount(connection, expectedData, false, "\"");
+
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testMergeWithLastWinsDeduplication() throws Exception
+    {
+        //  Every record is followed by a copy with a different name, the copies should win
+        //  even if the first record is still pending insert when its copy is read by another thread
+        List<String> lines = Files.readAllLines(
+                new File("src/test/resources/test-data.csv").toPath(), StandardCharsets.UTF_8);
+
+        List<String> records = new ArrayList<>(lines);
+
+        for (int i = 0; i < 1000; i++)
+        {
+            records.add(String.format("\"FILLER %d\",\"F%07d\",\"\",\"\",\"\",\"\",\"\",\"\",\"\",\"\",\"\",\"\",\"\"", i, i));
+        }
+
+        for (String line : lines.subList(1, lines.size()))
+        {
+            records.add("\"UPDATED " + line.substring(1));
+        }
+
+        File data = File.createTempFile("test-data-duplicates", ".csv");
+        data.deleteOnExit();
+
+        Files.write(data.toPath(), records, StandardCharsets.UTF_8);
+
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+
+        //  All records are pending until the end of the input
+        config.setBatchSize(2000);
+
+        Configuration.DeduplicationOptions deduplication = new Configuration.DeduplicationOptions();
+        deduplication.setPolicy(Configuration.DuplicatePolicy.LAST_WINS);
+        deduplication.setMaxMemoryMB(1);
+        config.setDeduplication(deduplication);
+
+        Importer importer = new Importer(config, 2, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "companies_house_records");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)," +
+                                "address_line_1 varchar(300)," +
+                                "address_line_2 varchar(300)," +
+                                "updated_at date" +
+                                ")");
+
+        importer.performImport(data.getPath());
+
+        ResultSet resultSet = connection.createStatement().executeQuery(
+                "select count(*) from companies_house_records");
+        resultSet.next();
+        Assert.assertEquals(1000 + getExpectedDataset(false).size(), resultSet.getInt(1));
+        resultSet.close();
+
+        resultSet = connection.createStatement().executeQuery(
+                "select count(*) from companies_house_records where company_name like 'UPDATED %'");
+        resultSet.next();
+        Assert.assertEquals(getExpectedDataset(false).size(), resultSet.getInt(1));
+        resultSet.close();
+
+        connection.close();
+    }
+
+    @Test
+    public void testImportWithCoalesce() throws Exception
+    {
+        List<Object[]> expectedData = new ArrayList<Object[]>();
+        for (Object[] row : getExpectedDataset(false))
+        {
+            expectedData.add(new Object[] {
+                    row[0].toString().toLowerCase(),
+                    row[1].toString(),
+                    StringUtils.reverse(row[1].toString()) });
+        }
+
+        Configuration.CoalesceOptions perFile = new Configuration.CoalesceOptions();
+
+        Configuration.CoalesceOptions lru = new Configuration.CoalesceOptions();
+        lru.setWindowSize(2);
+        lru.setEviction(Configuration.CoalesceEviction.LRU);
+
+        Configuration.CoalesceOptions flushAll = new Configuration.CoalesceOptions();
+        flushAll.setWindowSize(3);
+        flushAll.setEviction(Configuration.CoalesceEviction.FLUSH_ALL);
+
+        for (Configuration.CoalesceOptions options : Arrays.asList(perFile, lru, flushAll))
+        {
+            Configuration config = Configuration.fromJson(
+                    "src/test/resources/test-config-with-map.json");
+
+            config.getCsvOptions().setEscapeChar((char) 0);
+            config.setBatchSize(3);
+            config.setCoalesce(options);
+
+            Importer importer = new Importer(config, 2, null);
+
+            Connection connection = importer.createConnection();
+
+            dropTableIfExists(connection, "\"companies_house_records\"");
+
+            connection.createStatement()
+                    .executeUpdate(
+                            "create table \"companies_house_records\" (" +
+                                    "\"id\" timestamp not null," +
+                                    "\"company_name\" varchar(160)," +
+                                    "\"company_number\" varchar(8)," +
+                                    "\"generated_value\" varchar(8)" +
+                                    ")");
+
+            //  map function will call emit(nameValues) twice, records should be coalesced before lookup
+            importer.performImport("src/test/resources/test-data.csv");
+
+            assertRecordCount(connection, expectedData, false, "\"");
+
+            connection.close();
+        }
+    }
+
+    @Test
+    public void testMergeWithTypedBinding() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+        config.setTypedBinding(new Configuration.TypedBindingOptions());
+
+        Importer importer = new Importer(config, 1, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "companies_house_records");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)," +
+                                "address_line_1 varchar(300)," +
+                                "address_line_2 varchar(300)," +
+                                "updated_at date" +
+                                ")");
+
+        //  Derby stores unquoted names in upper case, binders should be found case-insensitively
+        importer.performImport("src/test/resources/test-data.csv");
+
+        assertRecordCount(connection, getExpectedDataset(false), true);
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        assertRecordCount(connection, getExpectedDataset(true), true);
+
+        connection.close();
+    }
+
+    @Test
+    public void testMergeWithLookups() throws Exception
+    {
+        Configuration config = Configuration.fromJson(
+                "src/test/resources/test-config.json");
+
+        config.getCsvOptions().setEscapeChar((char) 0);
+
+        Configuration.LookupOptions countries = new Configuration.LookupOptions();
+        countries.setQuery("select name, id from countries");
+        countries.setOnMiss(Configuration.LookupMissPolicy.INSERT);
+        countries.setInsert("insert into countries (name) values (?)");
+        countries.setFetch("select id from countries where name = ?");
+        countries.setMaxCachedEntries(1);
+
+        config.setLookups(new HashMap<String, Configuration.LookupOptions>());
+        config.getLookups().put("countries", countries);
+        config.getInsertValues().put("country_id", new LookupReference("countries", "country_of_origin"));
+
+        Importer importer = new Importer(config, 2, null);
+
+        Connection connection = importer.createConnection();
+
+        dropTableIfExists(connection, "companies_house_records");
+        dropTableIfExists(connection, "countries");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table countries (" +
+                                "id int generated always as identity," +
+                                "name varchar(100) not null" +
+                                ")");
+
+        connection.createStatement()
+                .executeUpdate("insert into countries (name) values ('United Kingdom')");
+
+        connection.createStatement()
+                .executeUpdate(
+                        "create table companies_house_records (" +
+                                "id timestamp not null," +
+                                "company_name varchar(160)," +
+                                "company_number varchar(8)," +
+                                "address_line_1 varchar(300)," +
+                                "address_line_2 varchar(300)," +
+                                "updated_at date," +
+                                "country_id int" +
+                                ")");
+
+        importer.performImport("src/test/resources/test-data.csv");
+
+        //  Every record refers to its country, missing countries were inserted once
+        ResultSet resultSet = connection.createStatement().executeQuery(
+                "select count(*) from companies_house_records r join countries c on r.country_id = c.id");
+        resultSet.next();
+        Assert.assertEquals(getExpectedDataset(false).size(), resultSet.getInt(1));
+        resultSet.close();
+
+        resultSet = connection.createStatement().executeQuery(
+                "select count(*) - count(distinct name) from countries");
+        resultSet.next();
+        Assert.assertEquals(0, resultSet.getInt(1));
+        resultSet.close();
 
         connection.close();
     }
@@ -0,0 +1,89 @@
+package com.anjlab.csv2db;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.HashMap;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.anjlab.csv2db.Configuration.LookupMissPolicy;
+import com.anjlab.csv2db.Configuration.LookupOptions;
+
+public class LookupTableTest
+{
+    private static LookupTable loadCsv(String csv, LookupMissPolicy onMiss) throws Exception
+    {
+        File file = File.createTempFile("lookup", ".csv");
+        file.deleteOnExit();
+
+        Files.write(file.toPath(), csv.getBytes(StandardCharsets.UTF_8));
+
+        LookupOptions options = new LookupOptions();
+        options.setCsv(file.getName());
+        options.setKeyColumn(1);
+        options.setValueColumn(0);
+        options.setOnMiss(onMiss);
+
+        Configuration config = new Configuration();
+        config.setFileResolver(new SimpleFileResolver(file.getParentFile()));
+        config.setLookups(new HashMap<String, LookupOptions>());
+        config.getLookups().put("countries", options);
+
+        return LookupTable.load(config, "countries", null, null);
+    }
+
+    @Test
+    public void testLoadCsv() throws Exception
+    {
+        StringBuilder csv = new StringBuilder();
+
+        for (int i = 0; i < 1000; i++)
+        {
+            csv.append(i).append(",Country ").append(i).append("\n");
+        }
+
+        // The last value of the same key wins
+        csv.append("GB,Country 1\n");
+
+        LookupTable table = loadCsv(csv.toString(), LookupMissPolicy.NULL);
+
+        Assert.assertEquals(1000, table.size());
+        Assert.assertEquals("0", table.get("Country 0"));
+        Assert.assertEquals("GB", table.get("Country 1"));
+        Assert.assertEquals("999", table.get("Country 999"));
+        Assert.assertNull(table.get("Country 1000"));
+        Assert.assertNull(table.get(null));
+
+        table.close();
+    }
+
+    @Test
+    public void testFailOnMiss() throws Exception
+    {
+        LookupTable table = loadCsv("GB,United Kingdom\n", LookupMissPolicy.FAIL);
+
+        Assert.assertEquals("GB", table.get("United Kingdom"));
+
+        try
+        {
+            table.get("France");
+            Assert.fail("IllegalArgumentException expected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            Assert.assertEquals("Key 'France' not found in lookup 'countries'", e.getMessage());
+        }
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void testUndefinedLookup() throws Exception
+    {
+        Configuration config = Configuration.fromJson("src/test/resources/test-config.json");
+
+        config.getInsertValues().put("country_id", new LookupReference("countries", "country_of_origin"));
+
+        ExecutionPlan.compile(config);
+    }
+}
@@ -0,0 +1,42 @@
+package com.anjlab.csv2db;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrimaryKeyFilterTest
+{
+    @Test
+    public void testNoFalseNegatives()
+    {
+        PrimaryKeyFilter filter = new PrimaryKeyFilter(10000, 0.01);
+
+        for (int i = 0; i < 10000; i++)
+        {
+            filter.put(key(i));
+        }
+
+        for (int i = 0; i < 10000; i++)
+        {
+            Assert.assertTrue(filter.mightContain(key(i)));
+        }
+
+        int falsePositives = 0;
+
+        for (int i = 10000; i < 20000; i++)
+        {
+            if (filter.mightContain(key(i)))
+            {
+                falsePositives++;
+            }
+        }
+
+        Assert.assertTrue("Too many false positives: " + falsePositives, falsePositives < 300);
+    }
+
+    private static PrimaryKey key(int i)
+    {
+        return PrimaryKey.of(Collections.singletonList("company_number"), String.valueOf(i));
+    }
+}
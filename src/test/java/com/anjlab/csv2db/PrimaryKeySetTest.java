@@ -0,0 +1,60 @@
+package com.anjlab.csv2db;
+
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrimaryKeySetTest
+{
+    @Test
+    public void testAddAndContains()
+    {
+        PrimaryKeySet keys = new PrimaryKeySet(16);
+
+        for (int i = 0; i < 100000; i++)
+        {
+            Assert.assertTrue(keys.add(key(i)));
+        }
+
+        for (int i = 0; i < 100000; i++)
+        {
+            Assert.assertFalse(keys.add(key(i)));
+            Assert.assertTrue(keys.contains(key(i)));
+        }
+
+        Assert.assertFalse(keys.contains(key(100000)));
+        Assert.assertEquals(100000, keys.size());
+    }
+
+    @Test
+    public void testNumericStrings()
+    {
+        PrimaryKeySet keys = new PrimaryKeySet(16);
+
+        Assert.assertTrue(keys.add(PrimaryKey.of(Collections.singletonList("company_number"), "1")));
+        Assert.assertTrue(keys.add(PrimaryKey.of(Collections.singletonList("company_number"), "01")));
+        Assert.assertTrue(keys.add(PrimaryKey.of(Collections.singletonList("company_number"), "1.0")));
+        Assert.assertTrue(keys.add(PrimaryKey.of(Collections.singletonList("company_number"), "+1")));
+
+        Assert.assertFalse(keys.add(PrimaryKey.of(Collections.singletonList("company_number"), 1)));
+        Assert.assertEquals(4, keys.size());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMemoryBudget()
+    {
+        // Each segment can hold 3072 keys at minimum
+        PrimaryKeySet keys = new PrimaryKeySet(0);
+
+        for (int i = 0; i < 64 * 4096; i++)
+        {
+            keys.add(key(i));
+        }
+    }
+
+    private static PrimaryKey key(int i)
+    {
+        return PrimaryKey.of(Collections.singletonList("company_number"), String.valueOf(i));
+    }
+}
@@ -0,0 +1,100 @@
+package com.anjlab.csv2db;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PrimaryKeyTest
+{
+    private static final List<String> COLUMNS = Arrays.asList("company_number", "company_name");
+
+    @Test
+    public void testNumbersOfDifferentTypesAreEqual()
+    {
+        PrimaryKey key = PrimaryKey.of(COLUMNS, 1, "A");
+
+        for (Object value : new Object[] { 1L, (short) 1, 1.0, new BigDecimal("1.00"), "1" })
+        {
+            PrimaryKey other = PrimaryKey.of(COLUMNS, value, "A");
+
+            Assert.assertEquals(key, other);
+            Assert.assertEquals(key.hashCode(), other.hashCode());
+            Assert.assertEquals(key.fingerprint(), other.fingerprint());
+            Assert.assertEquals(0, key.compareTo(other));
+        }
+
+        Assert.assertFalse(key.equals(PrimaryKey.of(COLUMNS, 2, "A")));
+        Assert.assertFalse(key.equals(PrimaryKey.of(COLUMNS, 1, "B")));
+        Assert.assertFalse(PrimaryKey.of(COLUMNS, "1", "A").equals(PrimaryKey.of(COLUMNS, "01", "A")));
+    }
+
+    @Test
+    public void testNumericStringsAreNotCanonicalised()
+    {
+        PrimaryKey key = PrimaryKey.of(COLUMNS, 1, "A");
+
+        for (String value : new String[] { "01", "1.0", "+1", "1e0" })
+        {
+            PrimaryKey other = PrimaryKey.of(COLUMNS, value, "A");
+
+            Assert.assertFalse(key.equals(other));
+            Assert.assertFalse(other.equals(PrimaryKey.of(COLUMNS, "1", "A")));
+            Assert.assertTrue(key.fingerprint() != other.fingerprint());
+        }
+
+        Assert.assertEquals(PrimaryKey.of(COLUMNS, new BigDecimal("1.50"), "A"), PrimaryKey.of(COLUMNS, "1.5", "A"));
+        Assert.assertEquals(PrimaryKey.of(COLUMNS, 0.0, "A"), PrimaryKey.of(COLUMNS, "0", "A"));
+    }
+
+    @Test
+    public void testBinaryValues()
+    {
+        PrimaryKey key = PrimaryKey.of(COLUMNS, new byte[] { 1, 2, 3 }, "A");
+
+        Assert.assertEquals(key, PrimaryKey.of(COLUMNS, new byte[] { 1, 2, 3 }, "A"));
+        Assert.assertEquals(key.fingerprint(), PrimaryKey.of(COLUMNS, new byte[] { 1, 2, 3 }, "A").fingerprint());
+        Assert.assertFalse(key.equals(PrimaryKey.of(COLUMNS, new byte[] { 1, 2, 4 }, "A")));
+    }
+
+    @Test
+    public void testNulls()
+    {
+        Assert.assertEquals(PrimaryKey.of(COLUMNS, null, "A"), PrimaryKey.of(COLUMNS, null, "A"));
+        Assert.assertFalse(PrimaryKey.of(COLUMNS, null, "A").equals(PrimaryKey.of(COLUMNS, "null", "A")));
+    }
+
+    @Test
+    public void testOfNameValues()
+    {
+        Map<String, Object> nameValues = new HashMap<>();
+        nameValues.put("company_number", "12");
+        nameValues.put("company_name", "A");
+        nameValues.put("company_status", "Active");
+
+        PrimaryKey key = PrimaryKey.of(COLUMNS, nameValues);
+
+        Assert.assertEquals(PrimaryKey.of(COLUMNS, 12, "A"), key);
+        Assert.assertEquals("company_number=12, company_name=A", key.toString());
+    }
+
+    @Test
+    public void testPartitionsAreBalanced()
+    {
+        int[] partitions = new int[7];
+
+        for (int i = 0; i < 70000; i++)
+        {
+            partitions[PrimaryKey.of(COLUMNS, i, "A").partition(partitions.length)]++;
+        }
+
+        for (int count : partitions)
+        {
+            Assert.assertTrue("Partition is skewed: " + Arrays.toString(partitions), Math.abs(count - 10000) < 500);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package com.anjlab.csv2db;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+import javax.script.ScriptException;
+
+// Emits every row "times" times
+public class RepeatMapPlugin implements MapPlugin
+{
+    private int times = 1;
+
+    @Override
+    public void init(Map<String, Object> args) throws ConfigurationException
+    {
+        if (args.get("times") instanceof Number)
+        {
+            times = ((Number) args.get("times")).intValue();
+        }
+    }
+
+    @Override
+    public void map(Map<String, Object> nameValues, RecordHandler emit)
+            throws SQLException, ConfigurationException, ScriptException, InterruptedException
+    {
+        for (int i = 0; i < times; i++)
+        {
+            emit.handleRecord(nameValues);
+        }
+    }
+}
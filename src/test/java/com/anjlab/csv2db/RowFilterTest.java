@@ -0,0 +1,110 @@
+package com.anjlab.csv2db;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.anjlab.csv2db.Configuration.FilterOptions;
+
+public class RowFilterTest
+{
+    private static FilterOptions column(int column)
+    {
+        FilterOptions options = new FilterOptions();
+        options.setColumn(column);
+        return options;
+    }
+
+    @Test
+    public void testPredicates() throws Exception
+    {
+        FilterOptions notEmpty = column(0);
+        notEmpty.setEmpty(false);
+
+        FilterOptions status = column(1);
+        status.setIn(Arrays.asList("ACTIVE", "PENDING"));
+
+        FilterOptions amount = column(2);
+        amount.setMin(0.0);
+        amount.setMax(100.0);
+
+        FilterOptions notTest = column(3);
+        notTest.setRegex("TEST-.*");
+        notTest.setNegate(true);
+
+        RowFilter filter = RowFilter.compile(Arrays.asList(notEmpty, status, amount, notTest));
+
+        Assert.assertTrue(filter.accept(new String[] { "1", "ACTIVE", "100", "PROD-1" }));
+        Assert.assertTrue(filter.accept(new String[] { "1", "PENDING", " 0.5 ", "" }));
+        Assert.assertTrue(filter.accept(new String[] { "1", "PENDING", "0" }));
+
+        Assert.assertFalse(filter.accept(new String[] { "", "ACTIVE", "1", "PROD-1" }));
+        Assert.assertFalse(filter.accept(new String[] { "1", "CLOSED", "1", "PROD-1" }));
+        Assert.assertFalse(filter.accept(new String[] { "1", "ACTIVE", "100.5", "PROD-1" }));
+        Assert.assertFalse(filter.accept(new String[] { "1", "ACTIVE", "abc", "PROD-1" }));
+        Assert.assertFalse(filter.accept(new String[] { "1", "ACTIVE", "1", "TEST-1" }));
+        Assert.assertFalse(filter.accept(new String[] { "1" }));
+    }
+
+    @Test
+    public void testEquals() throws Exception
+    {
+        FilterOptions equals = column(1);
+        equals.setEquals("x");
+
+        RowFilter filter = RowFilter.compile(Arrays.asList(equals));
+
+        Assert.assertTrue(filter.accept(new String[] { "", "x" }));
+        Assert.assertFalse(filter.accept(new String[] { "", "X" }));
+        Assert.assertFalse(filter.accept(new String[] { "x" }));
+    }
+
+    @Test
+    public void testDroppedRowsMetrics() throws Exception
+    {
+        FilterOptions empty = column(0);
+        empty.setEmpty(true);
+
+        RowFilter filter = RowFilter.compile(Arrays.asList(empty));
+
+        long dropped = Import.METRIC_REGISTRY.meter("filter.0.droppedRows").getCount();
+
+        filter.accept(new String[] { "a" });
+        filter.accept(new String[] { "" });
+        filter.accept(new String[] { "b" });
+
+        Assert.assertEquals(dropped + 2, Import.METRIC_REGISTRY.meter("filter.0.droppedRows").getCount());
+    }
+
+    @Test
+    public void testInvalidOptions() throws Exception
+    {
+        Assert.assertNull(RowFilter.compile(null));
+
+        FilterOptions noCondition = column(0);
+
+        FilterOptions twoConditions = column(0);
+        twoConditions.setEquals("a");
+        twoConditions.setRegex("a");
+
+        FilterOptions noColumn = new FilterOptions();
+        noColumn.setEquals("a");
+
+        FilterOptions invalidRegex = column(0);
+        invalidRegex.setRegex("(");
+
+        for (FilterOptions options : Arrays.asList(noCondition, twoConditions, noColumn, invalidRegex))
+        {
+            try
+            {
+                RowFilter.compile(Arrays.asList(options));
+                Assert.fail("ConfigurationException expected");
+            }
+            catch (ConfigurationException e)
+            {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.anjlab.csv2db;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class RowTest
+{
+    private static Configuration createConfig()
+    {
+        Configuration config = new Configuration();
+
+        Map<Integer, String> columnMappings = new HashMap<>();
+        columnMappings.put(2, "company_name");
+        columnMappings.put(0, "company_number");
+        config.setColumnMappings(columnMappings);
+
+        config.setSyntheticColumns(Arrays.asList("updated_at"));
+        config.setPrimaryKeys(Arrays.asList("company_number"));
+
+        return config;
+    }
+
+    @Test
+    public void testRowIsMap()
+    {
+        Configuration config = createConfig();
+
+        Row row = config.toNameValues(new String[] { "1", "ignored", "A" });
+
+        Map<String, Object> expected = new HashMap<>();
+        expected.put("company_number", "1");
+        expected.put("company_name", "A");
+
+        Assert.assertEquals(expected, row);
+        Assert.assertEquals(expected.hashCode(), row.hashCode());
+        Assert.assertFalse(row.containsKey("updated_at"));
+
+        row.put("updated_at", null);
+        row.put("custom", "value");
+
+        expected.put("updated_at", null);
+        expected.put("custom", "value");
+
+        Assert.assertEquals(expected, row);
+        Assert.assertTrue(row.containsKey("updated_at"));
+        Assert.assertEquals("value", row.get("custom"));
+
+        Assert.assertEquals("A", row.remove("company_name"));
+        Assert.assertEquals("value", row.remove("custom"));
+
+        expected.remove("company_name");
+        expected.remove("custom");
+
+        Assert.assertEquals(expected, row);
+        Assert.assertEquals(2, row.size());
+    }
+
+    @Test
+    public void testSlots()
+    {
+        Configuration config = createConfig();
+
+        RowSchema schema = config.getRowSchema();
+
+        Assert.assertSame(schema, config.getRowSchema());
+        Assert.assertEquals(0, schema.slotOf("company_number"));
+        Assert.assertEquals(1, schema.slotOf("company_name"));
+        Assert.assertEquals(2, schema.slotOf("updated_at"));
+        Assert.assertEquals(-1, schema.slotOf("custom"));
+
+        Row row = config.toNameValues(new String[] { "1", "ignored", "A" });
+
+        Assert.assertEquals("1", row.get(0));
+        Assert.assertEquals("A", row.get(1));
+
+        config.setSyntheticColumns(null);
+
+        Assert.assertNotSame(schema, config.getRowSchema());
+    }
+
+    @Test
+    public void testIteratorRemove()
+    {
+        Row row = createConfig().toNameValues(new String[] { "1", "ignored", "A" });
+
+        row.put("custom", "value");
+
+        Iterator<Map.Entry<String, Object>> iterator = row.entrySet().iterator();
+
+        while (iterator.hasNext())
+        {
+            Map.Entry<String, Object> entry = iterator.next();
+
+            if (!entry.getKey().equals("company_number"))
+            {
+                iterator.remove();
+            }
+        }
+
+        Assert.assertEquals(1, row.size());
+        Assert.assertEquals("1", row.get("company_number"));
+    }
+
+    @Test
+    public void testTransformedValues()
+    {
+        Row row = createConfig().toNameValues(new String[] { "1", "ignored", "A" });
+
+        Assert.assertFalse(row.hasTransformed(1));
+
+        row.setTransformed(1, "a");
+
+        Assert.assertTrue(row.hasTransformed(1));
+        Assert.assertEquals("a", row.getTransformed(1));
+        Assert.assertEquals("A", row.get("company_name"));
+
+        row.put("custom", "value");
+
+        Assert.assertFalse(row.hasTransformed(1));
+    }
+}
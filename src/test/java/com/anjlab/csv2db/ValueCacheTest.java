@@ -0,0 +1,57 @@
+package com.anjlab.csv2db;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ValueCacheTest
+{
+    @Test
+    public void testGetAndPut()
+    {
+        ValueCache cache = new ValueCache(100, "cache.testGetAndPut");
+
+        Assert.assertSame(ValueCache.MISSING, cache.get("a"));
+
+        cache.put("a", "A");
+        cache.put(null, "NULL");
+        cache.put("b", null);
+
+        Assert.assertEquals("A", cache.get("a"));
+        Assert.assertEquals("NULL", cache.get(null));
+        Assert.assertNull(cache.get("b"));
+        Assert.assertEquals(3, cache.size());
+
+        Assert.assertEquals(3, Import.METRIC_REGISTRY.meter("cache.testGetAndPut.hits").getCount());
+        Assert.assertEquals(1, Import.METRIC_REGISTRY.meter("cache.testGetAndPut.misses").getCount());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction()
+    {
+        // Single segment, so that eviction order is predictable
+        ValueCache cache = new ValueCache(1, "cache.testEviction");
+
+        cache.put("a", "A");
+        cache.put("b", "B");
+
+        Assert.assertEquals(1, cache.size());
+        Assert.assertSame(ValueCache.MISSING, cache.get("a"));
+        Assert.assertEquals("B", cache.get("b"));
+    }
+
+    @Test
+    public void testBounded()
+    {
+        ValueCache cache = new ValueCache(100, "cache.testBounded");
+
+        for (int i = 0; i < 10000; i++)
+        {
+            cache.put(i, i);
+        }
+
+        Assert.assertTrue(cache.size() <= 100);
+
+        // Recently used values survive
+        Assert.assertEquals(9999, cache.get(9999));
+    }
+}
@@ -8,6 +8,10 @@ function reverseCompanyNumber(columnName, row) {
     return row.get("company_number").split("").reverse().join("")
 }
 
+function numericCompanyNumber(columnName, row) {
+    return java.lang.Long.valueOf(row.get("company_number").replace(/\D/g, ""))
+}
+
 function connectionProperty(name) {
     return java.lang.System.getProperty("user.name") + "." + name + "-from-js";
 }
@@ -16,4 +20,17 @@ function testMap(nameValues, emit) {
     // map function may emit() as many rows as it needs
     emit(nameValues);
     emit(nameValues);
-}
\ No newline at end of file
+}
+
+function lowercaseBatch(columnName, rows, values) {
+    for (var i = 0; i < rows.size(); i++) {
+        values.add(rows.get(i).get(columnName).toLowerCase())
+    }
+}
+
+function testMapBatch(rows, emitted) {
+    for (var i = 0; i < rows.size(); i++) {
+        emitted.add(rows.get(i));
+        emitted.add(rows.get(i));
+    }
+}